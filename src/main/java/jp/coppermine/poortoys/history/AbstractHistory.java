@@ -1,12 +1,24 @@
 package jp.coppermine.poortoys.history;
 
+import static java.util.Collections.singletonList;
 import static java.util.Collections.unmodifiableList;
-import static java.util.stream.Collectors.toList;
+import static java.util.Objects.requireNonNull;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Stream;
+import java.util.Queue;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Core implementation of {@link History}.
@@ -23,6 +35,38 @@ import java.util.stream.Stream;
  * property {@code poortoys.history.size}. if it is 0 or above, using property value.
  * Otherwise, using {@link #DEFAULT_HISTORY_SIZE} alternately</li>
  * </ol>
+ * <p>
+ * The history buffer is a versioned buffer of fixed capacity, so appending a command
+ * and discarding the oldest one take constant time regardless of the maximum size.
+ * {@link #list()} returns an immutable snapshot of the current version without locking,
+ * so it is safe to read the history on another thread while it is modified.
+ * <p>
+ * {@link #append(Command)} never waits for other producers. Appended commands are put on
+ * a lock-free queue and the thread which obtains the write lock applies all queued commands
+ * to the history buffer as a batch, trimming it to the maximum size once per batch.
+ * {@link #flush()} waits until the commands appended before are applied.
+ * <p>
+ * While commands are appended in chronological order, {@link #shrink(LocalDateTime)}
+ * finds the expired commands by binary search and removes them at once.
+ * <p>
+ * In deduplicating mode, the history buffer holds each command body once: appending a repeated
+ * command removes the older one, so repeats never use up the history buffer. The mode is
+ * determined by {@link #AbstractHistory(int, boolean)}, or the system property
+ * {@code poortoys.history.distinct} for other constructors. In this mode the history buffer is
+ * a hash index from the command body to its most recent command, and its versions share a log
+ * of the commands skipping the removed ones.
+ * <p>
+ * In compact mode, the history buffer holds no {@link Command} objects: timestamps are stored in
+ * primitive arrays and command bodies in shared character arenas, and {@link #list()} creates
+ * commands on demand when it is read. It saves the heap of large histories, but the commands
+ * obtained from {@link #list()} are equal but not identical each time. The mode is determined by
+ * {@link #AbstractHistory(int, boolean, boolean)}, or the system property
+ * {@code poortoys.history.compact} for other constructors, and deduplicating mode takes precedence.
+ * The indexes of searches keep their own commands.
+ * <p>
+ * {@link #loadAsync()} and {@link #saveAsync()} run on the I/O executor, a shared pool of daemon
+ * threads in the default. It is replaced by {@link #setExecutor(ExecutorService)}. Commands
+ * appended while an asynchronous load runs are kept after the loaded commands.
  * 
  */
 public abstract class AbstractHistory implements History {
@@ -33,6 +77,24 @@ public abstract class AbstractHistory implements History {
      */
     public static final String PROPERTY_KEY_HISTORY_SIZE = "poortoys.history.size";
     
+    /**
+     * Property key to enable deduplicating mode.
+     * This value is "poortoys.history.distinct"
+     */
+    public static final String PROPERTY_KEY_HISTORY_DISTINCT = "poortoys.history.distinct";
+    
+    /**
+     * Property key to enable compact mode.
+     * This value is "poortoys.history.compact"
+     */
+    public static final String PROPERTY_KEY_HISTORY_COMPACT = "poortoys.history.compact";
+    
+    /**
+     * Property key to set the half-life in hours of ranked search.
+     * This value is "poortoys.history.halflife.hours"
+     */
+    public static final String PROPERTY_KEY_HISTORY_HALF_LIFE = "poortoys.history.halflife.hours";
+    
 	/**
 	 * The default size of the history buffer.
 	 */
@@ -44,9 +106,85 @@ public abstract class AbstractHistory implements History {
 	private final int maxSize;
 	
 	/**
-	 * Representation of the command history;
+	 * Whether the history buffer holds each command body once.
+	 */
+	private final boolean distinct;
+	
+	/**
+	 * Whether the history buffer stores commands in columns.
+	 */
+	private final boolean compact;
+	
+	/**
+	 * Representation of the command history, newest-first.
+	 */
+	private final CommandStore commands;
+	
+	/**
+	 * Commands appended but not applied to the history buffer yet, oldest-first.
+	 */
+	private final Queue<Command> pending = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * The lock to modify the history buffer.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	
+	/**
+	 * Indexes of the history buffer, guarded by the write lock.
+	 */
+	private final List<HistoryIndex> indexes = new ArrayList<>();
+	
+	/**
+	 * Notifies all indexes, guarded by the write lock.
+	 */
+	private final HistoryIndex notifier = new HistoryIndex() {
+		
+		@Override
+		public void added(Command command, long sequence) {
+			for (HistoryIndex index : indexes) {
+				index.added(command, sequence);
+			}
+		}
+		
+		@Override
+		public void removed(Command command, long sequence) {
+			for (HistoryIndex index : indexes) {
+				index.removed(command, sequence);
+			}
+		}
+		
+	};
+	
+	/**
+	 * The keywords of the latest version, or null.
+	 */
+	private volatile Keywords keywords;
+	
+	/**
+	 * The prefix index, it is created by the first search.
+	 */
+	private PrefixIndex prefixIndex;
+	
+	/**
+	 * The trigram index, it is created by the first substring or approximate search.
+	 */
+	private NgramIndex ngramIndex;
+	
+	/**
+	 * The frecency index, it is created by the first ranked search.
+	 */
+	private FrecencyIndex frecencyIndex;
+	
+	/**
+	 * The executor of asynchronous loads and saves.
+	 */
+	private volatile ExecutorService executor = HistoryExecutors.IO;
+	
+	/**
+	 * The commands in the history buffer when the asynchronous load running on this thread is called.
 	 */
-	private List<Command> commands;
+	private final ThreadLocal<Set<Command>> loading = new ThreadLocal<>();
 	
 	/**
 	 * Creates an instance of this class by system property.
@@ -68,18 +206,172 @@ public abstract class AbstractHistory implements History {
 	 * @param maxSize the maximum size of history buffer
 	 */
 	protected AbstractHistory(int maxSize) {
+		this(maxSize, Boolean.getBoolean(PROPERTY_KEY_HISTORY_DISTINCT));
+	}
+	
+	/**
+	 * Creates an instance of this class by {@code maxCode} and the mode.
+	 * <p>
+	 * if {@code maxSize} is below from 0, it uses {@link #DEFAULT_HISTORY_SIZE} alternatively.
+	 * 
+	 * @param maxSize the maximum size of history buffer
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 */
+	protected AbstractHistory(int maxSize, boolean distinct) {
+		this(maxSize, distinct, Boolean.getBoolean(PROPERTY_KEY_HISTORY_COMPACT));
+	}
+	
+	/**
+	 * Creates an instance of this class by {@code maxCode} and the modes.
+	 * <p>
+	 * if {@code maxSize} is below from 0, it uses {@link #DEFAULT_HISTORY_SIZE} alternatively.
+	 * 
+	 * @param maxSize the maximum size of history buffer
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 * @param compact {@code true} if the history buffer stores commands in columns,
+	 *        it is ignored in deduplicating mode
+	 */
+	protected AbstractHistory(int maxSize, boolean distinct, boolean compact) {
 		this.maxSize = maxSize < 0 ? DEFAULT_HISTORY_SIZE : maxSize;
-		this.commands = new CopyOnWriteArrayList<>();
+		this.distinct = distinct;
+		this.compact = compact && !distinct;
+		if (distinct) {
+			this.commands = new DistinctBuffer(this.maxSize);
+		} else if (compact) {
+			this.commands = new ColumnarBuffer(this.maxSize);
+		} else {
+			this.commands = new CommandBuffer(this.maxSize);
+		}
+	}
+	
+	/**
+	 * Obtains the executor of asynchronous loads and saves.
+	 * 
+	 * @return the I/O executor, never null
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Replaces the executor of asynchronous loads and saves.
+	 * 
+	 * @param executor the I/O executor, not null
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = requireNonNull(executor);
 	}
 	
 	/**
 	 * Obtains the command history in direct.
 	 * To different from {@link #list()}, it's return object is modifiable.
+	 * <p>
+	 * The returned list is a live newest-first view and holds {@link #getMaxSize()} commands at most.
+	 * If a modification makes it longer than that, the oldest commands are discarded.
+	 * Each modification through the view replaces the whole history buffer,
+	 * so bulk operations (<i>e.g.</i> {@code addAll}) should be preferred.
 	 * 
 	 * @return the command history, never null 
 	 */
 	protected List<Command> getCommands() {
-		return commands;
+		return new CommandsView();
+	}
+	
+	/**
+	 * Replaces the history buffer by commands at once.
+	 * <p>
+	 * It publishes a single version, so {@link #list()} never returns an empty history buffer between
+	 * the old and the new commands. Commands appended but not applied yet are discarded like
+	 * {@link #clear()}, and if {@code commands} has more commands than {@link #getMaxSize()},
+	 * the oldest ones are discarded.
+	 * <p>
+	 * If it is called by a load run by {@link #loadSince(Set, Runnable)}, the commands appended after
+	 * the mark are kept newer than {@code commands} instead.
+	 * 
+	 * @param commands the new commands ordered newest-first, not null
+	 * @return {@code true} if commands appended while loading are kept
+	 */
+	protected boolean replaceCommands(Collection<Command> commands) {
+		requireNonNull(commands);
+		writeLock.lock();
+		try {
+			applyPending();
+			List<Command> appended = appendedSince(loading.get());
+			if (appended.isEmpty()) {
+				this.commands.replace(commands, notifier());
+				return false;
+			}
+			appended.addAll(commands);
+			this.commands.replace(appended, notifier());
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Finds the commands appended after a mark.
+	 * The caller must hold the write lock.
+	 * 
+	 * @param mark the commands in the history buffer at the mark, or null
+	 * @return the commands not in {@code mark}, newest-first, empty if {@code mark} is null
+	 */
+	private List<Command> appendedSince(Set<Command> mark) {
+		List<Command> appended = new ArrayList<>();
+		if (mark != null) {
+			for (Command command : this.commands.publish()) {
+				if (!mark.contains(command)) {
+					appended.add(command);
+				}
+			}
+		}
+		return appended;
+	}
+	
+	/**
+	 * Marks the commands in the history buffer before an asynchronous load.
+	 * The commands appended before are applied first.
+	 * 
+	 * @return the mark to pass to {@link #loadSince(Set, Runnable)}, never null
+	 */
+	protected final Set<Command> loadMark() {
+		flush();
+		return new HashSet<>(list());
+	}
+	
+	/**
+	 * Runs a load on this thread, keeping the commands appended after {@code mark}.
+	 * {@link #replaceCommands(Collection)} called by {@code load} puts them after the loaded commands,
+	 * while it holds the write lock, so no append is lost between.
+	 * 
+	 * @param mark the mark taken by {@link #loadMark()}, not null
+	 * @param load the load replacing the history buffer, not null
+	 */
+	protected final void loadSince(Set<Command> mark, Runnable load) {
+		loading.set(requireNonNull(mark));
+		try {
+			load.run();
+		} finally {
+			loading.remove();
+		}
+	}
+	
+	/**
+	 * Obtains whether the history buffer holds each command body once.
+	 * 
+	 * @return {@code true} if it is in deduplicating mode, otherwise {@code false}
+	 */
+	public boolean isDistinct() {
+		return distinct;
+	}
+	
+	/**
+	 * Obtains whether the history buffer stores commands in columns.
+	 * 
+	 * @return {@code true} if it is in compact mode, otherwise {@code false}
+	 */
+	public boolean isCompact() {
+		return compact;
 	}
 	
 	/* (non-Javadoc)
@@ -95,32 +387,418 @@ public abstract class AbstractHistory implements History {
 	 */
 	@Override
 	public List<Command> list() {
-		return unmodifiableList(getCommands());
+		List<Command> snapshot = commands.snapshot();
+		if (snapshot == null || !pending.isEmpty()) {
+			writeLock.lock();
+			try {
+				applyPending();
+				snapshot = commands.publish();
+			} finally {
+				unlock();
+			}
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Obtains the distinct command bodies, most recent first.
+	 * <p>
+	 * The keywords are computed once per version of the history buffer and shared until the next
+	 * modification. In deduplicating mode, it is a view of {@link #list()} without hashing.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#keywords()
+	 */
+	@Override
+	public List<String> keywords() {
+		List<Command> snapshot = list();
+		Keywords cached = keywords;
+		if (cached == null || cached.source != snapshot) {
+			cached = new Keywords(snapshot, distinct);
+			keywords = cached;
+		}
+		return cached.keywords;
 	}
 
 	/* (non-Javadoc)
 	 * @see jp.coppermine.poortoys.history.History#append(java.lang.CharSequence)
 	 */
 	@Override
-	public synchronized void append(Command command) {
-		List<Command> commands = Stream.concat(Stream.of(command), getCommands().stream()).limit(maxSize).collect(toList());
-		getCommands().clear();
-		getCommands().addAll(commands);
+	public void append(Command command) {
+		pending.offer(requireNonNull(command));
+		drain();
+	}
+
+	/**
+	 * Runs {@link #load()} on the I/O executor.
+	 * <p>
+	 * Commands appended after this method is called are kept newer than the loaded commands,
+	 * if {@link #load()} replaces the history buffer by {@link #replaceCommands(Collection)}.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#loadAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> loadAsync() {
+		Set<Command> mark = loadMark();
+		return CompletableFuture.runAsync(() -> loadSince(mark, this::load), executor);
+	}
+	
+	/**
+	 * Runs {@link #save()} on the I/O executor.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#saveAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> saveAsync() {
+		return CompletableFuture.runAsync(this::save, executor);
+	}
+	
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.History#flush()
+	 */
+	@Override
+	public void flush() {
+		writeLock.lock();
+		try {
+			applyPending();
+		} finally {
+			unlock();
+		}
 	}
 
 	/* (non-Javadoc)
 	 * @see jp.coppermine.poortoys.history.History#clear()
 	 */
 	@Override
-	public synchronized void clear() {
-		getCommands().clear();
+	public void clear() {
+		writeLock.lock();
+		try {
+			applyPending();
+			commands.clear(notifier());
+		} finally {
+			unlock();
+		}
 	}
 
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.History#shrink(java.time.LocalDateTime)
+	 */
 	@Override
 	public void shrink(LocalDateTime expired) {
-		List<Command> commands = getCommands().stream().filter(e -> e.getTimestamp().isAfter(expired)).collect(toList());
-		getCommands().clear();
-		getCommands().addAll(commands);
+		requireNonNull(expired);
+		writeLock.lock();
+		try {
+			applyPending();
+			commands.removeExpired(expired, notifier());
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Searches the commands starting with {@code prefix} by the prefix index.
+	 * <p>
+	 * The prefix index is built by the first call, and maintained incrementally after that.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#search(java.lang.CharSequence, int)
+	 */
+	@Override
+	public List<Command> search(CharSequence prefix, int limit) {
+		requireNonNull(prefix);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		writeLock.lock();
+		try {
+			applyPending();
+			if (prefixIndex == null) {
+				prefixIndex = addIndex(new PrefixIndex());
+			}
+			return prefixIndex.search(prefix, limit);
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Searches the commands containing {@code text} by the trigram index.
+	 * <p>
+	 * The trigram index is built by the first call of this method or
+	 * {@link #searchSimilar(CharSequence, int)}, and maintained incrementally after that.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#searchContaining(java.lang.CharSequence, int)
+	 */
+	@Override
+	public List<Command> searchContaining(CharSequence text, int limit) {
+		requireNonNull(text);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		writeLock.lock();
+		try {
+			applyPending();
+			return ngramIndex().searchContaining(text, limit);
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Searches the commands containing {@code text} approximately by the trigram index.
+	 * <p>
+	 * The trigram index is built by the first call of this method or
+	 * {@link #searchContaining(CharSequence, int)}, and maintained incrementally after that.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#searchSimilar(java.lang.CharSequence, int)
+	 */
+	@Override
+	public List<Command> searchSimilar(CharSequence text, int limit) {
+		requireNonNull(text);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		writeLock.lock();
+		try {
+			applyPending();
+			return ngramIndex().searchSimilar(text, limit);
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Searches the commands starting with {@code prefix} by the frecency index.
+	 * <p>
+	 * The frecency index is built by the first call, and maintained incrementally after that.
+	 * The half-life of the weight of a command is the system property
+	 * {@code poortoys.history.halflife.hours}, one week in the default.
+	 * 
+	 * @see jp.coppermine.poortoys.history.History#searchRanked(java.lang.CharSequence, int)
+	 */
+	@Override
+	public List<Command> searchRanked(CharSequence prefix, int limit) {
+		requireNonNull(prefix);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		writeLock.lock();
+		try {
+			applyPending();
+			if (frecencyIndex == null) {
+				Long hours = Long.getLong(PROPERTY_KEY_HISTORY_HALF_LIFE);
+				frecencyIndex = addIndex(new FrecencyIndex(
+						hours == null ? FrecencyIndex.DEFAULT_HALF_LIFE : Duration.ofHours(hours)));
+			}
+			return frecencyIndex.search(prefix, limit);
+		} finally {
+			unlock();
+		}
+	}
+	
+	/**
+	 * Obtains the trigram index, creates it if not yet.
+	 * The caller must hold the write lock.
+	 */
+	private NgramIndex ngramIndex() {
+		if (ngramIndex == null) {
+			ngramIndex = addIndex(new NgramIndex());
+		}
+		return ngramIndex;
+	}
+	
+	/**
+	 * Registers an index and adds the current commands to it.
+	 * The caller must hold the write lock.
+	 * 
+	 * @param index the index to register
+	 * @return {@code index}
+	 */
+	private <T extends HistoryIndex> T addIndex(T index) {
+		commands.feed(index);
+		indexes.add(index);
+		return index;
+	}
+	
+	/**
+	 * Obtains the index to notify of commands which left and entered the history buffer.
+	 * The caller must hold the write lock.
+	 * 
+	 * @return the index notifying all indexes, or null if there is no index
+	 */
+	private HistoryIndex notifier() {
+		return indexes.isEmpty() ? null : notifier;
+	}
+	
+	/**
+	 * Applies the queued commands unless another thread holds the write lock.
+	 * <p>
+	 * The thread holding the write lock calls this method after releasing it,
+	 * so commands queued in the meantime are never left behind.
+	 */
+	private void drain() {
+		while (!pending.isEmpty() && writeLock.tryLock()) {
+			try {
+				applyPending();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Releases the write lock and applies commands queued while it was held.
+	 */
+	private void unlock() {
+		writeLock.unlock();
+		if (!writeLock.isHeldByCurrentThread()) {
+			drain();
+		}
+	}
+	
+	/**
+	 * Applies the queued commands to the history buffer as a batch.
+	 * The caller must hold the write lock.
+	 */
+	private void applyPending() {
+		List<Command> batch = new ArrayList<>();
+		for (Command command = pending.poll(); command != null; command = pending.poll()) {
+			batch.add(command);
+		}
+		commands.addAll(batch, notifier());
+	}
+	
+	/**
+	 * A modifiable view of the history buffer.
+	 * Every modification copies the current snapshot and replaces the buffer by it.
+	 */
+	private final class CommandsView extends AbstractList<Command> implements RandomAccess {
+		
+		@Override
+		public Command get(int index) {
+			return list().get(index);
+		}
+		
+		@Override
+		public int size() {
+			return list().size();
+		}
+		
+		@Override
+		public Command set(int index, Command command) {
+			writeLock.lock();
+			try {
+				applyPending();
+				List<Command> modified = new ArrayList<>(commands.publish());
+				Command old = modified.set(index, command);
+				commands.replace(modified, notifier());
+				return old;
+			} finally {
+				unlock();
+			}
+		}
+		
+		@Override
+		public void add(int index, Command command) {
+			addAll(index, singletonList(command));
+		}
+		
+		@Override
+		public boolean addAll(Collection<? extends Command> c) {
+			// AbstractCollection adds one by one, and each copies the buffer
+			return addAll(-1, c);
+		}
+
+		@Override
+		public boolean addAll(int index, Collection<? extends Command> c) {
+			writeLock.lock();
+			try {
+				applyPending();
+				List<Command> modified = new ArrayList<>(commands.publish());
+				modified.addAll(index < 0 ? modified.size() : index, c);
+				commands.replace(modified, notifier());
+				modCount++;
+				return !c.isEmpty();
+			} finally {
+				unlock();
+			}
+		}
+		
+		@Override
+		public Command remove(int index) {
+			writeLock.lock();
+			try {
+				applyPending();
+				List<Command> modified = new ArrayList<>(commands.publish());
+				Command old = modified.remove(index);
+				commands.replace(modified, notifier());
+				modCount++;
+				return old;
+			} finally {
+				unlock();
+			}
+		}
+		
+		@Override
+		protected void removeRange(int fromIndex, int toIndex) {
+			writeLock.lock();
+			try {
+				applyPending();
+				List<Command> modified = new ArrayList<>(commands.publish());
+				modified.subList(fromIndex, toIndex).clear();
+				commands.replace(modified, notifier());
+				modCount++;
+			} finally {
+				unlock();
+			}
+		}
+		
+		@Override
+		public void clear() {
+			AbstractHistory.this.clear();
+			modCount++;
+		}
+		
+	}
+	
+	/**
+	 * The distinct command bodies of a version of the history buffer.
+	 */
+	private static final class Keywords {
+		
+		/**
+		 * The version of the history buffer.
+		 */
+		private final List<Command> source;
+		
+		/**
+		 * The distinct command bodies, most recent first.
+		 */
+		private final List<String> keywords;
+		
+		private Keywords(List<Command> source, boolean distinct) {
+			this.source = source;
+			if (distinct) {
+				this.keywords = new AbstractList<String>() {
+					
+					@Override
+					public String get(int index) {
+						return source.get(index).getCommand();
+					}
+					
+					@Override
+					public int size() {
+						return source.size();
+					}
+					
+				};
+			} else {
+				Set<String> bodies = new LinkedHashSet<>();
+				for (Command command : source) {
+					bodies.add(command.getCommand());
+				}
+				this.keywords = unmodifiableList(new ArrayList<>(bodies));
+			}
+		}
+		
 	}
 	
 }
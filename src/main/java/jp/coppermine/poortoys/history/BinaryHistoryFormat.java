@@ -0,0 +1,435 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The compact binary format of history files.
+ * <p>
+ * A file starts with the header, the magic bytes {@code 0x89 'P' 'T' 'H'} and the version byte.
+ * Each command follows it oldest-first as:
+ * <ol>
+ * <li>the length of the body in bytes, an unsigned varint</li>
+ * <li>the body in UTF-8</li>
+ * <li>the epoch second of the timestamp as if it were UTC, a zigzag-encoded varint</li>
+ * <li>the nanosecond of the timestamp, an unsigned varint</li>
+ * <li>the length of the items above in bytes, a 4-byte big-endian integer</li>
+ * </ol>
+ * Varints are little-endian groups of 7 bits, the highest bit of a byte tells that a byte follows.
+ * Neither parsing text nor the charset is involved, so reading and writing are bound by I/O.
+ * <p>
+ * The trailing length lets a file be read backwards from the end by blocks, so reading the newest
+ * commands does not depend on the size of the file. If the last command is not complete, as when
+ * an append was interrupted, the file is scanned from the beginning once and it ends at the last
+ * complete command.
+ */
+public class BinaryHistoryFormat implements HistoryFormat {
+
+	/**
+	 * The name of this format, it is "binary".
+	 */
+	public static final String NAME = "binary";
+
+	/**
+	 * The magic bytes at the beginning of a file.
+	 */
+	private static final byte[] MAGIC = { (byte) 0x89, 'P', 'T', 'H' };
+
+	/**
+	 * The version of this format.
+	 */
+	private static final byte VERSION = 2;
+
+	/**
+	 * The length of the header, the magic bytes and the version.
+	 */
+	private static final int HEADER = MAGIC.length + 1;
+
+	/**
+	 * The length of the trailing length of a command.
+	 */
+	private static final int TRAILER = 4;
+
+	/**
+	 * The size of a block read at once.
+	 */
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#getName()
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Tests whether a file is in this format.
+	 * A file shorter than the magic bytes is accepted if it is a part of them, its header was being written.
+	 * 
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#accepts(byte[])
+	 */
+	@Override
+	public boolean accepts(byte[] header) {
+		int length = Math.min(header.length, MAGIC.length);
+		return length > 0 && Arrays.equals(Arrays.copyOf(header, length), Arrays.copyOf(MAGIC, length));
+	}
+
+	/**
+	 * Opens a file to read commands from the newest.
+	 * <p>
+	 * The file is read by positional reads of blocks from the end, and a command is decoded only
+	 * when it is read.
+	 * 
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#read(java.nio.file.Path, java.nio.charset.Charset)
+	 */
+	@Override
+	public Records read(Path path, Charset charset) throws IOException {
+		FileChannel channel = FileChannel.open(path, READ);
+		try {
+			return new Tail(channel, channel.size());
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#decode(java.nio.ByteBuffer, java.nio.charset.Charset)
+	 */
+	@Override
+	public Records decode(ByteBuffer bytes, Charset charset) throws IOException {
+		byte[] array = new byte[bytes.remaining()];
+		bytes.duplicate().get(array);
+		return new Tail(array);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#write(java.nio.file.Path, java.nio.charset.Charset, java.util.List, boolean)
+	 */
+	@Override
+	public void write(Path path, Charset charset, List<Command> commands, boolean append) throws IOException {
+		boolean header = !append || Files.notExists(path) || Files.size(path) == 0L;
+		ByteBuffer bytes = encode(commands, charset, header);
+		try (OutputStream out = Files.newOutputStream(path, CREATE, WRITE, header ? TRUNCATE_EXISTING : APPEND)) {
+			out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#encode(java.util.List, java.nio.charset.Charset, boolean)
+	 */
+	@Override
+	public ByteBuffer encode(List<Command> commands, Charset charset, boolean header) {
+		Output output = new Output(commands.size() * 32 + HEADER);
+		if (header) {
+			output.bytes(MAGIC);
+			output.bytes(new byte[] { VERSION });
+		}
+		for (Command command : commands) {
+			byte[] body = command.getCommand().getBytes(UTF_8);
+			long second = command.getEpochSecond();
+			int start = output.size;
+			output.varint(body.length);
+			output.bytes(body);
+			output.varint((second << 1) ^ (second >> 63));
+			output.varint(command.getNano());
+			output.int4(output.size - start);
+		}
+		return ByteBuffer.wrap(output.buffer, 0, output.size);
+	}
+
+	/**
+	 * Commands of a file read backwards, by their trailing lengths.
+	 */
+	private final class Tail implements Records {
+
+		/**
+		 * The file, or null if all bytes are in {@code buffer}.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * Bytes of the file read but not decoded yet, the tail of them at least.
+		 */
+		private byte[] buffer;
+
+		/**
+		 * The position in the file of {@code buffer[0]}.
+		 */
+		private long offset;
+
+		/**
+		 * The position in the file next to the oldest command returned.
+		 */
+		private long end;
+
+		/**
+		 * Whether no command is returned yet, only the last command may be incomplete.
+		 */
+		private boolean last = true;
+
+		/**
+		 * The position in the file decoding, it is set by {@link #decode(long, long)}.
+		 */
+		private long position;
+
+		private Tail(FileChannel channel, long size) throws IOException {
+			this.channel = channel;
+			this.buffer = new byte[0];
+			this.offset = size;
+			this.end = size;
+			header();
+		}
+
+		private Tail(byte[] bytes) throws IOException {
+			this.channel = null;
+			this.buffer = bytes;
+			this.offset = 0L;
+			this.end = bytes.length;
+			header();
+		}
+
+		/**
+		 * Checks the header of the file.
+		 */
+		private void header() throws IOException {
+			fill(Math.max(0L, end - BLOCK_SIZE));
+			byte[] header = new byte[(int) Math.min(end, HEADER)];
+			if (channel == null) {
+				System.arraycopy(buffer, 0, header, 0, header.length);
+			} else {
+				read(ByteBuffer.wrap(header), 0L);
+			}
+			byte[] expected = Arrays.copyOf(MAGIC, HEADER);
+			expected[MAGIC.length] = VERSION;
+			if (header.length < HEADER && Arrays.equals(header, Arrays.copyOf(expected, header.length))) {
+				// empty, or the header was being written
+				end = HEADER;
+				return;
+			}
+			if (!accepts(header)) {
+				throw new IOException("not a binary history file");
+			}
+			if (header[MAGIC.length] != VERSION) {
+				throw new IOException("unsupported version: " + header[MAGIC.length]);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see jp.coppermine.poortoys.history.HistoryFormat.Records#previous()
+		 */
+		@Override
+		public Command previous() throws IOException {
+			while (end > HEADER) {
+				long start = start(end);
+				Command command = start < 0L ? null : decode(start, end - TRAILER);
+				if (command != null) {
+					end = start;
+					last = false;
+					return command;
+				}
+				if (!last) {
+					throw new IOException("broken command before " + end);
+				}
+				// the last command is not complete, the file ends at the command before
+				end = scan();
+				last = false;
+			}
+			return null;
+		}
+
+		/**
+		 * Obtains the position of a command by its trailing length.
+		 *
+		 * @param next the position next to the command
+		 * @return the position of the command, or -1 if the trailing length is broken
+		 */
+		private long start(long next) throws IOException {
+			if (next - HEADER < TRAILER) {
+				return -1L;
+			}
+			fill(next - TRAILER);
+			int i = (int) (next - TRAILER - offset);
+			int length = (buffer[i] & 0xff) << 24 | (buffer[i + 1] & 0xff) << 16 | (buffer[i + 2] & 0xff) << 8 | buffer[i + 3] & 0xff;
+			long start = next - TRAILER - length;
+			return length < 3 || start < HEADER ? -1L : start;
+		}
+
+		/**
+		 * Decodes a command which must fill the bytes from {@code start} to {@code limit}.
+		 *
+		 * @return the command, or null if the bytes are not a command
+		 */
+		private Command decode(long start, long limit) throws IOException {
+			fill(start);
+			position = start;
+			long length = varint(limit);
+			if (length < 0L || length > limit - position) {
+				return null;
+			}
+			int from = (int) (position - offset);
+			position += length;
+			long second = varint(limit);
+			long nano = varint(limit);
+			if (second < 0L || nano < 0L || nano >= 1_000_000_000L || position != limit) {
+				return null;
+			}
+			String body = new String(buffer, from, (int) length, UTF_8);
+			return Command.ofEpochSecond(body, (second >>> 1) ^ -(second & 1), (int) nano);
+		}
+
+		/**
+		 * Reads a varint not beyond {@code limit}.
+		 *
+		 * @return the value, or -1 if it is broken
+		 */
+		private long varint(long limit) {
+			long value = 0L;
+			for (int shift = 0; shift < 64 && position < limit; shift += 7) {
+				byte b = buffer[(int) (position++ - offset)];
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			return -1L;
+		}
+
+		/**
+		 * Scans the file from the beginning.
+		 *
+		 * @return the position next to the last complete command
+		 */
+		private long scan() throws IOException {
+			long last = HEADER;
+			fill(HEADER);
+			for (long start = HEADER; start < end;) {
+				position = start;
+				long length = varint(end);
+				if (length < 0L || length > end - position) {
+					break;
+				}
+				position += length;
+				if (varint(end) < 0L || varint(end) < 0L || end - position < TRAILER) {
+					break;
+				}
+				long next = position + TRAILER;
+				if (start(next) != start) {
+					break;
+				}
+				last = next;
+				start = next;
+			}
+			return last;
+		}
+
+		/**
+		 * Reads the bytes of the file from {@code from} to {@link #end} into {@code buffer}, if not yet.
+		 */
+		private void fill(long from) throws IOException {
+			if (from >= offset) {
+				return;
+			}
+			// reads a block at least, keeping the bytes read already
+			long start = Math.max(0L, Math.min(from, end - BLOCK_SIZE));
+			fill(start, (int) (end - start));
+		}
+
+		/**
+		 * Reads {@code length} bytes of the file from {@code start} into {@code buffer}.
+		 */
+		private void fill(long start, int length) throws IOException {
+			if (channel == null) {
+				return;
+			}
+			byte[] bytes = new byte[length];
+			read(ByteBuffer.wrap(bytes), start);
+			buffer = bytes;
+			offset = start;
+		}
+
+		/**
+		 * Reads the bytes of the file from {@code start} until {@code bytes} is full.
+		 */
+		private void read(ByteBuffer bytes, long start) throws IOException {
+			while (bytes.hasRemaining() && channel.read(bytes, start + bytes.position()) >= 0) {
+				// reads the bytes
+			}
+			if (bytes.hasRemaining()) {
+				throw new EOFException("the file is truncated while reading");
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+
+	}
+
+	/**
+	 * A growable buffer of bytes to write.
+	 */
+	private static final class Output {
+
+		private byte[] buffer;
+
+		private int size;
+
+		private Output(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		private void ensure(int length) {
+			if (buffer.length - size < length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+			}
+		}
+
+		private void varint(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0L) {
+				buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		private void int4(int value) {
+			ensure(4);
+			buffer[size++] = (byte) (value >>> 24);
+			buffer[size++] = (byte) (value >>> 16);
+			buffer[size++] = (byte) (value >>> 8);
+			buffer[size++] = (byte) value;
+		}
+
+		private void bytes(byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+	}
+
+}
@@ -0,0 +1,305 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Commands of a large history file in CSV, parsed in parallel.
+ * <p>
+ * The file is split into chunks of bytes aligned to line separators, and each chunk is decoded
+ * and parsed by {@link Command#parse(CharSequence)} on a fork-join pool. The chunks are merged
+ * in order from the newest, and the chunks not needed yet are parsed in the background.
+ * {@link #close()} stops the chunks being parsed and waits for them, so no parse outlives it.
+ * Like {@link ReverseLineReader}, it supports only charsets encoding {@code LF} in a single byte.
+ * <p>
+ * A command spanning lines cannot be parsed from a chunk. If a chunk has a part of it, the commands
+ * after the part are returned and the rest is read by the fallback.
+ */
+final class ChunkedRecords implements HistoryFormat.Records {
+
+	/**
+	 * Reads the commands of the file sequentially.
+	 */
+	@FunctionalInterface
+	interface Fallback {
+
+		/**
+		 * Reads the commands of the file.
+		 *
+		 * @param skip the number of the newest commands to skip
+		 * @return the commands
+		 * @throws IOException if an I/O error occurs
+		 */
+		HistoryFormat.Records read(int skip) throws IOException;
+
+	}
+
+	/**
+	 * The size of a block read to find a line separator.
+	 */
+	private static final int BLOCK_SIZE = 8192;
+
+	private final FileChannel channel;
+
+	private final Fallback fallback;
+
+	/**
+	 * Tasks parsing chunks, from the oldest.
+	 */
+	private final List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+
+	/**
+	 * Whether this is closed, the chunks being parsed stop by it.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * The index of the chunk being returned.
+	 */
+	private int index;
+
+	/**
+	 * Commands of the chunk being returned, from the newest.
+	 */
+	private Chunk chunk;
+
+	/**
+	 * The position of the command to return in {@code chunk}.
+	 */
+	private int position;
+
+	/**
+	 * The number of commands returned.
+	 */
+	private int count;
+
+	/**
+	 * Commands read by the fallback, after a part of a command spanning lines is found.
+	 */
+	private HistoryFormat.Records forward;
+
+	/**
+	 * Opens a file and starts to parse it.
+	 *
+	 * @param path the path to the file
+	 * @param charset the charset of the file, it must be supported by {@link ReverseLineReader}
+	 * @param chunkSize the approximate size of a chunk in bytes
+	 * @param fallback reads the file when a command spans lines
+	 * @throws IOException if an I/O error occurs
+	 */
+	ChunkedRecords(Path path, Charset charset, int chunkSize, Fallback fallback) throws IOException {
+		if (!ReverseLineReader.supports(charset)) {
+			throw new IllegalArgumentException("charset: " + charset);
+		}
+		this.channel = FileChannel.open(path, READ);
+		this.fallback = fallback;
+		try {
+			long size = channel.size();
+			long start = 0;
+			for (long n = Math.max((size + chunkSize - 1) / chunkSize, 1), i = 1; i <= n; i++) {
+				long end = i == n ? size : align(size * i / n);
+				if (end > start) {
+					long from = start;
+					tasks.add(ForkJoinTask.adapt(() -> parse(charset, from, end)));
+					start = end;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		// the newest chunk is needed first
+		for (int i = tasks.size() - 1; i >= 0; i--) {
+			ForkJoinPool.commonPool().execute(tasks.get(i));
+		}
+		index = tasks.size();
+	}
+
+	/**
+	 * Finds the beginning of the line at or after a position.
+	 *
+	 * @param position the position in the file, above 0
+	 * @return the beginning of the line, or the size of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private long align(long position) throws IOException {
+		ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+		for (long p = position - 1; p < channel.size(); p += block.position()) {
+			block.clear();
+			if (channel.read(block, p) < 0) {
+				break;
+			}
+			for (int i = 0; i < block.position(); i++) {
+				if (block.get(i) == '\n') {
+					return p + i + 1;
+				}
+			}
+		}
+		return channel.size();
+	}
+
+	/**
+	 * Parses a chunk.
+	 *
+	 * @param charset the charset of the file
+	 * @param from the beginning of the chunk, inclusive
+	 * @param to the end of the chunk, exclusive
+	 * @return the commands of the chunk
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Chunk parse(Charset charset, long from, long to) throws IOException {
+		stopIfClosed();
+		byte[] bytes = new byte[(int) (to - from)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, from + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		// lines are found in bytes, as ReverseLineReader does
+		List<String> lines = new ArrayList<>();
+		Chunk chunk = new Chunk();
+		for (int end = bytes.length; end > 0;) {
+			stopIfClosed();
+			int begin = end - 1;
+			while (begin > 0 && bytes[begin - 1] != '\n') {
+				begin--;
+			}
+			int length = end - begin;
+			if (length > 0 && bytes[end - 1] == '\n') {
+				length--;
+			}
+			if (length > 0 && bytes[begin + length - 1] == '\r') {
+				length--;
+			}
+			end = begin;
+			if (length == 0) {
+				continue;
+			}
+			String line = new String(bytes, begin, length, charset);
+			if (CsvHistoryFormat.isPartial(line)) {
+				chunk.partial = true;
+				break;
+			}
+			lines.add(line);
+		}
+		chunk.commands = new ArrayList<>(lines.size());
+		for (String line : lines) {
+			if ((chunk.commands.size() & 0xfff) == 0) {
+				stopIfClosed();
+			}
+			chunk.commands.add(Command.parse(line));
+		}
+		return chunk;
+	}
+
+	/**
+	 * Stops parsing a chunk if this is closed.
+	 *
+	 * @throws CancellationException this is closed
+	 */
+	private void stopIfClosed() {
+		if (closed) {
+			throw new CancellationException("closed");
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat.Records#previous()
+	 */
+	@Override
+	public Command previous() throws IOException {
+		while (forward == null) {
+			if (chunk != null && position < chunk.commands.size()) {
+				count++;
+				return chunk.commands.get(position++);
+			}
+			if (chunk != null && chunk.partial) {
+				close();
+				forward = fallback.read(count);
+			} else if (index == 0) {
+				return null;
+			} else {
+				chunk = join(tasks.get(--index));
+				position = 0;
+			}
+		}
+		return forward.previous();
+	}
+
+	private static Chunk join(ForkJoinTask<Chunk> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() instanceof RuntimeException && e.getCause().getCause() instanceof IOException
+					? e.getCause().getCause() : e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Cancels the chunks not parsed yet, stops and waits for the chunks being parsed, and closes the file.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		List<ForkJoinTask<Chunk>> rest = tasks.subList(0, index);
+		for (ForkJoinTask<Chunk> task : rest) {
+			task.cancel(false);
+		}
+		for (ForkJoinTask<Chunk> task : rest) {
+			// a started chunk stops at the next check, and never reads the closed file
+			task.quietlyJoin();
+		}
+		tasks.clear();
+		index = 0;
+		channel.close();
+		if (forward != null) {
+			forward.close();
+		}
+	}
+
+	/**
+	 * Commands of a chunk.
+	 */
+	private static final class Chunk {
+
+		/**
+		 * Commands from the newest.
+		 */
+		private List<Command> commands = Collections.emptyList();
+
+		/**
+		 * {@code true} if the chunk has a part of a command spanning lines before the commands.
+		 */
+		private boolean partial;
+
+	}
+
+}
@@ -0,0 +1,555 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Collections.reverse;
+import static java.util.Objects.requireNonNull;
+
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A fixed-capacity history buffer of commands stored in columns, it is the compact history buffer
+ * of {@link AbstractHistory}.
+ * <p>
+ * It works like {@link CommandBuffer}: the contents are published as immutable newest-first
+ * {@link Snapshot}s, every command gets a sequence number, and commands are stored in chunks of
+ * {@value #CHUNK_SIZE} slots written only once and shared by the versions.
+ * <p>
+ * But a chunk holds no {@link Command} objects. The timestamps of its commands are in a
+ * {@code long[]} of epoch seconds and an {@code int[]} of nano-of-seconds, and the command bodies
+ * are in an arena of the chunk with {@code int} end offsets, a byte per character while they are
+ * in ISO-8859-1. So a stored command costs 16 bytes and the characters of its body, without
+ * object headers. A {@link Command} is
+ * created from the columns each time a snapshot is read, and it is not kept by this buffer.
+ * <p>
+ * The arena of a chunk grows by copying while the chunk is filled, and it is trimmed when the chunk
+ * is full. The copied chunk replaces the old one in the new version only, as the older versions
+ * never read the slots written after them.
+ * <p>
+ * Mutating methods are not thread-safe. {@link AbstractHistory} guards them by its write lock.
+ * {@link #snapshot()} may be called from any thread.
+ */
+final class ColumnarBuffer implements CommandStore {
+
+	/**
+	 * The number of bits of the slot index in a chunk.
+	 */
+	private static final int CHUNK_BITS = 6;
+
+	/**
+	 * The number of slots in a chunk.
+	 */
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/**
+	 * The mask of the slot index in a chunk.
+	 */
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The initial length of the arena of a chunk.
+	 */
+	private static final int INITIAL_TEXT = 16 * CHUNK_SIZE;
+
+	/**
+	 * The maximum length of an arena.
+	 */
+	private static final int MAX_TEXT = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The chunk directory of the empty buffer.
+	 */
+	private static final Chunk[] NO_CHUNKS = new Chunk[0];
+
+	/**
+	 * The maximum number of commands in this buffer.
+	 */
+	private final int capacity;
+
+	/**
+	 * The latest published version.
+	 */
+	private volatile Snapshot current;
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param capacity the maximum number of commands, 0 or above
+	 */
+	ColumnarBuffer(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		this.current = new Snapshot(NO_CHUNKS, 0L, 0L, 0L, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#capacity()
+	 */
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Obtains the current contents of this buffer.
+	 * It is always published.
+	 *
+	 * @return an immutable newest-first snapshot, never null
+	 */
+	@Override
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#publish()
+	 */
+	@Override
+	public Snapshot publish() {
+		return current;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#addAll(java.util.List, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void addAll(List<Command> batch, HistoryIndex index) {
+		Snapshot before = current;
+		addAll(batch);
+		notify(before, index);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#removeExpired(java.time.LocalDateTime, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public int removeExpired(LocalDateTime expired, HistoryIndex index) {
+		Snapshot before = current;
+		int count = removeExpired(expired);
+		notify(before, index);
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#clear(jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void clear(HistoryIndex index) {
+		Snapshot before = current;
+		long hi = current.hi;
+		current = new Snapshot(NO_CHUNKS, hi, hi, hi, true);
+		notify(before, index);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#replace(java.util.Collection, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void replace(Collection<Command> commands, HistoryIndex index) {
+		Snapshot before = current;
+		replace(commands);
+		notify(before, index);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#feed(jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void feed(HistoryIndex index) {
+		Snapshot s = current;
+		for (long seq = s.lo; seq < s.hi; seq++) {
+			index.added(s.at(seq), seq);
+		}
+	}
+
+	/**
+	 * Notifies an index of commands which left and entered the buffer since {@code before}.
+	 *
+	 * @param before the version before modification
+	 * @param index the index to notify, or null
+	 */
+	private void notify(Snapshot before, HistoryIndex index) {
+		Snapshot after = current;
+		if (index == null || before == after) {
+			return;
+		}
+		long removedTo = Math.min(before.hi, after.lo);
+		long addedFrom = Math.max(before.hi, after.lo);
+		for (long seq = before.lo; seq < removedTo; seq++) {
+			index.removed(before.at(seq), seq);
+		}
+		for (long seq = addedFrom; seq < after.hi; seq++) {
+			index.added(after.at(seq), seq);
+		}
+	}
+
+	/**
+	 * Adds commands in order, so the last one becomes the newest.
+	 * If the buffer overflows, the oldest commands are discarded.
+	 * <p>
+	 * The new version is published once for the whole batch.
+	 *
+	 * @param batch the commands to add ordered oldest-first, not null
+	 */
+	private void addAll(List<Command> batch) {
+		if (capacity == 0 || batch.isEmpty()) {
+			return;
+		}
+		Snapshot s = current;
+		long hi = s.hi + batch.size();
+		long lo = Math.max(s.lo, hi - capacity);
+		if (lo >= s.hi) {
+			// The batch overflows the whole buffer, only its newest commands remain.
+			current = layout(batch.subList((int) (lo - s.hi), batch.size()), lo);
+			return;
+		}
+		Chunk[] chunks = s.chunks;
+		boolean shared = true;
+		long base = s.base;
+		boolean ordered = s.ordered && isOrdered(s.isEmpty() ? null : s.get(0), batch);
+		for (long seq = s.hi; seq < hi; seq++) {
+			long offset = seq - base;
+			if ((offset & CHUNK_MASK) == 0) {
+				// The next slot starts a new chunk; drop the chunks evicted entirely at the same time.
+				int dead = (int) ((lo - base) >>> CHUNK_BITS);
+				int live = (int) (offset >>> CHUNK_BITS) - dead;
+				Chunk[] grown = new Chunk[live + 1];
+				System.arraycopy(chunks, dead, grown, 0, live);
+				grown[live] = new Chunk();
+				chunks = grown;
+				shared = false;
+				base += (long) dead << CHUNK_BITS;
+				offset = seq - base;
+			}
+			int i = (int) (offset >>> CHUNK_BITS);
+			Chunk chunk = chunks[i].put((int) (offset & CHUNK_MASK), requireNonNull(batch.get((int) (seq - s.hi))));
+			if (chunk != chunks[i]) {
+				if (shared) {
+					chunks = chunks.clone();
+					shared = false;
+				}
+				chunks[i] = chunk;
+			}
+		}
+		current = new Snapshot(chunks, base, lo, hi, ordered);
+	}
+
+	/**
+	 * Removes the {@code count} oldest commands.
+	 *
+	 * @param count the number of commands to remove, 0 or above
+	 */
+	private void removeLast(int count) {
+		Snapshot s = current;
+		if (count == 0) {
+			return;
+		}
+		long lo = s.lo + count;
+		int dead = (int) ((lo - s.base) >>> CHUNK_BITS);
+		Chunk[] chunks = dead == 0 ? s.chunks : Arrays.copyOfRange(s.chunks, dead, s.chunks.length);
+		current = new Snapshot(chunks, s.base + ((long) dead << CHUNK_BITS), lo, s.hi, s.ordered);
+	}
+
+	/**
+	 * Removes the commands created at {@code expired} or before.
+	 * <p>
+	 * If the buffer is ordered by timestamp, the cutoff is found by binary search on the columns
+	 * and the expired commands are removed from the tail at once. Otherwise all commands are filtered.
+	 *
+	 * @param expired the expiration timestamp, not null
+	 * @return the number of removed commands
+	 */
+	private int removeExpired(LocalDateTime expired) {
+		Snapshot s = current;
+		if (!s.ordered) {
+			List<Command> alive = new ArrayList<>(s.size());
+			for (Command command : s) {
+				if (command.isAfter(expired)) {
+					alive.add(command);
+				}
+			}
+			if (alive.size() < s.size()) {
+				replace(alive);
+			}
+			return s.size() - alive.size();
+		}
+		Command limit = Command.of("", expired);
+		// Find the first (newest) expired command, the list is alive-first.
+		int low = 0;
+		int high = s.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (s.isAfter(mid, limit)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int count = s.size() - low;
+		removeLast(count);
+		return count;
+	}
+
+	/**
+	 * Replaces all commands.
+	 * If {@code commands} has more commands than the capacity, the oldest ones are discarded.
+	 *
+	 * @param commands the new commands ordered newest-first, not null
+	 */
+	private void replace(Collection<Command> commands) {
+		List<Command> oldest = new ArrayList<>(commands);
+		reverse(oldest);
+		current = layout(oldest.subList(Math.max(0, oldest.size() - capacity), oldest.size()), current.hi);
+	}
+
+	/**
+	 * Lays out commands in new chunks.
+	 *
+	 * @param commands the commands ordered oldest-first, its size must not exceed the capacity
+	 * @param base the sequence number of the oldest command
+	 * @return the new version
+	 */
+	private static Snapshot layout(List<Command> commands, long base) {
+		int size = commands.size();
+		Chunk[] chunks = new Chunk[(size + CHUNK_MASK) >>> CHUNK_BITS];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new Chunk();
+		}
+		for (int i = 0; i < size; i++) {
+			Chunk chunk = chunks[i >>> CHUNK_BITS];
+			chunks[i >>> CHUNK_BITS] = chunk.put(i & CHUNK_MASK, requireNonNull(commands.get(i)));
+		}
+		return new Snapshot(chunks, base, base, base + size, isOrdered(null, commands));
+	}
+
+	/**
+	 * Tests whether commands are in chronological order.
+	 *
+	 * @param newest the newest command before {@code commands}, or null
+	 * @param commands the commands ordered oldest-first
+	 * @return {@code true} if no command is older than the previous one
+	 */
+	private static boolean isOrdered(Command newest, List<Command> commands) {
+		Command previous = newest;
+		for (Command command : commands) {
+			if (previous != null && command.isBefore(previous)) {
+				return false;
+			}
+			previous = command;
+		}
+		return true;
+	}
+
+	/**
+	 * The columns of the commands in a chunk.
+	 * <p>
+	 * A slot is written once and in order, so the body of slot {@code i} is the characters of
+	 * the arena from {@code ends[i - 1]} (or 0) to {@code ends[i]}. The arena is a {@code byte[]}
+	 * while all bodies of the chunk are in ISO-8859-1, and a {@code char[]} after that.
+	 */
+	private static final class Chunk {
+
+		private final long[] seconds;
+
+		private final int[] nanos;
+
+		/**
+		 * The end offsets of the bodies in the arena.
+		 */
+		private final int[] ends;
+
+		/**
+		 * The arena of the bodies in ISO-8859-1, or null.
+		 */
+		private final byte[] narrow;
+
+		/**
+		 * The arena of the bodies, or null.
+		 */
+		private final char[] wide;
+
+		private Chunk() {
+			this.seconds = new long[CHUNK_SIZE];
+			this.nanos = new int[CHUNK_SIZE];
+			this.ends = new int[CHUNK_SIZE];
+			this.narrow = new byte[INITIAL_TEXT];
+			this.wide = null;
+		}
+
+		/**
+		 * Creates a chunk sharing the columns with another arena.
+		 */
+		private Chunk(Chunk chunk, byte[] narrow, char[] wide) {
+			this.seconds = chunk.seconds;
+			this.nanos = chunk.nanos;
+			this.ends = chunk.ends;
+			this.narrow = narrow;
+			this.wide = wide;
+		}
+
+		/**
+		 * Writes a command to a slot.
+		 *
+		 * @param slot the slot next to the last written one
+		 * @param command the command
+		 * @return this chunk, or a copy if the arena is grown, widened or trimmed
+		 */
+		private Chunk put(int slot, Command command) {
+			String body = command.getCommand();
+			int start = slot == 0 ? 0 : ends[slot - 1];
+			if (body.length() > MAX_TEXT - start) {
+				throw new OutOfMemoryError("too long commands in a chunk");
+			}
+			int end = start + body.length();
+			int length = narrow != null ? narrow.length : wide.length;
+			int grown = end > length ? (int) Math.min(MAX_TEXT, Math.max(end, length * 2L)) : length;
+			Chunk chunk = this;
+			if (narrow != null && !isLatin1(body)) {
+				char[] widened = new char[grown];
+				for (int i = 0; i < start; i++) {
+					widened[i] = (char) (narrow[i] & 0xFF);
+				}
+				chunk = new Chunk(this, null, widened);
+			} else if (grown > length) {
+				chunk = narrow != null
+						? new Chunk(this, Arrays.copyOf(narrow, grown), null)
+						: new Chunk(this, null, Arrays.copyOf(wide, grown));
+			}
+			if (chunk.narrow != null) {
+				for (int i = 0; i < body.length(); i++) {
+					chunk.narrow[start + i] = (byte) body.charAt(i);
+				}
+			} else {
+				body.getChars(0, body.length(), chunk.wide, start);
+			}
+			seconds[slot] = command.getEpochSecond();
+			nanos[slot] = command.getNano();
+			ends[slot] = end;
+			if (slot == CHUNK_MASK && end < grown) {
+				// the chunk is full, the arena never grows
+				chunk = chunk.narrow != null
+						? new Chunk(this, Arrays.copyOf(chunk.narrow, end), null)
+						: new Chunk(this, null, Arrays.copyOf(chunk.wide, end));
+			}
+			return chunk;
+		}
+
+		private static boolean isLatin1(String body) {
+			for (int i = 0; i < body.length(); i++) {
+				if (body.charAt(i) > 0xFF) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Creates the command of a slot.
+		 */
+		private Command get(int slot) {
+			int start = slot == 0 ? 0 : ends[slot - 1];
+			String body = narrow != null
+					? new String(narrow, start, ends[slot] - start, ISO_8859_1)
+					: new String(wide, start, ends[slot] - start);
+			// the columns are valid, and the views are not interned to keep the pool for new commands
+			return new Command(body, seconds[slot], nanos[slot]);
+		}
+
+		/**
+		 * Tests whether the command of a slot is after another command, without creating it.
+		 */
+		private boolean isAfter(int slot, Command command) {
+			long second = seconds[slot];
+			return second > command.getEpochSecond()
+					|| (second == command.getEpochSecond() && nanos[slot] > command.getNano());
+		}
+
+	}
+
+	/**
+	 * An immutable version of the buffer, viewed as a newest-first list.
+	 * Each {@link #get(int)} creates a command from the columns.
+	 */
+	static final class Snapshot extends AbstractList<Command> implements RandomAccess {
+
+		/**
+		 * The chunk directory, it may be shared with other versions.
+		 */
+		private final Chunk[] chunks;
+
+		/**
+		 * The sequence number of the first slot of {@code chunks[0]}.
+		 */
+		private final long base;
+
+		/**
+		 * The sequence number of the oldest command.
+		 */
+		private final long lo;
+
+		/**
+		 * The sequence number next to the newest command.
+		 */
+		private final long hi;
+
+		/**
+		 * Whether timestamps never increase from the newest command to the oldest.
+		 */
+		private final boolean ordered;
+
+		private Snapshot(Chunk[] chunks, long base, long lo, long hi, boolean ordered) {
+			this.chunks = chunks;
+			this.base = base;
+			this.lo = lo;
+			this.hi = hi;
+			this.ordered = ordered;
+		}
+
+		/**
+		 * Obtains the command by its sequence number.
+		 *
+		 * @param sequence the sequence number of a command in this snapshot
+		 * @return the command
+		 */
+		Command at(long sequence) {
+			return get((int) (hi - 1 - sequence));
+		}
+
+		/**
+		 * Tests whether a command is after another command, without creating it.
+		 */
+		private boolean isAfter(int index, Command command) {
+			long offset = hi - 1 - index - base;
+			return chunks[(int) (offset >>> CHUNK_BITS)].isAfter((int) (offset & CHUNK_MASK), command);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public Command get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+			}
+			long offset = hi - 1 - index - base;
+			return chunks[(int) (offset >>> CHUNK_BITS)].get((int) (offset & CHUNK_MASK));
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return (int) (hi - lo);
+		}
+
+	}
+
+}
@@ -1,22 +1,55 @@
 package jp.coppermine.poortoys.history;
 
+import static java.time.ZoneOffset.UTC;
 import static java.util.Objects.requireNonNull;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoField;
 
 import jp.coppermine.poortoys.text.CsvCodec;
+import jp.coppermine.poortoys.text.CsvFormatException;
+import jp.coppermine.poortoys.text.CsvReader;
+import jp.coppermine.poortoys.text.CsvWriter;
 
 public class Command {
 
+	private static final long MIN_EPOCH_SECOND = LocalDateTime.MIN.toEpochSecond(UTC);
+	
+	private static final long MAX_EPOCH_SECOND = LocalDateTime.MAX.toEpochSecond(UTC);
+	
 	/**
 	 * Representation of a command body.
 	 */
 	private final String command;
 	
 	/**
-	 * Representation of a command timestamp.
+	 * Representation of a command timestamp, the epoch second as if it were UTC.
+	 */
+	private final long epochSecond;
+	
+	/**
+	 * Representation of a command timestamp, the nano-of-second.
 	 */
-	private final LocalDateTime timestamp;
+	private final int nano;
+	
+	/**
+	 * Cache of the hash code, 0 until it is computed.
+	 */
+	private int hash;
+	
+	/**
+	 * Construct a command, without interning the command body.
+	 * 
+	 * @param command command body, not null
+	 * @param epochSecond the epoch second of create at
+	 * @param nano the nano-of-second of create at
+	 */
+	Command(String command, long epochSecond, int nano) {
+		this.command = command;
+		this.epochSecond = epochSecond;
+		this.nano = nano;
+	}
 	
 	/**
 	 * Construct a command.
@@ -25,8 +58,7 @@ public class Command {
 	 * @param timestamp create at, not null
 	 */
 	private Command(String command, LocalDateTime timestamp) {
-		this.command = command;
-		this.timestamp = timestamp;
+		this(command, timestamp.toEpochSecond(UTC), timestamp.getNano());
 	}
 	
 	/**
@@ -37,7 +69,7 @@ public class Command {
 	 */
 	public static Command of(CharSequence command) {
 		requireNonNull(command);
-		return new Command(command.toString(), LocalDateTime.now());
+		return new Command(CommandPool.getDefault().intern(command), LocalDateTime.now());
 	}
 	
 	/**
@@ -50,7 +82,26 @@ public class Command {
 	public static Command of(CharSequence command, LocalDateTime timestamp) {
 		requireNonNull(command);
 		requireNonNull(timestamp);
-		return new Command(command.toString(), timestamp);
+		return new Command(CommandPool.getDefault().intern(command), timestamp);
+	}
+	
+	/**
+	 * Create a command with created time in epoch second, as if the local date-time were UTC.
+	 * 
+	 * @param command command body, not null
+	 * @param epochSecond the epoch second of the command timestamp
+	 * @param nano the nano-of-second of the command timestamp, from 0 to 999,999,999
+	 * @return a command
+	 * @throws java.time.DateTimeException the timestamp is out of the range of {@link LocalDateTime}
+	 */
+	public static Command ofEpochSecond(CharSequence command, long epochSecond, int nano) {
+		requireNonNull(command);
+		ChronoField.NANO_OF_SECOND.checkValidValue(nano);
+		if (epochSecond < MIN_EPOCH_SECOND || epochSecond > MAX_EPOCH_SECOND) {
+			// the same exception as LocalDateTime
+			LocalDateTime.ofEpochSecond(epochSecond, nano, UTC);
+		}
+		return new Command(CommandPool.getDefault().intern(command), epochSecond, nano);
 	}
 
 	/**
@@ -62,7 +113,40 @@ public class Command {
 	public static Command parse(CharSequence csv) {
 		requireNonNull(csv);
 		String[] fields = CsvCodec.decode(csv);
-		return new Command(fields[1], LocalDateTime.parse(fields[0]));
+		return new Command(CommandPool.getDefault().intern(fields[1]),
+				TimestampCodec.epochSecond(fields[0]), TimestampCodec.nano(fields[0]));
+	}
+	
+	/**
+	 * Deserializes the next command from a CSV stream, skipping empty lines.
+	 * 
+	 * @param reader the CSV stream, not null
+	 * @return a command, or null if it is the end of the stream
+	 * @throws IOException if an I/O error occurs
+	 * @throws CsvFormatException a record is not a command
+	 */
+	public static Command read(CsvReader reader) throws IOException {
+		requireNonNull(reader);
+		Fields fields = new Fields();
+		for (int count = reader.read(fields); count >= 0; count = reader.read(fields)) {
+			if (count >= 2) {
+				return new Command(fields.command, fields.epochSecond, fields.nano);
+			} else if (count > 0) {
+				throw new CsvFormatException("no command body");
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Serializes a command to a CSV stream as a record.
+	 * 
+	 * @param writer the CSV stream, not null
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(CsvWriter writer) throws IOException {
+		char[] buffer = new char[TimestampCodec.MAX_LENGTH];
+		writer.field(buffer, 0, TimestampCodec.format(epochSecond, nano, buffer)).field(command).endRecord();
 	}
 	
 	/**
@@ -71,7 +155,7 @@ public class Command {
 	 * @return serialized command (CSV format)
 	 */
 	public String format() {
-		return CsvCodec.encode(timestamp.toString(), command);
+		return CsvCodec.encode(TimestampCodec.format(epochSecond, nano), command);
 	}
 	
 	/**
@@ -89,15 +173,59 @@ public class Command {
 	 * @return a command timestamp
 	 */
 	public LocalDateTime getTimestamp() {
-		return timestamp;
+		return LocalDateTime.ofEpochSecond(epochSecond, nano, UTC);
+	}
+	
+	/**
+	 * Obtains the epoch second of a command timestamp, as if the local date-time were UTC.
+	 * 
+	 * @return the epoch second
+	 */
+	public long getEpochSecond() {
+		return epochSecond;
+	}
+	
+	/**
+	 * Obtains the nano-of-second of a command timestamp.
+	 * 
+	 * @return the nano-of-second, from 0 to 999,999,999
+	 */
+	public int getNano() {
+		return nano;
+	}
+	
+	/**
+	 * Tests whether a command timestamp is after the timestamp.
+	 * 
+	 * @param timestamp the timestamp to compare, not null
+	 * @return {@code true} if a command timestamp is after the timestamp
+	 */
+	public boolean isAfter(LocalDateTime timestamp) {
+		long second = timestamp.toEpochSecond(UTC);
+		return epochSecond > second || (epochSecond == second && nano > timestamp.getNano());
+	}
+	
+	/**
+	 * Tests whether a command timestamp is before the other's.
+	 * 
+	 * @param other the command to compare, not null
+	 * @return {@code true} if a command timestamp is before the other's
+	 */
+	public boolean isBefore(Command other) {
+		return epochSecond < other.epochSecond || (epochSecond == other.epochSecond && nano < other.nano);
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((command == null) ? 0 : command.hashCode());
-		result = prime * result + ((timestamp == null) ? 0 : timestamp.hashCode());
+		int result = hash;
+		if (result == 0) {
+			final int prime = 31;
+			result = 1;
+			result = prime * result + ((command == null) ? 0 : command.hashCode());
+			result = prime * result + (int) (epochSecond ^ (epochSecond >>> 32));
+			result = prime * result + nano;
+			hash = result;
+		}
 		return result;
 	}
 
@@ -113,21 +241,12 @@ public class Command {
 			return false;
 		}
 		Command other = (Command) obj;
-		if (command == null) {
-			if (other.command != null) {
-				return false;
-			}
-		} else if (!command.equals(other.command)) {
+		if (epochSecond != other.epochSecond || nano != other.nano
+				|| (hash != 0 && other.hash != 0 && hash != other.hash)) {
 			return false;
 		}
-		if (timestamp == null) {
-			if (other.timestamp != null) {
-				return false;
-			}
-		} else if (!timestamp.equals(other.timestamp)) {
-			return false;
-		}
-		return true;
+		// interned bodies are compared by identity in String#equals
+		return command == null ? other.command == null : command.equals(other.command);
 	}
 
 	@Override
@@ -135,4 +254,27 @@ public class Command {
 		return format();
 	}
 	
+	/**
+	 * Receives the fields of a command from {@link CsvReader}.
+	 */
+	private static final class Fields implements CsvReader.FieldSink {
+		
+		private long epochSecond;
+		
+		private int nano;
+		
+		private String command;
+		
+		@Override
+		public void field(int index, CharSequence value) {
+			if (index == 0) {
+				epochSecond = TimestampCodec.epochSecond(value);
+				nano = TimestampCodec.nano(value);
+			} else if (index == 1) {
+				command = CommandPool.getDefault().intern(value);
+			}
+		}
+		
+	}
+	
 }
@@ -0,0 +1,447 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Collections.reverse;
+import static java.util.Collections.singletonList;
+import static java.util.Objects.requireNonNull;
+
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A fixed-capacity history buffer of commands, it is the history buffer of {@link AbstractHistory}.
+ * <p>
+ * The buffer publishes its contents as immutable {@link Snapshot}s ordered newest-first,
+ * <i>i.e.</i> index 0 is the most recent command. Obtaining a snapshot is a single volatile read,
+ * and a snapshot never changes after it is obtained, so readers never block writers and never
+ * observe a half-updated history.
+ * <p>
+ * Internally every command gets a sequence number, and commands are stored in chunks of
+ * {@value #CHUNK_SIZE} slots indexed by it. A slot is written only once, before the snapshot
+ * containing it is published, so every version shares the chunks with its predecessors.
+ * {@link #addAll(List)} and {@link #removeLast(int)} only publish a new small version object;
+ * the chunk directory is copied once per {@value #CHUNK_SIZE} appends when a chunk is added and
+ * fully evicted chunks are dropped.
+ * <p>
+ * Sequence numbers are never reused, so the indexes are notified of the difference between
+ * two versions by comparing their sequence ranges.
+ * <p>
+ * Mutating methods are not thread-safe. {@link AbstractHistory} guards them by its write lock.
+ * {@link #snapshot()} may be called from any thread.
+ */
+final class CommandBuffer implements CommandStore {
+
+	/**
+	 * The number of bits of the slot index in a chunk.
+	 */
+	private static final int CHUNK_BITS = 6;
+
+	/**
+	 * The number of slots in a chunk.
+	 */
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/**
+	 * The mask of the slot index in a chunk.
+	 */
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The chunk directory of the empty buffer.
+	 */
+	private static final Command[][] NO_CHUNKS = new Command[0][];
+
+	/**
+	 * The maximum number of commands in this buffer.
+	 */
+	private final int capacity;
+
+	/**
+	 * The latest published version.
+	 */
+	private volatile Snapshot current;
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param capacity the maximum number of commands, 0 or above
+	 */
+	CommandBuffer(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		this.current = new Snapshot(NO_CHUNKS, 0L, 0L, 0L, true);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#capacity()
+	 */
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Obtains the current contents of this buffer.
+	 * It is always published.
+	 *
+	 * @return an immutable newest-first snapshot, never null
+	 */
+	@Override
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#publish()
+	 */
+	@Override
+	public Snapshot publish() {
+		return current;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#addAll(java.util.List, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void addAll(List<Command> batch, HistoryIndex index) {
+		Snapshot before = current;
+		addAll(batch);
+		notify(before, index);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#removeExpired(java.time.LocalDateTime, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public int removeExpired(LocalDateTime expired, HistoryIndex index) {
+		Snapshot before = current;
+		int count = removeExpired(expired);
+		notify(before, index);
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#clear(jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void clear(HistoryIndex index) {
+		Snapshot before = current;
+		clear();
+		notify(before, index);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#replace(java.util.Collection, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void replace(Collection<Command> commands, HistoryIndex index) {
+		Snapshot before = current;
+		replace(commands);
+		notify(before, index);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#feed(jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void feed(HistoryIndex index) {
+		Snapshot s = current;
+		for (long seq = s.lo; seq < s.hi; seq++) {
+			index.added(s.at(seq), seq);
+		}
+	}
+
+	/**
+	 * Notifies an index of commands which left and entered the buffer since {@code before}.
+	 *
+	 * @param before the version before modification
+	 * @param index the index to notify, or null
+	 */
+	private void notify(Snapshot before, HistoryIndex index) {
+		Snapshot after = current;
+		if (index == null || before == after) {
+			return;
+		}
+		long removedTo = Math.min(before.hi, after.lo);
+		long addedFrom = Math.max(before.hi, after.lo);
+		for (long seq = before.lo; seq < removedTo; seq++) {
+			index.removed(before.at(seq), seq);
+		}
+		for (long seq = addedFrom; seq < after.hi; seq++) {
+			index.added(after.at(seq), seq);
+		}
+	}
+
+	/**
+	 * Adds a command as the newest one.
+	 * If the buffer is full, the oldest command is discarded.
+	 *
+	 * @param command the command to add, not null
+	 */
+	void addFirst(Command command) {
+		addAll(singletonList(command));
+	}
+
+	/**
+	 * Adds commands in order, so the last one becomes the newest.
+	 * If the buffer overflows, the oldest commands are discarded.
+	 * <p>
+	 * The new version is published once for the whole batch.
+	 *
+	 * @param batch the commands to add ordered oldest-first, not null
+	 */
+	void addAll(List<Command> batch) {
+		if (capacity == 0 || batch.isEmpty()) {
+			return;
+		}
+		Snapshot s = current;
+		long hi = s.hi + batch.size();
+		long lo = Math.max(s.lo, hi - capacity);
+		if (lo >= s.hi) {
+			// The batch overflows the whole buffer, only its newest commands remain.
+			current = layout(batch.subList((int) (lo - s.hi), batch.size()), lo);
+			return;
+		}
+		Command[][] chunks = s.chunks;
+		long base = s.base;
+		boolean ordered = s.ordered && isOrdered(s.isEmpty() ? null : s.get(0), batch);
+		for (long seq = s.hi; seq < hi; seq++) {
+			long offset = seq - base;
+			if ((offset & CHUNK_MASK) == 0) {
+				// The next slot starts a new chunk; drop the chunks evicted entirely at the same time.
+				int dead = (int) ((lo - base) >>> CHUNK_BITS);
+				int live = (int) (offset >>> CHUNK_BITS) - dead;
+				Command[][] grown = new Command[live + 1][];
+				System.arraycopy(chunks, dead, grown, 0, live);
+				grown[live] = new Command[CHUNK_SIZE];
+				chunks = grown;
+				base += (long) dead << CHUNK_BITS;
+				offset = seq - base;
+			}
+			chunks[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)] = requireNonNull(batch.get((int) (seq - s.hi)));
+		}
+		current = new Snapshot(chunks, base, lo, hi, ordered);
+	}
+
+	/**
+	 * Removes the {@code count} oldest commands.
+	 *
+	 * @param count the number of commands to remove, 0 or above
+	 */
+	void removeLast(int count) {
+		Snapshot s = current;
+		if (count < 0 || count > s.size()) {
+			throw new IndexOutOfBoundsException("count: " + count + ", size: " + s.size());
+		}
+		if (count == 0) {
+			return;
+		}
+		long lo = s.lo + count;
+		int dead = (int) ((lo - s.base) >>> CHUNK_BITS);
+		Command[][] chunks = dead == 0 ? s.chunks : Arrays.copyOfRange(s.chunks, dead, s.chunks.length);
+		current = new Snapshot(chunks, s.base + ((long) dead << CHUNK_BITS), lo, s.hi, s.ordered);
+	}
+
+	/**
+	 * Removes the commands created at {@code expired} or before.
+	 * <p>
+	 * If the buffer is ordered by timestamp, the cutoff is found by binary search and the
+	 * expired commands are removed from the tail at once. Otherwise all commands are filtered.
+	 *
+	 * @param expired the expiration timestamp, not null
+	 * @return the number of removed commands
+	 */
+	int removeExpired(LocalDateTime expired) {
+		Snapshot s = current;
+		if (!s.ordered) {
+			List<Command> alive = new ArrayList<>(s.size());
+			for (Command command : s) {
+				if (command.isAfter(expired)) {
+					alive.add(command);
+				}
+			}
+			if (alive.size() < s.size()) {
+				replace(alive);
+			}
+			return s.size() - alive.size();
+		}
+		// Find the first (newest) expired command, the list is alive-first.
+		int low = 0;
+		int high = s.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (s.get(mid).isAfter(expired)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int count = s.size() - low;
+		removeLast(count);
+		return count;
+	}
+
+	/**
+	 * Removes all commands.
+	 */
+	void clear() {
+		long hi = current.hi;
+		current = new Snapshot(NO_CHUNKS, hi, hi, hi, true);
+	}
+
+	/**
+	 * Replaces all commands.
+	 * If {@code commands} has more commands than the capacity, the oldest ones are discarded.
+	 *
+	 * @param commands the new commands ordered newest-first, not null
+	 */
+	void replace(Collection<Command> commands) {
+		List<Command> oldest = new ArrayList<>(commands);
+		reverse(oldest);
+		current = layout(oldest.subList(Math.max(0, oldest.size() - capacity), oldest.size()), current.hi);
+	}
+
+	/**
+	 * Lays out commands in new chunks.
+	 *
+	 * @param commands the commands ordered oldest-first, its size must not exceed the capacity
+	 * @param base the sequence number of the oldest command
+	 * @return the new version
+	 */
+	private static Snapshot layout(List<Command> commands, long base) {
+		int size = commands.size();
+		Command[][] chunks = new Command[(size + CHUNK_MASK) >>> CHUNK_BITS][];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new Command[CHUNK_SIZE];
+		}
+		for (int i = 0; i < size; i++) {
+			chunks[i >>> CHUNK_BITS][i & CHUNK_MASK] = requireNonNull(commands.get(i));
+		}
+		return new Snapshot(chunks, base, base, base + size, isOrdered(null, commands));
+	}
+
+	/**
+	 * Tests whether commands are in chronological order.
+	 *
+	 * @param newest the newest command before {@code commands}, or null
+	 * @param commands the commands ordered oldest-first
+	 * @return {@code true} if no command is older than the previous one
+	 */
+	private static boolean isOrdered(Command newest, List<Command> commands) {
+		Command previous = newest;
+		for (Command command : commands) {
+			if (previous != null && command.isBefore(previous)) {
+				return false;
+			}
+			previous = command;
+		}
+		return true;
+	}
+
+	/**
+	 * An immutable version of the buffer, viewed as a newest-first list.
+	 */
+	static final class Snapshot extends AbstractList<Command> implements RandomAccess {
+
+		/**
+		 * The chunk directory, it may be shared with other versions.
+		 */
+		private final Command[][] chunks;
+
+		/**
+		 * The sequence number of the first slot of {@code chunks[0]}.
+		 */
+		private final long base;
+
+		/**
+		 * The sequence number of the oldest command.
+		 */
+		private final long lo;
+
+		/**
+		 * The sequence number next to the newest command.
+		 */
+		private final long hi;
+
+		/**
+		 * Whether timestamps never increase from the newest command to the oldest.
+		 */
+		private final boolean ordered;
+
+		private Snapshot(Command[][] chunks, long base, long lo, long hi, boolean ordered) {
+			this.chunks = chunks;
+			this.base = base;
+			this.lo = lo;
+			this.hi = hi;
+			this.ordered = ordered;
+		}
+
+		/**
+		 * Obtains the sequence number of the oldest command.
+		 *
+		 * @return the sequence number of the oldest command, or {@link #nextSequence()} if empty
+		 */
+		long oldestSequence() {
+			return lo;
+		}
+
+		/**
+		 * Obtains the sequence number which the next appended command will get.
+		 *
+		 * @return the sequence number next to the newest command
+		 */
+		long nextSequence() {
+			return hi;
+		}
+
+		/**
+		 * Obtains the command by its sequence number.
+		 *
+		 * @param sequence the sequence number, between {@link #oldestSequence()} (inclusive)
+		 *        and {@link #nextSequence()} (exclusive)
+		 * @return the command
+		 */
+		Command at(long sequence) {
+			return get((int) (hi - 1 - sequence));
+		}
+
+		/**
+		 * Obtains whether this snapshot is ordered by timestamp, newest-first.
+		 * <p>
+		 * It is {@code true} as long as commands are appended in chronological order.
+		 *
+		 * @return {@code true} if timestamps never increase along the list
+		 */
+		boolean isOrdered() {
+			return ordered;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public Command get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+			}
+			long offset = hi - 1 - index - base;
+			return chunks[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)];
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return (int) (hi - lo);
+		}
+
+	}
+
+}
@@ -0,0 +1,261 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool interning command bodies, so repeated commands share a {@link String}.
+ * <p>
+ * The pool is a set-associative cache of {@value #WAYS} ways: a body is looked up in the set of
+ * slots chosen by its hash code, ordered from the most recent, and a hit moves the body to the front
+ * of the set. A new body evicts the least recent one of the set. So it holds {@link #capacity()}
+ * bodies at most, and frequently typed commands stay in it. A body is looked up by its characters,
+ * so a hit from a {@link CharSequence} creates no string. Bodies longer than {@value #MAX_LENGTH}
+ * characters are not interned.
+ * <p>
+ * The pool is thread-safe without locking. Concurrent updates of a slot may lose an entry,
+ * which only costs a later miss.
+ * <p>
+ * {@link Command#of(CharSequence)}, {@link Command#parse(CharSequence)} and other factories of
+ * {@link Command} intern bodies by {@link #getDefault()}, so the histories loaded from files do.
+ * Its capacity is the system property {@code poortoys.history.intern.size}, and 0 disables it.
+ */
+public final class CommandPool {
+
+	/**
+	 * Property key to set the capacity of the default pool.
+	 * This value is "poortoys.history.intern.size"
+	 */
+	public static final String PROPERTY_KEY_INTERN_SIZE = "poortoys.history.intern.size";
+
+	/**
+	 * The default capacity of the default pool.
+	 */
+	public static final int DEFAULT_INTERN_SIZE = 8192;
+
+	/**
+	 * The maximum length of interned bodies.
+	 */
+	public static final int MAX_LENGTH = 256;
+
+	/**
+	 * The number of slots of a set.
+	 */
+	static final int WAYS = 8;
+
+	private static final CommandPool DEFAULT =
+			new CommandPool(Integer.getInteger(PROPERTY_KEY_INTERN_SIZE, DEFAULT_INTERN_SIZE));
+
+	/**
+	 * Sets of slots, each ordered from the most recent.
+	 */
+	private final AtomicReferenceArray<String> slots;
+
+	/**
+	 * The number of slots of a set.
+	 */
+	private final int ways;
+
+	/**
+	 * The shift of the set index from a hash code, or 32 if there is one set.
+	 */
+	private final int shift;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder savedBytes = new LongAdder();
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param capacity the maximum number of bodies, rounded up to a power of two, 0 disables the pool
+	 */
+	public CommandPool(int capacity) {
+		if (capacity < 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		int length = capacity <= 1 ? capacity : Integer.highestOneBit(capacity - 1) << 1;
+		this.ways = Math.min(WAYS, Math.max(length, 1));
+		this.slots = new AtomicReferenceArray<>(length);
+		this.shift = 32 - Integer.numberOfTrailingZeros(Math.max(length / ways, 1));
+	}
+
+	/**
+	 * Obtains the pool shared by {@link Command}.
+	 *
+	 * @return the default pool, never null
+	 */
+	public static CommandPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Obtains the maximum number of bodies in this pool.
+	 *
+	 * @return the capacity, 0 if this pool is disabled
+	 */
+	public int capacity() {
+		return slots.length();
+	}
+
+	/**
+	 * Obtains the canonical string of a command body.
+	 *
+	 * @param body the command body, not null
+	 * @return the interned string equal to {@code body}, or a new string if it is not interned
+	 */
+	public String intern(CharSequence body) {
+		requireNonNull(body);
+		if (slots.length() == 0 || body.length() > MAX_LENGTH) {
+			return body.toString();
+		}
+		int hash = hash(body);
+		int first = set(hash) * ways;
+		int last = first + ways - 1;
+		for (int i = first; i <= last; i++) {
+			String interned = slots.get(i);
+			if (interned == null) {
+				break;
+			}
+			if (equals(interned, hash, body)) {
+				moveToFront(first, i, interned);
+				hit(interned);
+				return interned;
+			}
+		}
+		misses.increment();
+		String interned = body.toString();
+		// the least recent one is evicted
+		moveToFront(first, last, interned);
+		return interned;
+	}
+
+	/**
+	 * Moves a body to the front of its set, shifting the more recent ones.
+	 */
+	private void moveToFront(int first, int index, String body) {
+		for (int i = index; i > first; i--) {
+			slots.set(i, slots.get(i - 1));
+		}
+		slots.set(first, body);
+	}
+
+	private void hit(String body) {
+		hits.increment();
+		savedBytes.add(sizeOf(body.length()));
+	}
+
+	/**
+	 * Obtains the number of bodies found in this pool.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Obtains the number of bodies not found in this pool, except the bodies never interned.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Obtains the estimated bytes of the strings not retained because of this pool,
+	 * a string with an object header, a {@code char[]} and its characters for each hit.
+	 *
+	 * @return the saved bytes
+	 */
+	public long getSavedBytes() {
+		return savedBytes.sum();
+	}
+
+	/**
+	 * Obtains the number of bodies in this pool.
+	 *
+	 * @return the number of bodies, up to {@link #capacity()}
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			if (slots.get(i) != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all bodies and resets the statistics.
+	 */
+	public void clear() {
+		for (int i = 0; i < slots.length(); i++) {
+			slots.set(i, null);
+		}
+		hits.reset();
+		misses.reset();
+		savedBytes.reset();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CommandPool[size=" + size() + "/" + capacity() + ", hits=" + getHits()
+				+ ", misses=" + getMisses() + ", saved=" + getSavedBytes() + " bytes]";
+	}
+
+	/**
+	 * Computes the hash code of characters, same as {@link String#hashCode()}.
+	 */
+	private static int hash(CharSequence body) {
+		if (body instanceof String) {
+			// cached by the string
+			return body.hashCode();
+		}
+		int hash = 0;
+		for (int i = 0; i < body.length(); i++) {
+			hash = 31 * hash + body.charAt(i);
+		}
+		return hash;
+	}
+
+	/**
+	 * Obtains the set of a hash code by Fibonacci hashing, as similar commands have close hash codes.
+	 */
+	private int set(int hash) {
+		return shift == 32 ? 0 : (hash * 0x9E3779B9) >>> shift;
+	}
+
+	private static boolean equals(String interned, int hash, CharSequence body) {
+		if (interned.hashCode() != hash || interned.length() != body.length()) {
+			return false;
+		}
+		if (body instanceof String) {
+			return interned.equals(body);
+		}
+		for (int i = 0; i < interned.length(); i++) {
+			if (interned.charAt(i) != body.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the bytes of a string on a 64-bit JVM with compressed references.
+	 */
+	private static long sizeOf(int length) {
+		// the string object and the array header, and the characters aligned to 8 bytes
+		return 24L + ((16L + 2L * length + 7L) & ~7L);
+	}
+
+}
@@ -0,0 +1,81 @@
+package jp.coppermine.poortoys.history;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The history buffer of {@link AbstractHistory}.
+ * <p>
+ * A store publishes its contents as immutable newest-first lists, and notifies a
+ * {@link HistoryIndex} of each command entering and leaving it as described there.
+ * <p>
+ * Mutating methods are not thread-safe. {@link AbstractHistory} guards them and
+ * {@link #publish()} by its write lock. {@link #snapshot()} may be called from any thread.
+ */
+interface CommandStore {
+
+	/**
+	 * Obtains the maximum number of commands in this store.
+	 *
+	 * @return the capacity of this store
+	 */
+	int capacity();
+
+	/**
+	 * Obtains the published contents.
+	 *
+	 * @return an immutable newest-first list, or null if this store is modified after
+	 *         the contents are published last
+	 */
+	List<Command> snapshot();
+
+	/**
+	 * Publishes the current contents, if not yet.
+	 *
+	 * @return an immutable newest-first list, never null
+	 */
+	List<Command> publish();
+
+	/**
+	 * Adds commands in order, so the last one becomes the newest.
+	 * If the store overflows, the oldest commands are discarded.
+	 *
+	 * @param batch the commands to add ordered oldest-first, not null
+	 * @param index the index to notify, or null
+	 */
+	void addAll(List<Command> batch, HistoryIndex index);
+
+	/**
+	 * Removes the commands created at {@code expired} or before.
+	 *
+	 * @param expired the expiration timestamp, not null
+	 * @param index the index to notify, or null
+	 * @return the number of removed commands
+	 */
+	int removeExpired(LocalDateTime expired, HistoryIndex index);
+
+	/**
+	 * Removes all commands.
+	 *
+	 * @param index the index to notify, or null
+	 */
+	void clear(HistoryIndex index);
+
+	/**
+	 * Replaces all commands.
+	 * If {@code commands} has more commands than the capacity, the oldest ones are discarded.
+	 *
+	 * @param commands the new commands ordered newest-first, not null
+	 * @param index the index to notify, or null
+	 */
+	void replace(Collection<Command> commands, HistoryIndex index);
+
+	/**
+	 * Notifies an index of all current commands as entered, oldest-first.
+	 *
+	 * @param index the index to notify, not null
+	 */
+	void feed(HistoryIndex index);
+
+}
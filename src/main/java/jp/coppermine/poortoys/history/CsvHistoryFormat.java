@@ -0,0 +1,280 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.coppermine.poortoys.text.CsvReader;
+import jp.coppermine.poortoys.text.CsvWriter;
+
+/**
+ * The text format of history files, a command per line in CSV.
+ * <p>
+ * A line consists of the timestamp in ISO-8601 and the command body, <i>e.g.</i>
+ * {@code 2015-11-01T12:34:56.789,ls -l}. A command body with line separators is enclosed
+ * double-quotes and spans lines. If the charset allows, the file is read backwards from the end,
+ * so reading the newest commands does not depend on the size of the file. Otherwise, or if
+ * a command spans lines, the file is streamed from the beginning by {@link CsvReader}.
+ * <p>
+ * When a whole file is read by {@link #readAll(Path, Charset)}, <i>e.g.</i> to import an archive,
+ * a file of the parallel threshold or larger is split into chunks, and they are parsed in parallel
+ * on the common fork-join pool. The threshold is given by {@link #CsvHistoryFormat(long)}, or the
+ * system property {@code poortoys.history.file.parallel.threshold} in bytes, 16 MiB in the default.
+ * {@link #read(Path, Charset)} never parses in parallel, it reads only the newest commands.
+ * 
+ * @see Command#format()
+ */
+public class CsvHistoryFormat implements HistoryFormat {
+
+	/**
+	 * The name of this format, it is "csv".
+	 */
+	public static final String NAME = "csv";
+
+	public static final String PROPERTY_KEY_PARALLEL_THRESHOLD = "poortoys.history.file.parallel.threshold";
+
+	/**
+	 * The default size of a file to parse in parallel.
+	 */
+	private static final long DEFAULT_PARALLEL_THRESHOLD = 16L << 20;
+
+	/**
+	 * The default size of a chunk parsed in parallel.
+	 */
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * The size of a file to parse in parallel.
+	 */
+	private final long parallelThreshold;
+
+	/**
+	 * The approximate size of a chunk parsed in parallel.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * Creates an instance of this format, the parallel threshold is the system property
+	 * {@code poortoys.history.file.parallel.threshold}.
+	 */
+	public CsvHistoryFormat() {
+		this(Long.getLong(PROPERTY_KEY_PARALLEL_THRESHOLD, DEFAULT_PARALLEL_THRESHOLD));
+	}
+
+	/**
+	 * Creates an instance of this format.
+	 * 
+	 * @param parallelThreshold the size of a file in bytes to parse in parallel, {@code Long.MAX_VALUE}
+	 *        to parse always sequentially
+	 */
+	public CsvHistoryFormat(long parallelThreshold) {
+		this(parallelThreshold, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates an instance of this format.
+	 * 
+	 * @param parallelThreshold the size of a file in bytes to parse in parallel
+	 * @param chunkSize the approximate size of a chunk parsed in parallel, positive
+	 */
+	CsvHistoryFormat(long parallelThreshold, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize: " + chunkSize);
+		}
+		this.parallelThreshold = parallelThreshold;
+		this.chunkSize = chunkSize;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#getName()
+	 */
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * Tests whether a file is in this format.
+	 * A text file starts with an ASCII character or a byte order mark.
+	 * 
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#accepts(byte[])
+	 */
+	@Override
+	public boolean accepts(byte[] header) {
+		int b = header[0] & 0xff;
+		return b < 0x80 || b == 0xef || b == 0xfe || b == 0xff;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#read(java.nio.file.Path, java.nio.charset.Charset)
+	 */
+	@Override
+	public Records read(Path path, Charset charset) throws IOException {
+		if (!ReverseLineReader.supports(charset)) {
+			return readForward(path, charset, 0);
+		}
+		ReverseLineReader reader = new ReverseLineReader(path, charset);
+		return new Records() {
+			
+			/**
+			 * The number of commands returned.
+			 */
+			private int count;
+			
+			/**
+			 * Commands read from the beginning, after a command spanning lines is found.
+			 */
+			private Records forward;
+			
+			@Override
+			public Command previous() throws IOException {
+				if (forward != null) {
+					return forward.previous();
+				}
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					if (line.isEmpty()) {
+						continue;
+					}
+					if (isPartial(line)) {
+						// a part of a command spanning lines, it cannot be parsed backwards
+						reader.close();
+						forward = readForward(path, charset, count);
+						return forward.previous();
+					}
+					count++;
+					return Command.parse(line);
+				}
+				return null;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				reader.close();
+			}
+			
+		};
+	}
+	
+	/**
+	 * Opens a file to read all of its commands.
+	 * A file of the parallel threshold or larger is parsed in parallel.
+	 * 
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#readAll(java.nio.file.Path, java.nio.charset.Charset)
+	 */
+	@Override
+	public Records readAll(Path path, Charset charset) throws IOException {
+		if (ReverseLineReader.supports(charset) && Files.size(path) >= parallelThreshold) {
+			return new ChunkedRecords(path, charset, chunkSize, skip -> readForward(path, charset, skip));
+		}
+		return read(path, charset);
+	}
+	
+	/**
+	 * Tests whether a line is a part of a command spanning lines.
+	 * Either the first line or the last line of such a command has an odd number of quotes.
+	 * 
+	 * @param line a line
+	 * @return {@code true} if the line has an odd number of quotes
+	 */
+	static boolean isPartial(String line) {
+		boolean odd = false;
+		for (int i = line.indexOf('"'); i >= 0; i = line.indexOf('"', i + 1)) {
+			odd = !odd;
+		}
+		return odd;
+	}
+	
+	/**
+	 * Reads all commands from the beginning of a file.
+	 * 
+	 * @param path the path to the file
+	 * @param charset the charset of the file
+	 * @param skip the number of the newest commands to skip
+	 * @return the commands of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static Records readForward(Path path, Charset charset, int skip) throws IOException {
+		try (CsvReader reader = new CsvReader(Files.newBufferedReader(path, charset))) {
+			return readForward(reader, skip);
+		}
+	}
+	
+	/**
+	 * Reads all commands from the beginning of a CSV stream.
+	 * 
+	 * @param reader the CSV stream
+	 * @param skip the number of the newest commands to skip
+	 * @return the commands of the stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static Records readForward(CsvReader reader, int skip) throws IOException {
+		List<Command> commands = new ArrayList<>();
+		for (Command command = Command.read(reader); command != null; command = Command.read(reader)) {
+			commands.add(command);
+		}
+		return new Records() {
+			
+			private int index = Math.max(commands.size() - skip, 0);
+			
+			@Override
+			public Command previous() {
+				return index > 0 ? commands.get(--index) : null;
+			}
+			
+			@Override
+			public void close() {
+				// nothing to close
+			}
+			
+		};
+	}
+
+	/**
+	 * Decodes all commands from the beginning of the bytes.
+	 * 
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#decode(java.nio.ByteBuffer, java.nio.charset.Charset)
+	 */
+	@Override
+	public Records decode(ByteBuffer bytes, Charset charset) throws IOException {
+		return readForward(new CsvReader(charset.newDecoder().decode(bytes.duplicate())), 0);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#encode(java.util.List, java.nio.charset.Charset, boolean)
+	 */
+	@Override
+	public ByteBuffer encode(List<Command> commands, Charset charset, boolean header) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(commands.size() * 48);
+		try (CsvWriter writer = new CsvWriter(new OutputStreamWriter(bytes, charset.newEncoder()))) {
+			for (Command command : commands) {
+				command.write(writer);
+			}
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryFormat#write(java.nio.file.Path, java.nio.charset.Charset, java.util.List, boolean)
+	 */
+	@Override
+	public void write(Path path, Charset charset, List<Command> commands, boolean append) throws IOException {
+		try (CsvWriter writer = new CsvWriter(
+				Files.newBufferedWriter(path, charset, CREATE, WRITE, append ? APPEND : TRUNCATE_EXISTING))) {
+			for (Command command : commands) {
+				command.write(writer);
+			}
+		}
+	}
+
+}
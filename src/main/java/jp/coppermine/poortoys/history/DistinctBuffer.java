@@ -0,0 +1,492 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A history buffer holding each command body once, it is the history buffer of
+ * {@link AbstractHistory} in deduplicating mode.
+ * <p>
+ * Commands are kept in a hash index from the body to its most recent command, in the order of
+ * recency. Appending a repeated body replaces the older command and moves it to the front, so
+ * repeats never use up the capacity, and appending takes constant time.
+ * <p>
+ * The commands are also written to a log of chunks of {@value #CHUNK_SIZE} slots, and each slot
+ * has the version which removed its command, 0 while it is alive. A slot is written once before
+ * the version containing it is published, and its removal is stamped with a version not published
+ * yet, so every {@link Snapshot} shares the chunks with the others and never changes. Modifications
+ * publish a new small version object, and the log is compacted when removed commands fill half of it.
+ * <p>
+ * Mutating methods are not thread-safe. {@link AbstractHistory} guards them by its write lock.
+ * {@link #snapshot()} may be called from any thread.
+ */
+final class DistinctBuffer implements CommandStore {
+
+	/**
+	 * The number of bits of the slot index in a chunk.
+	 */
+	private static final int CHUNK_BITS = 6;
+
+	/**
+	 * The number of slots in a chunk.
+	 */
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/**
+	 * The mask of the slot index in a chunk.
+	 */
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * The maximum number of commands in this buffer.
+	 */
+	private final int capacity;
+
+	/**
+	 * Commands by the body, oldest-first.
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+	/**
+	 * The sequence number which the next added command gets.
+	 */
+	private long next;
+
+	/**
+	 * The most recent command, or null if empty.
+	 */
+	private Command newest;
+
+	/**
+	 * Whether timestamps never decrease from the oldest command to the newest.
+	 */
+	private boolean ordered = true;
+
+	/**
+	 * The chunks of the log, shared with published versions.
+	 */
+	private Command[][] chunks = new Command[0][];
+
+	/**
+	 * The removal stamps of the slots of {@code chunks}.
+	 */
+	private long[][] stamps = new long[0][];
+
+	/**
+	 * The position of the first slot of {@code chunks[0]}.
+	 */
+	private long base;
+
+	/**
+	 * The position which the next added command is written to.
+	 */
+	private long hi;
+
+	/**
+	 * The latest published version.
+	 */
+	private volatile Snapshot current = new Snapshot(chunks, stamps, 0L, 0L, 0L, 0L, 0);
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param capacity the maximum number of commands, 0 or above
+	 */
+	DistinctBuffer(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#capacity()
+	 */
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Obtains the current contents of this buffer.
+	 * It is always published.
+	 *
+	 * @return an immutable newest-first snapshot, never null
+	 */
+	@Override
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#publish()
+	 */
+	@Override
+	public Snapshot publish() {
+		return current;
+	}
+
+	/**
+	 * Adds commands in order, so the last one becomes the newest.
+	 * <p>
+	 * If the body of a command is in this buffer already, the older command is removed.
+	 * If the buffer overflows, the oldest commands are discarded.
+	 *
+	 * @see jp.coppermine.poortoys.history.CommandStore#addAll(java.util.List, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void addAll(List<Command> batch, HistoryIndex index) {
+		if (capacity == 0 || batch.isEmpty()) {
+			return;
+		}
+		for (Command command : batch) {
+			add(requireNonNull(command), index);
+		}
+		commit();
+	}
+
+	/**
+	 * Removes the commands created at {@code expired} or before.
+	 * <p>
+	 * If the buffer is ordered by timestamp, the expired commands are removed from the oldest
+	 * and it stops at the first alive one. Otherwise all commands are filtered.
+	 *
+	 * @see jp.coppermine.poortoys.history.CommandStore#removeExpired(java.time.LocalDateTime, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public int removeExpired(LocalDateTime expired, HistoryIndex index) {
+		int count = 0;
+		for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			Entry entry = i.next();
+			if (entry.command.isAfter(expired)) {
+				if (ordered) {
+					break;
+				}
+				continue;
+			}
+			i.remove();
+			remove(entry, index);
+			count++;
+		}
+		if (count > 0) {
+			if (entries.isEmpty()) {
+				newest = null;
+				ordered = true;
+			}
+			commit();
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#clear(jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void clear(HistoryIndex index) {
+		reset(index);
+		commit();
+	}
+
+	/**
+	 * Replaces all commands.
+	 * <p>
+	 * If a body appears more than once in {@code commands}, only the newest one is kept.
+	 * The new commands are published at once, so readers never observe an empty buffer between
+	 * the old and the new commands.
+	 *
+	 * @see jp.coppermine.poortoys.history.CommandStore#replace(java.util.Collection, jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void replace(Collection<Command> commands, HistoryIndex index) {
+		Map<String, Command> distinct = new LinkedHashMap<>();
+		for (Command command : commands) {
+			if (distinct.size() >= capacity) {
+				break;
+			}
+			distinct.putIfAbsent(command.getCommand(), requireNonNull(command));
+		}
+		List<Command> oldest = new ArrayList<>(distinct.values());
+		reset(index);
+		for (int i = oldest.size() - 1; i >= 0; i--) {
+			add(oldest.get(i), index);
+		}
+		commit();
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.CommandStore#feed(jp.coppermine.poortoys.history.HistoryIndex)
+	 */
+	@Override
+	public void feed(HistoryIndex index) {
+		for (Entry entry : entries.values()) {
+			index.added(entry.command, entry.sequence);
+		}
+	}
+
+	/**
+	 * Adds a command as the newest one without publishing it.
+	 */
+	private void add(Command command, HistoryIndex index) {
+		if (newest != null && command.isBefore(newest)) {
+			ordered = false;
+		}
+		newest = command;
+		Entry entry = new Entry(command, next++, write(command));
+		Entry older = entries.remove(command.getCommand());
+		entries.put(command.getCommand(), entry);
+		if (index != null) {
+			// The newer command enters first, so the older one is never the newest of its body.
+			index.added(entry.command, entry.sequence);
+		}
+		if (older != null) {
+			remove(older, index);
+		}
+		if (entries.size() > capacity) {
+			Iterator<Entry> eldest = entries.values().iterator();
+			Entry evicted = eldest.next();
+			eldest.remove();
+			remove(evicted, index);
+		}
+	}
+
+	/**
+	 * Stamps the slot of a command removed from {@code entries} with the next version.
+	 */
+	private void remove(Entry entry, HistoryIndex index) {
+		long offset = entry.position - base;
+		stamps[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)] = current.version + 1;
+		if (index != null) {
+			index.removed(entry.command, entry.sequence);
+		}
+	}
+
+	/**
+	 * Removes all commands without publishing, the log is started again in new chunks.
+	 */
+	private void reset(HistoryIndex index) {
+		if (index != null) {
+			for (Entry entry : entries.values()) {
+				index.removed(entry.command, entry.sequence);
+			}
+		}
+		entries.clear();
+		newest = null;
+		ordered = true;
+		chunks = new Command[0][];
+		stamps = new long[0][];
+		base = 0L;
+		hi = 0L;
+	}
+
+	/**
+	 * Writes a command to the next slot of the log.
+	 *
+	 * @return the position of the slot
+	 */
+	private long write(Command command) {
+		long offset = hi - base;
+		if ((offset & CHUNK_MASK) == 0 && (offset >>> CHUNK_BITS) == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunks.length + 1);
+			chunks[chunks.length - 1] = new Command[CHUNK_SIZE];
+			stamps = Arrays.copyOf(stamps, stamps.length + 1);
+			stamps[stamps.length - 1] = new long[CHUNK_SIZE];
+		}
+		chunks[(int) (offset >>> CHUNK_BITS)][(int) (offset & CHUNK_MASK)] = command;
+		return hi++;
+	}
+
+	/**
+	 * Publishes the current contents as a new version.
+	 * <p>
+	 * The chunks before the oldest command are dropped, and the log is compacted into new chunks
+	 * if removed commands are more than the alive ones.
+	 */
+	private void commit() {
+		long lo = entries.isEmpty() ? hi : entries.values().iterator().next().position;
+		if (hi - lo > 2L * entries.size() + CHUNK_SIZE) {
+			// The published versions keep the old chunks, so the alive commands are copied.
+			chunks = new Command[0][];
+			stamps = new long[0][];
+			base = 0L;
+			hi = 0L;
+			for (Entry entry : entries.values()) {
+				entry.position = write(entry.command);
+			}
+			lo = 0L;
+		} else {
+			int dead = (int) ((lo - base) >>> CHUNK_BITS);
+			if (dead > 0) {
+				chunks = Arrays.copyOfRange(chunks, dead, chunks.length);
+				stamps = Arrays.copyOfRange(stamps, dead, stamps.length);
+				base += (long) dead << CHUNK_BITS;
+			}
+		}
+		current = new Snapshot(chunks, stamps, base, lo, hi, current.version + 1, entries.size());
+	}
+
+	/**
+	 * A command with its sequence number and its position in the log.
+	 */
+	private static final class Entry {
+
+		private final Command command;
+
+		private final long sequence;
+
+		private long position;
+
+		private Entry(Command command, long sequence, long position) {
+			this.command = command;
+			this.sequence = sequence;
+			this.position = position;
+		}
+
+	}
+
+	/**
+	 * An immutable version of the buffer, viewed as a newest-first list.
+	 * <p>
+	 * The slots between the oldest and the newest command may hold removed commands, so
+	 * the list is indexed once by the first {@link #get(int)}. Iterating it skips them without indexing.
+	 */
+	static final class Snapshot extends AbstractList<Command> {
+
+		/**
+		 * The chunk directory, the chunks may be shared with other versions.
+		 */
+		private final Command[][] chunks;
+
+		/**
+		 * The removal stamps of the slots of {@code chunks}.
+		 */
+		private final long[][] stamps;
+
+		/**
+		 * The position of the first slot of {@code chunks[0]}.
+		 */
+		private final long base;
+
+		/**
+		 * The position of the oldest command.
+		 */
+		private final long lo;
+
+		/**
+		 * The position next to the newest command.
+		 */
+		private final long hi;
+
+		/**
+		 * The version of this snapshot, a slot stamped with a greater version is alive here.
+		 */
+		private final long version;
+
+		private final int size;
+
+		/**
+		 * The commands newest-first, or null until indexed.
+		 */
+		private volatile Command[] indexed;
+
+		private Snapshot(Command[][] chunks, long[][] stamps, long base, long lo, long hi, long version, int size) {
+			this.chunks = chunks;
+			this.stamps = stamps;
+			this.base = base;
+			this.lo = lo;
+			this.hi = hi;
+			this.version = version;
+			this.size = size;
+		}
+
+		/**
+		 * Obtains the command at a position, or null if it is removed in this version.
+		 */
+		private Command at(long position) {
+			long offset = position - base;
+			int chunk = (int) (offset >>> CHUNK_BITS);
+			int slot = (int) (offset & CHUNK_MASK);
+			// A stamp written after this version is greater than it, or not visible yet as 0.
+			long stamp = stamps[chunk][slot];
+			return stamp == 0L || stamp > version ? chunks[chunk][slot] : null;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public Command get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+			}
+			Command[] array = indexed;
+			if (array == null) {
+				array = new Command[size];
+				int i = 0;
+				for (Command command : this) {
+					array[i++] = command;
+				}
+				indexed = array;
+			}
+			return array[index];
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#iterator()
+		 */
+		@Override
+		public Iterator<Command> iterator() {
+			return new Iterator<Command>() {
+
+				private long position = hi;
+
+				private Command next = advance();
+
+				private Command advance() {
+					while (position > lo) {
+						Command command = at(--position);
+						if (command != null) {
+							return command;
+						}
+					}
+					return null;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Command next() {
+					if (next == null) {
+						throw new NoSuchElementException();
+					}
+					Command command = next;
+					next = advance();
+					return command;
+				}
+
+			};
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return size;
+		}
+
+	}
+
+}
@@ -1,23 +1,73 @@
 package jp.coppermine.poortoys.history;
 
 import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.Collections.reverse;
-import static java.util.stream.Collectors.toList;
+import static java.util.Objects.requireNonNull;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An implementation of {@link History} storing text file.
  * This is most similar to Korn Shell history features.
+ * <p>
+ * The history file holds commands oldest-first in a {@link HistoryFormat}, a command per line
+ * in CSV in the default. The format is {@link #FileHistory(Path, Charset, int, boolean, boolean, HistoryFormat)}
+ * or the system property {@code poortoys.history.file.format} for other constructors, and a history
+ * file in another format is converted by the next save. In the default, {@link #save()}
+ * rewrites the whole file. In journal mode, {@link #save()} only appends the commands appended
+ * since the last save to the end of the file, and {@link #load()} replays the file keeping the
+ * newest {@link #getMaxSize()} commands. The file is compacted to the current history buffer
+ * when it has grown to twice the maximum size, or the history buffer is modified except by
+ * appending (<i>e.g.</i> {@link #clear()} or {@link #shrink(LocalDateTime)}).
+ * Journal mode is enabled by {@link #FileHistory(Path, Charset, int, boolean, boolean)} or the
+ * system property {@code poortoys.history.file.journal} for other constructors.
+ * <p>
+ * The history file is rewritten through a temporary file replacing it atomically. When the
+ * writes are forced to the storage device is a {@link SyncPolicy}, given by the constructor or
+ * the system property {@code poortoys.history.file.sync} ({@code never}, {@code always} or
+ * {@code group}) with {@code poortoys.history.file.sync.interval.millis} and
+ * {@code poortoys.history.file.sync.records} for group commit.
+ * <p>
+ * {@link #loadAsync()} and {@link #saveAsync()} read and write the history file by
+ * {@link AsynchronousFileChannel}, so no thread waits for the I/O. Asynchronous saves are written
+ * in order of the calls, and {@link #load()} and {@link #save()} wait for them.
+ * <p>
+ * In segmented mode, commands are stored in segment files of periods of time (<i>e.g.</i> a day),
+ * and the history file is a manifest listing them. {@link #save()} appends the new commands to
+ * the segments of their periods like journal mode, {@link #shrink(LocalDateTime)} does not rewrite
+ * the history and the next save deletes the segments holding only expired commands, and
+ * {@link #load()} reads the segments from the newest until the history buffer is full, skipping
+ * expired commands. A history file of the other modes is converted by the next save. The length of
+ * a period is given by the constructor or the system property {@code poortoys.history.file.segment}
+ * ({@code none}, {@code hourly}, {@code daily} or an ISO-8601 duration like {@code PT6H}).
+ * {@link #loadAsync()} and {@link #saveAsync()} run {@link #load()} and {@link #save()} on the
+ * I/O executor in this mode.
  *
  */
 public class FileHistory extends AbstractHistory {
@@ -25,6 +75,28 @@ public class FileHistory extends AbstractHistory {
     public static final String PROPERTY_KEY_HISTORY_FILE_PATH = "poortoys.history.file.path";
     
     public static final String PROPERTY_KEY_HISTORY_FILE_CHARSET = "poortoys.history.file.charset";
+    
+    public static final String PROPERTY_KEY_HISTORY_FILE_JOURNAL = "poortoys.history.file.journal";
+    
+    public static final String PROPERTY_KEY_HISTORY_FILE_FORMAT = "poortoys.history.file.format";
+    
+    public static final String PROPERTY_KEY_HISTORY_FILE_SYNC = "poortoys.history.file.sync";
+    
+    public static final String PROPERTY_KEY_HISTORY_FILE_SYNC_INTERVAL = "poortoys.history.file.sync.interval.millis";
+    
+    public static final String PROPERTY_KEY_HISTORY_FILE_SYNC_RECORDS = "poortoys.history.file.sync.records";
+    
+    public static final String PROPERTY_KEY_HISTORY_FILE_SEGMENT = "poortoys.history.file.segment";
+    
+    /**
+     * The default interval of forces in group commit, in milliseconds.
+     */
+    private static final long DEFAULT_SYNC_INTERVAL = 1000L;
+    
+    /**
+     * The default number of commands forced at once in group commit.
+     */
+    private static final int DEFAULT_SYNC_RECORDS = 100;
 	
     
     /**
@@ -66,6 +138,69 @@ public class FileHistory extends AbstractHistory {
 	 */
 	private final Charset charset;
 	
+	/**
+	 * Whether {@link #save()} appends the new commands to the history file.
+	 */
+	private final boolean journal;
+	
+	/**
+	 * The format of the history file.
+	 */
+	private final HistoryFormat format;
+	
+	/**
+	 * Commands appended but not saved yet, oldest-first.
+	 */
+	private final Queue<Command> unsaved = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Whether the history file must be rewritten by the next save, modified holding this object.
+	 * The history file is unknown until it is loaded.
+	 */
+	private volatile boolean compaction = true;
+	
+	/**
+	 * The number of commands in the history file, guarded by this object.
+	 */
+	private int journalLength;
+	
+	/**
+	 * Whether the last read kept commands appended while loading, guarded by this object.
+	 */
+	private boolean kept;
+	
+	/**
+	 * The last asynchronous write of the history file, guarded by this object.
+	 */
+	private CompletableFuture<Void> writing = CompletableFuture.completedFuture(null);
+	
+	/**
+	 * Forces the writes of the history file.
+	 */
+	private final GroupCommit commit;
+	
+	private final SyncPolicy sync;
+	
+	/**
+	 * The segments in segmented mode, or null, guarded by this object.
+	 */
+	private final HistorySegments segments;
+	
+	/**
+	 * The length of the period of a segment, or null.
+	 */
+	private final Duration segmentLength;
+	
+	/**
+	 * The number of the saves called.
+	 */
+	private final AtomicLong requested = new AtomicLong();
+	
+	/**
+	 * The number of the saves called before the last save started, guarded by this object.
+	 */
+	private long saved;
+	
 	/**
 	 * Creates an instance of this class.
 	 * {code path} is obtained by system property, {@code poortoys.file.path}
@@ -118,9 +253,171 @@ public class FileHistory extends AbstractHistory {
 	 * @param maxSize the maximum size of history buffer, 0 or above
 	 */
 	public FileHistory(Path path, Charset charset, int maxSize) {
-		super(maxSize);
+		this(path, charset, maxSize, Boolean.getBoolean(PROPERTY_KEY_HISTORY_DISTINCT));
+	}
+	
+	/**
+	 * Creates an instance of this class, provides {@code path}, {@code charset}, {@code maxSize}
+	 * and the mode.
+	 * 
+	 * @param path the path to history file, not null
+	 * @param charset character set of history file, default value is {@code UTF-8}
+	 * @param maxSize the maximum size of history buffer, 0 or above
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 */
+	public FileHistory(Path path, Charset charset, int maxSize, boolean distinct) {
+		this(path, charset, maxSize, distinct, Boolean.getBoolean(PROPERTY_KEY_HISTORY_FILE_JOURNAL));
+	}
+	
+	/**
+	 * Creates an instance of this class, provides {@code path}, {@code charset}, {@code maxSize}
+	 * and the modes.
+	 * 
+	 * @param path the path to history file, not null
+	 * @param charset character set of history file, default value is {@code UTF-8}
+	 * @param maxSize the maximum size of history buffer, 0 or above
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 * @param journal {@code true} if saving appends the new commands to the history file
+	 */
+	public FileHistory(Path path, Charset charset, int maxSize, boolean distinct, boolean journal) {
+		this(path, charset, maxSize, distinct, journal, format());
+	}
+	
+	/**
+	 * Creates an instance of this class, provides {@code path}, {@code charset}, {@code maxSize},
+	 * the modes and the format.
+	 * 
+	 * @param path the path to history file, not null
+	 * @param charset character set of history file, default value is {@code UTF-8}
+	 * @param maxSize the maximum size of history buffer, 0 or above
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 * @param journal {@code true} if saving appends the new commands to the history file
+	 * @param format the format of the history file, not null
+	 */
+	public FileHistory(Path path, Charset charset, int maxSize, boolean distinct, boolean journal, HistoryFormat format) {
+		this(path, charset, maxSize, distinct, journal, format, syncPolicy());
+	}
+	
+	/**
+	 * Creates an instance of this class, provides {@code path}, {@code charset}, {@code maxSize},
+	 * the modes, the format and the sync policy.
+	 * 
+	 * @param path the path to history file, not null
+	 * @param charset character set of history file, default value is {@code UTF-8}
+	 * @param maxSize the maximum size of history buffer, 0 or above
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 * @param journal {@code true} if saving appends the new commands to the history file
+	 * @param format the format of the history file, not null
+	 * @param sync when the writes of the history file are forced, not null
+	 */
+	public FileHistory(Path path, Charset charset, int maxSize, boolean distinct, boolean journal,
+			HistoryFormat format, SyncPolicy sync) {
+		this(path, charset, maxSize, distinct, journal, format, sync, segmentLength());
+	}
+	
+	/**
+	 * Creates an instance of this class, provides {@code path}, {@code charset}, {@code maxSize},
+	 * the modes, the format, the sync policy and the period of segments.
+	 * 
+	 * @param path the path to history file, not null
+	 * @param charset character set of history file, default value is {@code UTF-8}
+	 * @param maxSize the maximum size of history buffer, 0 or above
+	 * @param distinct {@code true} if the history buffer holds each command body once
+	 * @param journal {@code true} if saving appends the new commands to the history file,
+	 *        ignored in segmented mode
+	 * @param format the format of the history file, or the segments in segmented mode, not null
+	 * @param sync when the writes of the history file are forced, not null
+	 * @param segment the length of the period of a segment in whole seconds,
+	 *        or null if the history is stored in a single file
+	 * @throws IllegalArgumentException {@code segment} is not positive whole seconds
+	 */
+	public FileHistory(Path path, Charset charset, int maxSize, boolean distinct, boolean journal,
+			HistoryFormat format, SyncPolicy sync, Duration segment) {
+		super(maxSize, distinct);
 		this.path = path;
 		this.charset = charset;
+		this.journal = journal;
+		this.format = requireNonNull(format);
+		this.sync = requireNonNull(sync);
+		this.commit = new GroupCommit(path, sync);
+		this.segmentLength = segment;
+		this.segments = segments(segment);
+	}
+	
+	/**
+	 * Creates the segments of a period.
+	 * 
+	 * @param length the length of the period, or null
+	 * @return the segments, or null if {@code length} is null
+	 */
+	private HistorySegments segments(Duration length) {
+		if (length == null) {
+			return null;
+		}
+		if (length.isNegative() || length.isZero() || length.getNano() != 0) {
+			throw new IllegalArgumentException("segment: " + length);
+		}
+		return new HistorySegments(path, length, format, charset, sync, commit);
+	}
+	
+	/**
+	 * Obtains the format of the history file by system property, CSV if it is unknown.
+	 * 
+	 * @return the format, never null
+	 */
+	private static HistoryFormat format() {
+		try {
+			return HistoryFormat.of(System.getProperty(PROPERTY_KEY_HISTORY_FILE_FORMAT, CsvHistoryFormat.NAME));
+		} catch (IllegalArgumentException e) {
+			return HistoryFormat.of(CsvHistoryFormat.NAME);
+		}
+	}
+	
+	/**
+	 * Obtains the length of the period of a segment by system properties.
+	 * If the property is invalid, segmented mode is disabled.
+	 * 
+	 * @return the length, or null if segmented mode is disabled
+	 */
+	private static Duration segmentLength() {
+		String length = System.getProperty(PROPERTY_KEY_HISTORY_FILE_SEGMENT, "none");
+		switch (length.toLowerCase(Locale.ROOT)) {
+		case "none":
+			return null;
+		case "hourly":
+			return Duration.ofHours(1L);
+		case "daily":
+			return Duration.ofDays(1L);
+		default:
+			Duration parsed;
+			try {
+				parsed = Duration.parse(length);
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+			return parsed.isNegative() || parsed.isZero() || parsed.getNano() != 0 ? null : parsed;
+		}
+	}
+	
+	/**
+	 * Obtains the sync policy by system properties.
+	 * If a property is invalid, its default is used, {@code never} for the policy.
+	 * 
+	 * @return the sync policy, never null
+	 */
+	private static SyncPolicy syncPolicy() {
+		String mode = System.getProperty(PROPERTY_KEY_HISTORY_FILE_SYNC, "never");
+		switch (mode.toLowerCase(Locale.ROOT)) {
+		case "always":
+			return SyncPolicy.always();
+		case "group":
+			long interval = Long.getLong(PROPERTY_KEY_HISTORY_FILE_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL);
+			int records = Integer.getInteger(PROPERTY_KEY_HISTORY_FILE_SYNC_RECORDS, DEFAULT_SYNC_RECORDS);
+			return SyncPolicy.group(Duration.ofMillis(interval < 0L ? DEFAULT_SYNC_INTERVAL : interval),
+					records <= 0 ? DEFAULT_SYNC_RECORDS : records);
+		default:
+			return SyncPolicy.never();
+		}
 	}
 	
 	/**
@@ -140,42 +437,531 @@ public class FileHistory extends AbstractHistory {
 	public Charset getCharset() {
 		return charset;
 	}
-
+	
+	/**
+	 * Obtains whether saving appends the new commands to the history file.
+	 * 
+	 * @return {@code true} if it is in journal mode, otherwise {@code false}
+	 */
+	public boolean isJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Obtains when the writes of history file are forced to the storage device.
+	 * 
+	 * @return the sync policy, never null
+	 */
+	public SyncPolicy getSyncPolicy() {
+		return sync;
+	}
+	
+	/**
+	 * Obtains the length of the period of a segment in segmented mode.
+	 * 
+	 * @return the length, or empty if the history is stored in a single file
+	 */
+	public Optional<Duration> getSegmentLength() {
+		return Optional.ofNullable(segmentLength);
+	}
+	
+	/**
+	 * Obtains the format of history file.
+	 * 
+	 * @return the format of history file, never null
+	 */
+	public HistoryFormat getFormat() {
+		return format;
+	}
+	
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.AbstractHistory#append(jp.coppermine.poortoys.history.Command)
+	 */
+	@Override
+	public void append(Command command) {
+		super.append(command);
+		if (journal || segments != null) {
+			unsaved.offer(command);
+		}
+	}
+	
 	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.AbstractHistory#clear()
+	 */
+	@Override
+	public synchronized void clear() {
+		super.clear();
+		compaction = true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.AbstractHistory#shrink(java.time.LocalDateTime)
+	 */
+	@Override
+	public synchronized void shrink(LocalDateTime expired) {
+		List<Command> before = list();
+		super.shrink(expired);
+		if (segments != null) {
+			// the expired commands are skipped by loads, and their segments are deleted by the next save
+			segments.expire(expired);
+		} else if (list() != before) {
+			compaction = true;
+		}
+	}
+
+	/**
+	 * Loads the newest {@link #getMaxSize()} commands in the history file.
+	 * In deduplicating mode, it loads the newest {@link #getMaxSize()} distinct commands.
+	 * <p>
+	 * The format of the history file is detected by its leading bytes. If the format allows,
+	 * the history file is read backwards from the end and it stops when enough commands are
+	 * read, so the cost does not depend on the size of the file.
+	 * 
 	 * @see jp.coppermine.poortoys.history.History#load()
 	 */
 	@Override
 	public synchronized void load() {
-		try (Stream<String> lines = Files.lines(path, charset)) {
-			List<Command> commands = lines
-					.filter(e -> e != null)
-					.map(Command::parse)
-					.limit(getMaxSize())
-					.collect(toList());
-			reverse(commands);
-			getCommands().clear();
-			getCommands().addAll(commands);
+		awaitWriting();
+		try {
+			if (segments != null && (HistorySegments.isManifest(path) || Files.notExists(path) || Files.size(path) == 0L)) {
+				segments.readManifest();
+				read(segments.records());
+				unsaved.clear();
+				// the segments beyond the history buffer are deleted by the next save,
+				// and the commands appended while loading are saved by rewriting the segments
+				compaction = segments.isForeign() || kept;
+				return;
+			}
+			if (segments != null) {
+				// a history file of the other modes, replaced by the segments
+				segments.reset();
+			}
+			HistoryFormat detected = HistoryFormat.detect(path).orElse(format);
+			boolean whole = read(path, detected);
+			unsaved.clear();
+			// the history file has more commands than the history buffer, or is in another format,
+			// or is replaced by the segments, or misses the commands appended while loading,
+			// so it is rewritten by the next save
+			compaction = !whole || kept || !detected.getName().equals(format.getName()) || segments != null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Imports commands from a file in any registered format, instead of the history file.
+	 * <p>
+	 * The history buffer is replaced by the newest commands in the file like {@link #load()},
+	 * and the history file is rewritten by the next save. The file is read by
+	 * {@link HistoryFormat#readAll(Path, java.nio.charset.Charset)}, so a large file may be parsed in parallel.
+	 * 
+	 * @param source the path to the file, not null
+	 * @throws IllegalArgumentException the format of the file is unknown
+	 */
+	public synchronized void importFrom(Path source) {
+		requireNonNull(source);
+		try {
+			read(HistoryFormat.detect(source).orElse(format).readAll(source, charset));
+			unsaved.clear();
+			compaction = true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Exports the history buffer to a file in the format.
+	 * 
+	 * @param target the path to the file, not null
+	 * @param format the format of the file, not null
+	 */
+	public void exportTo(Path target, HistoryFormat format) {
+		requireNonNull(target);
+		requireNonNull(format);
+		List<Command> commands = new ArrayList<>(list());
+		reverse(commands);
+		try {
+			format.write(target, charset, commands, false);
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		}
 	}
+	
+	/**
+	 * Reads the newest commands in a file to the history buffer.
+	 * 
+	 * @param source the path to the file
+	 * @param format the format of the file
+	 * @return {@code true} if all commands in the file are read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean read(Path source, HistoryFormat format) throws IOException {
+		return read(format.read(source, charset));
+	}
+	
+	/**
+	 * Reads the newest commands to the history buffer.
+	 * Commands appended while loading asynchronously are kept by {@link #replaceCommands(java.util.Collection)}.
+	 * 
+	 * @param source the commands of a file, closed by this method
+	 * @return {@code true} if all commands are read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean read(HistoryFormat.Records source) throws IOException {
+		List<Command> commands = new ArrayList<>();
+		Set<String> bodies = new HashSet<>();
+		boolean whole;
+		try (HistoryFormat.Records records = source) {
+			for (Command command = null; (isDistinct() ? bodies.size() : commands.size()) < getMaxSize()
+					&& (command = records.previous()) != null;) {
+				commands.add(command);
+				bodies.add(command.getCommand());
+			}
+			whole = records.previous() == null;
+		}
+		// the oldest commands are discarded if the file has more than the maximum size
+		kept = replaceCommands(commands);
+		journalLength = commands.size();
+		return whole;
+	}
 
-	/* (non-Javadoc)
+	/**
+	 * Loads the history file asynchronously, like {@link #load()}.
+	 * <p>
+	 * The whole history file is read after the asynchronous saves called before. Commands
+	 * appended after this method is called are kept after the loaded commands, and saved by the next
+	 * save. In segmented mode, {@link #load()} runs on the I/O executor keeping them likewise.
+	 * 
+	 * @see jp.coppermine.poortoys.history.AbstractHistory#loadAsync()
+	 */
+	@Override
+	public CompletableFuture<Void> loadAsync() {
+		if (segments != null) {
+			return super.loadAsync();
+		}
+		Set<Command> mark = loadMark();
+		CompletableFuture<Void> previous;
+		synchronized (this) {
+			previous = writing;
+		}
+		return previous.handle((v, e) -> null)
+				.thenCompose(v -> readAsync())
+				.thenAccept(bytes -> loadSince(mark, () -> loaded(bytes)));
+	}
+	
+	/**
+	 * Replaces the history buffer by the commands of the history file read asynchronously.
+	 * 
+	 * @param bytes the history file
+	 */
+	private synchronized void loaded(ByteBuffer bytes) {
+		try {
+			HistoryFormat detected = HistoryFormat.detect(bytes).orElse(format);
+			boolean whole = read(detected.decode(bytes, charset));
+			unsaved.clear();
+			compaction = !whole || kept || !detected.getName().equals(format.getName());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Saves the history buffer asynchronously, like {@link #save()}.
+	 * <p>
+	 * The commands to save are taken when this method is called, and written after the
+	 * asynchronous saves called before. If an append fails, the following appends also fail and
+	 * the history file is rewritten by the next save.
+	 * 
+	 * @see jp.coppermine.poortoys.history.AbstractHistory#saveAsync()
+	 */
+	@Override
+	public synchronized CompletableFuture<Void> saveAsync() {
+		if (segments != null) {
+			return super.saveAsync();
+		}
+		List<Command> appended = drainUnsaved();
+		flush();
+		boolean append = journal && !compaction && journalLength + appended.size() <= 2L * getMaxSize();
+		List<Command> commands;
+		if (append) {
+			commands = appended;
+			journalLength += appended.size();
+		} else {
+			commands = new ArrayList<>(list());
+			reverse(commands);
+			journalLength = commands.size();
+			compaction = false;
+		}
+		writing = writing.handle((v, e) -> e)
+				.thenCompose(e -> append && e != null ? failed(e) : writeAsync(commands, append))
+				.whenComplete((v, e) -> {
+					if (e != null) {
+						// the history file may be broken, or miss the appended commands
+						compaction = true;
+					}
+				});
+		return writing;
+	}
+	
+	/**
+	 * Reads the whole history file asynchronously.
+	 * 
+	 * @return the future of the bytes of the history file, empty if it does not exist
+	 */
+	private CompletableFuture<ByteBuffer> readAsync() {
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+		AsynchronousFileChannel channel;
+		ByteBuffer bytes;
+		try {
+			channel = AsynchronousFileChannel.open(path, EnumSet.of(READ), getExecutor());
+		} catch (NoSuchFileException e) {
+			future.complete(ByteBuffer.allocate(0));
+			return future;
+		} catch (IOException | RuntimeException e) {
+			return failed(e);
+		}
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE - 8) {
+				throw new IOException("too large history file: " + path);
+			}
+			bytes = ByteBuffer.allocate((int) size);
+		} catch (IOException | RuntimeException e) {
+			close(channel);
+			return failed(e);
+		}
+		channel.read(bytes, 0L, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (result >= 0 && bytes.hasRemaining()) {
+					channel.read(bytes, bytes.position(), null, this);
+					return;
+				}
+				close(channel);
+				bytes.flip();
+				future.complete(bytes);
+			}
+			
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				close(channel);
+				future.completeExceptionally(exc);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Writes commands to the history file asynchronously.
+	 * 
+	 * @param commands the commands, oldest-first
+	 * @param append {@code true} if the commands are appended to the end of the history file
+	 * @return the future completed when the commands are written
+	 */
+	private CompletableFuture<Void> writeAsync(List<Command> commands, boolean append) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		Path target;
+		AsynchronousFileChannel channel;
+		ByteBuffer bytes;
+		long start;
+		try {
+			target = append ? path : commit.createTemporary();
+			channel = AsynchronousFileChannel.open(target, EnumSet.of(CREATE, WRITE), getExecutor());
+		} catch (IOException | RuntimeException e) {
+			return failed(e);
+		}
+		try {
+			start = append ? channel.size() : 0L;
+			bytes = format.encode(commands, charset, start == 0L);
+		} catch (IOException | RuntimeException e) {
+			close(channel);
+			discard(target, append);
+			return failed(e);
+		}
+		channel.write(bytes, start, null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (bytes.hasRemaining()) {
+					channel.write(bytes, start + bytes.position(), null, this);
+					return;
+				}
+				close(channel);
+				try {
+					if (append) {
+						commit.appended(commands.size());
+					} else {
+						commit.replace(target);
+					}
+					future.complete(null);
+				} catch (IOException | RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			}
+			
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				close(channel);
+				discard(target, append);
+				future.completeExceptionally(exc);
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Deletes the temporary file of a failed rewrite.
+	 */
+	private static void discard(Path target, boolean append) {
+		if (!append) {
+			try {
+				Files.deleteIfExists(target);
+			} catch (IOException e) {
+				// left in the directory of the history file
+			}
+		}
+	}
+	
+	private static void close(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// the bytes are already read or written
+		}
+	}
+	
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+	
+	/**
+	 * Waits for the asynchronous saves called before.
+	 * The caller must hold the lock of this.
+	 */
+	private void awaitWriting() {
+		try {
+			writing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// compaction is set, so the next save rewrites the history file
+		}
+	}
+	
+	/**
+	 * Takes the commands appended but not saved yet.
+	 * 
+	 * @return the commands, oldest-first
+	 */
+	private List<Command> drainUnsaved() {
+		List<Command> appended = new ArrayList<>();
+		for (Command command = unsaved.poll(); command != null; command = unsaved.poll()) {
+			appended.add(command);
+		}
+		return appended;
+	}
+
+	/**
+	 * Saves the history buffer to the history file.
+	 * <p>
+	 * The history file is rewritten to a temporary file which replaces it atomically, so a crash
+	 * never leaves a broken history file. In journal mode the new commands are appended instead.
+	 * The writes are forced to the storage device by {@link #getSyncPolicy()}.
+	 * <p>
+	 * Concurrent saves are merged: a save waiting for another one returns without writing if
+	 * the other one has started after this save is called, as it has saved the same commands.
+	 * 
 	 * @see jp.coppermine.poortoys.history.History#save()
 	 */
 	@Override
-	public synchronized void save() {
+	public void save() {
+		long ticket = requested.incrementAndGet();
+		synchronized (this) {
+			if (saved >= ticket) {
+				return;
+			}
+			// the saves called until here are merged to this save
+			long covering = requested.get();
+			write();
+			saved = covering;
+		}
+	}
+	
+	/**
+	 * Writes the history buffer to the history file.
+	 * The caller must hold the lock of this.
+	 */
+	private void write() {
+		awaitWriting();
+		List<Command> appended = drainUnsaved();
+		flush();
 		try {
-			List<String> commands = getCommands().stream()
-					.filter(e -> e != null)
-					.map(Command::format)
-					.limit(getMaxSize())
-					.collect(toList());
+			if (segments != null) {
+				writeSegments(appended);
+				return;
+			}
+			if (journal && !compaction && journalLength + appended.size() <= 2L * getMaxSize()) {
+				if (!appended.isEmpty()) {
+					format.write(path, charset, appended, true);
+					journalLength += appended.size();
+					commit.appended(appended.size());
+				}
+				return;
+			}
+			List<Command> commands = new ArrayList<>(list());
 			reverse(commands);
-			Files.write(path, commands, charset, CREATE, WRITE, TRUNCATE_EXISTING);
+			Path temporary = commit.createTemporary();
+			try {
+				format.write(temporary, charset, commands, false);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(temporary);
+				throw e;
+			}
+			commit.replace(temporary);
+			journalLength = commands.size();
+			compaction = false;
 		} catch (IOException e) {
+			// the history file may be broken, or miss the appended commands
+			compaction = true;
 			throw new UncheckedIOException(e);
 		}
 	}
 	
+	/**
+	 * Writes the history buffer to the segments.
+	 * The caller must hold the lock of this.
+	 * 
+	 * @param appended the commands appended since the last save, oldest-first
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void writeSegments(List<Command> appended) throws IOException {
+		if (compaction) {
+			List<Command> commands = new ArrayList<>(list());
+			reverse(commands);
+			segments.rewrite(commands);
+			compaction = false;
+		} else {
+			segments.append(appended);
+		}
+		segments.commit(unloaded());
+	}
+	
+	/**
+	 * Finds the commands which are never loaded again, as the history buffer is full with newer ones.
+	 * 
+	 * @return the commands before this epoch second are never loaded
+	 */
+	private long unloaded() {
+		List<Command> commands = list();
+		if (commands.isEmpty() || commands.size() < getMaxSize()) {
+			return Long.MIN_VALUE;
+		}
+		long oldest = Long.MAX_VALUE;
+		for (Command command : commands) {
+			oldest = Math.min(oldest, command.getEpochSecond());
+		}
+		return oldest;
+	}
+	
 }
@@ -0,0 +1,317 @@
+package jp.coppermine.poortoys.history;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An index ranking the distinct command bodies of the history buffer by frecency.
+ * <p>
+ * Frecency is the sum of the weights of the commands with the body, and the weight of a command
+ * doubles every half-life of its timestamp. It grows with both frequency and recency, and a
+ * command used once long ago fades out. Because every weight decays at the same rate as time
+ * goes by, the ranking never changes without modification, so the score is kept as the
+ * {@code log2} of the sum relative to the epoch and updated incrementally.
+ * <p>
+ * The bodies are kept in a prefix trie, and each node knows the best body in its subtree.
+ * {@link #search(CharSequence, int)} visits the subtree of the prefix best-first by that body and
+ * stops when enough bodies are found, so it only touches the bodies starting with the prefix and
+ * its cost depends on the result size rather than the history size.
+ */
+final class FrecencyIndex implements HistoryIndex {
+
+	/**
+	 * The default half-life of the weight of a command.
+	 */
+	static final Duration DEFAULT_HALF_LIFE = Duration.ofDays(7L);
+
+	/**
+	 * Below this, subtracting a weight loses precision and the score is computed again.
+	 */
+	private static final double CANCELLATION = 1e-9;
+
+	/**
+	 * Orders terms by the score, and then most recent first. Sequence numbers are unique, so are the terms.
+	 */
+	private static final Comparator<Term> RANKING = (a, b) -> {
+		int c = Double.compare(b.score, a.score);
+		return c != 0 ? c : Long.compare(b.latest, a.latest);
+	};
+
+	/**
+	 * The half-life of the weight of a command in seconds.
+	 */
+	private final double halfLife;
+
+	/**
+	 * The root node, it represents the empty prefix.
+	 */
+	private final Node root = new Node(null, '\0');
+
+	/**
+	 * Creates an empty index.
+	 *
+	 * @param halfLife the half-life of the weight of a command, positive
+	 */
+	FrecencyIndex(Duration halfLife) {
+		if (halfLife.isNegative() || halfLife.isZero()) {
+			throw new IllegalArgumentException("halfLife: " + halfLife);
+		}
+		this.halfLife = seconds(halfLife);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryIndex#added(jp.coppermine.poortoys.history.Command, long)
+	 */
+	@Override
+	public void added(Command command, long sequence) {
+		String body = command.getCommand();
+		Node node = root;
+		for (int i = 0; i < body.length(); i++) {
+			node = node.child(body.charAt(i), true);
+		}
+		if (node.term == null) {
+			node.term = new Term();
+		}
+		Term term = node.term;
+		term.commands.addLast(command);
+		term.latest = sequence;
+		term.score = plus(term.score, weight(command, halfLife));
+		// The term only rises, so it replaces the best of the subtrees it beats.
+		for (; node != null; node = node.parent) {
+			if (node.best == null || node.best == term || RANKING.compare(term, node.best) < 0) {
+				node.best = term;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryIndex#removed(jp.coppermine.poortoys.history.Command, long)
+	 */
+	@Override
+	public void removed(Command command, long sequence) {
+		Node node = find(command.getCommand());
+		Term term = node == null ? null : node.term;
+		if (term == null) {
+			throw new IllegalStateException("not indexed: " + command);
+		}
+		term.commands.pollFirst();
+		if (term.commands.isEmpty()) {
+			node.term = null;
+		} else {
+			// The latest sequence number is unchanged while the term has other commands.
+			double rest = 1.0 - Math.pow(2.0, weight(command, halfLife) - term.score);
+			if (rest > CANCELLATION) {
+				term.score += log2(rest);
+			} else {
+				term.score = Double.NEGATIVE_INFINITY;
+				for (Command c : term.commands) {
+					term.score = plus(term.score, weight(c, halfLife));
+				}
+			}
+		}
+		// The term only falls, so only the subtrees whose best is the term are ranked again.
+		for (; node != null && node.best == term; node = node.parent) {
+			node.rank();
+			if (node.best == null && node.parent != null) {
+				node.parent.children.remove(node.key);
+			}
+		}
+	}
+
+	/**
+	 * Searches the commands starting with {@code prefix}, ranked by frecency.
+	 * <p>
+	 * Each distinct command body appears once, as its most recent command.
+	 *
+	 * @param prefix the prefix, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, best first
+	 */
+	List<Command> search(CharSequence prefix, int limit) {
+		Node start = find(prefix);
+		if (start == null || limit == 0) {
+			return Collections.emptyList();
+		}
+		List<Command> result = new ArrayList<>();
+		PriorityQueue<Pointer> queue = new PriorityQueue<>((a, b) -> RANKING.compare(a.term, b.term));
+		queue.add(new Pointer(start.best, start));
+		while (!queue.isEmpty() && result.size() < limit) {
+			Pointer head = queue.poll();
+			Node node = head.node;
+			if (node == null) {
+				result.add(head.term.commands.peekLast());
+				continue;
+			}
+			if (node.term != null) {
+				queue.add(new Pointer(node.term, null));
+			}
+			if (node.children != null) {
+				for (Node child : node.children.values()) {
+					queue.add(new Pointer(child.best, child));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the node of the prefix.
+	 *
+	 * @param prefix the prefix
+	 * @return the node, or null if no command starts with {@code prefix}
+	 */
+	private Node find(CharSequence prefix) {
+		Node node = root;
+		for (int i = 0; i < prefix.length() && node != null; i++) {
+			node = node.child(prefix.charAt(i), false);
+		}
+		return node == null || node.best == null ? null : node;
+	}
+
+	/**
+	 * Computes the weight of a command, in {@code log2} relative to the epoch.
+	 *
+	 * @param command the command
+	 * @param halfLife the half-life of the weight in seconds
+	 * @return the weight in {@code log2}
+	 */
+	static double weight(Command command, double halfLife) {
+		return (command.getEpochSecond() + command.getNano() * 1e-9) / halfLife;
+	}
+
+	/**
+	 * Obtains a duration in seconds.
+	 *
+	 * @param duration the duration
+	 * @return the seconds with the fraction
+	 */
+	static double seconds(Duration duration) {
+		return duration.getSeconds() + duration.getNano() * 1e-9;
+	}
+
+	/**
+	 * Adds two weights in {@code log2}.
+	 *
+	 * @param a a weight in {@code log2}, it may be negative infinity
+	 * @param b a weight in {@code log2}, it may be negative infinity
+	 * @return {@code log2(2^a + 2^b)}
+	 */
+	static double plus(double a, double b) {
+		double max = Math.max(a, b);
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		return max + log2(Math.pow(2.0, a - max) + Math.pow(2.0, b - max));
+	}
+
+	private static double log2(double x) {
+		return Math.log(x) / Math.log(2.0);
+	}
+
+	/**
+	 * A node of the trie.
+	 */
+	private static final class Node {
+
+		private final Node parent;
+
+		private final char key;
+
+		/**
+		 * Child nodes, created lazily.
+		 */
+		private Map<Character, Node> children;
+
+		/**
+		 * The body ending at this node, or null.
+		 */
+		private Term term;
+
+		/**
+		 * The best term in the subtree, or null if the subtree is empty.
+		 */
+		private Term best;
+
+		private Node(Node parent, char key) {
+			this.parent = parent;
+			this.key = key;
+		}
+
+		private Node child(char c, boolean create) {
+			if (children == null) {
+				if (!create) {
+					return null;
+				}
+				children = new HashMap<>(4);
+			}
+			Node child = children.get(c);
+			if (child == null && create) {
+				child = new Node(this, c);
+				children.put(c, child);
+			}
+			return child;
+		}
+
+		/**
+		 * Finds the best term in the subtree again from this node and the children.
+		 */
+		private void rank() {
+			best = term;
+			if (children != null) {
+				for (Node child : children.values()) {
+					if (child.best != null && (best == null || RANKING.compare(child.best, best) < 0)) {
+						best = child.best;
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A distinct command body.
+	 */
+	private static final class Term {
+
+		/**
+		 * Commands with this body in the history buffer, oldest-first.
+		 */
+		private final Deque<Command> commands = new ArrayDeque<>(1);
+
+		/**
+		 * The sequence number of the newest command.
+		 */
+		private long latest;
+
+		/**
+		 * The sum of the weights of the commands, in {@code log2}.
+		 */
+		private double score = Double.NEGATIVE_INFINITY;
+
+	}
+
+	/**
+	 * A term found, or a pointer to a subtree while searching, ranked by the best term of it.
+	 */
+	private static final class Pointer {
+
+		private final Term term;
+
+		private final Node node;
+
+		private Pointer(Term term, Node node) {
+			this.term = term;
+			this.node = node;
+		}
+
+	}
+
+}
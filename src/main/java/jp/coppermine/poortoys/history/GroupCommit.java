@@ -0,0 +1,172 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Forces the writes of a history file by a {@link SyncPolicy}.
+ * <p>
+ * A rewritten file is written to a temporary file, which replaces the history file by an atomic
+ * move, so a crash leaves either the old or the new history file. Appended commands are forced
+ * by the policy, and in group commit the deferred forces run on a shared daemon thread.
+ * This class is thread-safe.
+ */
+final class GroupCommit {
+
+	private final Path path;
+
+	private final SyncPolicy policy;
+
+	/**
+	 * The number of appended commands not forced yet, guarded by this.
+	 */
+	private int unsynced;
+
+	/**
+	 * The time of the last force by {@link System#nanoTime()}, guarded by this.
+	 */
+	private long lastSync = System.nanoTime() - Long.MAX_VALUE / 2;
+
+	/**
+	 * The deferred force, or null, guarded by this.
+	 */
+	private ScheduledFuture<?> deferred;
+
+	/**
+	 * Creates an instance for a history file.
+	 *
+	 * @param path the path to the history file
+	 * @param policy the policy
+	 */
+	GroupCommit(Path path, SyncPolicy policy) {
+		this.path = path;
+		this.policy = policy;
+	}
+
+	/**
+	 * Creates a temporary file to rewrite the history file, in the same directory.
+	 *
+	 * @return the path to the temporary file
+	 * @throws IOException if an I/O error occurs
+	 */
+	Path createTemporary() throws IOException {
+		Path absolute = path.toAbsolutePath();
+		return Files.createTempFile(absolute.getParent(), "." + absolute.getFileName(), ".tmp");
+	}
+
+	/**
+	 * Replaces the history file by a temporary file rewriting it.
+	 * The temporary file is deleted if it fails.
+	 *
+	 * @param temporary the temporary file, written completely
+	 * @throws IOException if an I/O error occurs
+	 */
+	void replace(Path temporary) throws IOException {
+		try {
+			if (policy.getMode() != SyncPolicy.Mode.NEVER) {
+				force(temporary);
+			}
+			try {
+				Files.move(temporary, path, ATOMIC_MOVE, REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, path, REPLACE_EXISTING);
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		if (policy.getMode() != SyncPolicy.Mode.NEVER) {
+			forceDirectory();
+			synchronized (this) {
+				// the appended commands are in the new file
+				synced(System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Forces commands appended to the history file by the policy.
+	 *
+	 * @param records the number of the commands
+	 * @throws IOException if an I/O error occurs
+	 */
+	void appended(int records) throws IOException {
+		switch (policy.getMode()) {
+		case ALWAYS:
+			force(path);
+			break;
+		case GROUP:
+			synchronized (this) {
+				unsynced += records;
+				long now = System.nanoTime();
+				long wait = policy.getInterval().toNanos() - (now - lastSync);
+				if (unsynced >= policy.getRecords() || wait <= 0L) {
+					force(path);
+					synced(now);
+				} else if (deferred == null) {
+					deferred = HistoryExecutors.SYNC.schedule(this::forceDeferred, wait, NANOSECONDS);
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Forces the waiting commands at the end of the interval.
+	 */
+	private synchronized void forceDeferred() {
+		deferred = null;
+		if (unsynced == 0) {
+			return;
+		}
+		try {
+			force(path);
+			synced(System.nanoTime());
+		} catch (IOException e) {
+			// the next append forces them again
+		}
+	}
+
+	/**
+	 * Records a force. The caller must hold the lock of this.
+	 */
+	private void synced(long now) {
+		unsynced = 0;
+		lastSync = now;
+		if (deferred != null) {
+			deferred.cancel(false);
+			deferred = null;
+		}
+	}
+
+	private static void force(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, WRITE)) {
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Forces the directory entry of the history file, where the platform allows.
+	 */
+	private void forceDirectory() {
+		Path directory = path.toAbsolutePath().getParent();
+		try (FileChannel channel = FileChannel.open(directory, READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// some platforms cannot open or force a directory
+		}
+	}
+
+}
@@ -1,11 +1,19 @@
 package jp.coppermine.poortoys.history;
 
+import static java.util.Comparator.comparingDouble;
+import static java.util.Comparator.comparingInt;
 import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface that provides command shell like history features.
@@ -34,6 +42,28 @@ public interface History {
 	 */
 	void save();
 	
+	/**
+	 * Loads history data from its store asynchronously.
+	 * <p>
+	 * In the default, it runs {@link #load()} on a shared I/O thread.
+	 * 
+	 * @return the future completed when the history is loaded, never null
+	 */
+	default CompletableFuture<Void> loadAsync() {
+		return CompletableFuture.runAsync(this::load, HistoryExecutors.IO);
+	}
+	
+	/**
+	 * Saves history data to its store asynchronously.
+	 * <p>
+	 * In the default, it runs {@link #save()} on a shared I/O thread.
+	 * 
+	 * @return the future completed when the history is saved, never null
+	 */
+	default CompletableFuture<Void> saveAsync() {
+		return CompletableFuture.runAsync(this::save, HistoryExecutors.IO);
+	}
+	
 	/**
 	 * Obtains the maximum size of the history buffer.
 	 * 
@@ -51,6 +81,17 @@ public interface History {
 	 */
 	List<Command> list();
 	
+	/**
+	 * Obtains the distinct command bodies in the history buffer, most recent first.
+	 * <p>
+	 * In the default, it scans {@link #list()}. Implementations may keep them.
+	 * 
+	 * @return the distinct command bodies, never null
+	 */
+	default List<String> keywords() {
+		return list().stream().map(Command::getCommand).distinct().collect(toList());
+	}
+	
 	/**
 	 * Add a command to the history buffer.
 	 * <p>
@@ -60,6 +101,19 @@ public interface History {
 	 */
 	void append(Command command);
 	
+	/**
+	 * Applies the commands appended before to the history buffer.
+	 * <p>
+	 * Implementations may apply {@link #append(Command)} asynchronously. After this method
+	 * returns, all commands appended before calling it are visible to {@link #list()}
+	 * and stored by {@link #save()}.
+	 * <p>
+	 * In the default, it does nothing.
+	 */
+	default void flush() {
+		
+	}
+	
 	/**
 	 * Clear the history buffer.
 	 * <p>
@@ -67,8 +121,139 @@ public interface History {
 	 */
 	void clear();
 	
+	/**
+	 * Removes the commands created at {@code expired} or before from the history buffer.
+	 * <p>
+	 * Even if this method is called, the history store is never modified. 
+	 * 
+	 * @param expired the expiration timestamp, not null
+	 * @see ScheduledExpiry
+	 */
 	void shrink(LocalDateTime expired);
 	
+	/**
+	 * Searches the commands starting with {@code prefix}.
+	 * <p>
+	 * Each distinct command body appears once, as its most recent command, and the result is
+	 * ordered most recent first. It is the same order as {@link #list()} without duplicates.
+	 * <p>
+	 * In the default, it scans {@link #list()}. Implementations may use an index.
+	 * 
+	 * @param prefix the prefix of command bodies, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, never null
+	 * @throws IllegalArgumentException {@code limit} is negative
+	 */
+	default List<Command> search(CharSequence prefix, int limit) {
+		requireNonNull(prefix);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		String start = prefix.toString();
+		Set<String> found = new HashSet<>();
+		return list().stream()
+				.filter(e -> e.getCommand().startsWith(start))
+				.filter(e -> found.add(e.getCommand()))
+				.limit(limit)
+				.collect(toList());
+	}
+	
+	/**
+	 * Searches the commands containing {@code text}, like reverse incremental search of shells.
+	 * <p>
+	 * Each distinct command body appears once, as its most recent command, and the result is
+	 * ordered most recent first.
+	 * <p>
+	 * In the default, it scans {@link #list()}. Implementations may use an index.
+	 * 
+	 * @param text the text contained in command bodies, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, never null
+	 * @throws IllegalArgumentException {@code limit} is negative
+	 */
+	default List<Command> searchContaining(CharSequence text, int limit) {
+		requireNonNull(text);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		String pattern = text.toString();
+		Set<String> found = new HashSet<>();
+		return list().stream()
+				.filter(e -> e.getCommand().contains(pattern))
+				.filter(e -> found.add(e.getCommand()))
+				.limit(limit)
+				.collect(toList());
+	}
+	
+	/**
+	 * Searches the commands containing {@code text} approximately, tolerating typos.
+	 * <p>
+	 * A command matches if a part of it differs from {@code text} by a sixth of
+	 * its length or fewer characters (inserted, deleted or replaced). The result is ordered by
+	 * the number of different characters, and then most recent first.
+	 * Each distinct command body appears once, as its most recent command.
+	 * <p>
+	 * In the default, it scans {@link #list()}. Implementations may use an index.
+	 * 
+	 * @param text the text contained approximately in command bodies, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, never null
+	 * @throws IllegalArgumentException {@code limit} is negative
+	 */
+	default List<Command> searchSimilar(CharSequence text, int limit) {
+		requireNonNull(text);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		int errors = NgramIndex.maxErrors(text.length());
+		Set<String> found = new HashSet<>();
+		Map<String, Integer> distances = new HashMap<>();
+		return list().stream()
+				.filter(e -> found.add(e.getCommand()))
+				.filter(e -> distances.computeIfAbsent(e.getCommand(), c -> NgramIndex.distance(text, c)) <= errors)
+				.sorted(comparingInt(e -> distances.get(e.getCommand())))
+				.limit(limit)
+				.collect(toList());
+	}
+	
+	/**
+	 * Searches the commands starting with {@code prefix}, ranked by frecency.
+	 * <p>
+	 * Frecency of a command body is the sum of the weights of its commands, and the weight of
+	 * a command doubles every week of its timestamp, so frequently and recently used bodies
+	 * come first. The result is ordered by frecency, and then most recent first.
+	 * Each distinct command body appears once, as its most recent command.
+	 * <p>
+	 * In the default, it scans {@link #list()}. Implementations may use an index.
+	 * 
+	 * @param prefix the prefix of command bodies, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, never null
+	 * @throws IllegalArgumentException {@code limit} is negative
+	 */
+	default List<Command> searchRanked(CharSequence prefix, int limit) {
+		requireNonNull(prefix);
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit: " + limit);
+		}
+		String start = prefix.toString();
+		double halfLife = FrecencyIndex.seconds(FrecencyIndex.DEFAULT_HALF_LIFE);
+		List<Command> commands = list();
+		Map<String, Double> scores = new HashMap<>();
+		for (int i = commands.size() - 1; i >= 0; i--) {
+			// sums oldest-first, as the index does
+			Command command = commands.get(i);
+			scores.merge(command.getCommand(), FrecencyIndex.weight(command, halfLife), FrecencyIndex::plus);
+		}
+		Set<String> found = new HashSet<>();
+		return commands.stream()
+				.filter(e -> e.getCommand().startsWith(start))
+				.filter(e -> found.add(e.getCommand()))
+				.sorted(comparingDouble((Command e) -> scores.get(e.getCommand())).reversed())
+				.limit(limit)
+				.collect(toList());
+	}
+	
 	/**
 	 * A factory method that obtains one of {@code History} implementation as this class.
 	 * 
@@ -0,0 +1,35 @@
+package jp.coppermine.poortoys.history;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The shared executors of asynchronous loads and saves of histories.
+ */
+final class HistoryExecutors {
+
+	/**
+	 * The default I/O executor, daemon threads created on demand.
+	 */
+	static final ExecutorService IO = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "poortoys-history-io");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The executor of deferred forces of history files, a daemon thread.
+	 */
+	static final ScheduledExecutorService SYNC = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "poortoys-history-sync");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Suppresses default constructor, ensuring non-instantiability.
+	 */
+	private HistoryExecutors() { }
+
+}
@@ -0,0 +1,192 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.ServiceLoader;
+
+/**
+ * Service provider interface of the formats of history files.
+ * <p>
+ * A history file holds commands oldest-first, so commands can be appended to the end of it.
+ * Implementations are registered as services of this interface, and found by their names
+ * or by the leading bytes of a file. This library provides {@code csv}, a command per line in
+ * CSV, and {@code binary}, a compact format in {@link BinaryHistoryFormat}.
+ * <p>
+ * Implementations must be stateless and thread-safe.
+ */
+public interface HistoryFormat {
+
+	/**
+	 * The number of the leading bytes of a file passed to {@link #accepts(byte[])}.
+	 */
+	int HEADER_LENGTH = 8;
+
+	/**
+	 * Obtains the name of this format.
+	 *
+	 * @return the name of this format, never null
+	 */
+	String getName();
+
+	/**
+	 * Tests whether a file is in this format by its leading bytes.
+	 * Different formats must not accept the same bytes.
+	 *
+	 * @param header up to {@link #HEADER_LENGTH} leading bytes of a non-empty file, not null
+	 * @return {@code true} if the file is in this format, otherwise {@code false}
+	 */
+	boolean accepts(byte[] header);
+
+	/**
+	 * Opens a file to read commands from the newest.
+	 *
+	 * @param path the path to the file, not null
+	 * @param charset the charset of the file, if this format uses it, not null
+	 * @return the commands of the file, never null
+	 * @throws IOException if an I/O error occurs
+	 */
+	Records read(Path path, Charset charset) throws IOException;
+
+	/**
+	 * Opens a file to read all of its commands from the newest, <i>e.g.</i> to import it.
+	 * <p>
+	 * A format may parse the whole file in advance, so it is used only when most of the file is read.
+	 * In the default, it is {@link #read(Path, Charset)}.
+	 *
+	 * @param path the path to the file, not null
+	 * @param charset the charset of the file, if this format uses it, not null
+	 * @return the commands of the file, never null
+	 * @throws IOException if an I/O error occurs
+	 */
+	default Records readAll(Path path, Charset charset) throws IOException {
+		return read(path, charset);
+	}
+
+	/**
+	 * Writes commands to a file.
+	 *
+	 * @param path the path to the file, not null
+	 * @param charset the charset of the file, if this format uses it, not null
+	 * @param commands the commands ordered oldest-first, not null
+	 * @param append {@code true} to append them to the end of the file in this format,
+	 *        {@code false} to replace the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(Path path, Charset charset, List<Command> commands, boolean append) throws IOException;
+
+	/**
+	 * Decodes commands from the bytes of a whole file, read without {@link #read(Path, Charset)}.
+	 *
+	 * @param bytes the remaining bytes are the file, not null
+	 * @param charset the charset of the file, if this format uses it, not null
+	 * @return the commands of the file, never null
+	 * @throws IOException if the bytes are broken
+	 */
+	Records decode(ByteBuffer bytes, Charset charset) throws IOException;
+
+	/**
+	 * Encodes commands to bytes, written without {@link #write(Path, Charset, List, boolean)}.
+	 *
+	 * @param commands the commands ordered oldest-first, not null
+	 * @param charset the charset of the file, if this format uses it, not null
+	 * @param header {@code true} if the bytes start a file, {@code false} if they are appended
+	 *        to the end of a non-empty file in this format
+	 * @return the bytes, never null
+	 * @throws IOException if the commands cannot be encoded
+	 */
+	ByteBuffer encode(List<Command> commands, Charset charset, boolean header) throws IOException;
+
+	/**
+	 * Obtains all registered formats.
+	 *
+	 * @return the registered formats, never null
+	 */
+	static List<HistoryFormat> formats() {
+		List<HistoryFormat> formats = new ArrayList<>();
+		ServiceLoader.load(HistoryFormat.class).forEach(formats::add);
+		return formats;
+	}
+
+	/**
+	 * A factory method that obtains the format by its name.
+	 *
+	 * @param name the name of the format, not null
+	 * @return the format, never null
+	 * @throws IllegalArgumentException the format is not found
+	 */
+	static HistoryFormat of(String name) {
+		requireNonNull(name);
+		return formats().stream()
+				.filter(e -> e.getName().equalsIgnoreCase(name))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException("format: " + name));
+	}
+
+	/**
+	 * Detects the format of a file.
+	 *
+	 * @param path the path to the file, not null
+	 * @return the format, or empty if the file is empty or not found
+	 * @throws IOException if an I/O error occurs
+	 * @throws IllegalArgumentException no format accepts the file
+	 */
+	static Optional<HistoryFormat> detect(Path path) throws IOException {
+		if (Files.notExists(path)) {
+			return Optional.empty();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		try (FileChannel channel = FileChannel.open(path, READ)) {
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// reads up to HEADER_LENGTH bytes
+			}
+		}
+		buffer.flip();
+		return detect(buffer);
+	}
+
+	/**
+	 * Detects the format of a file by its leading bytes.
+	 *
+	 * @param bytes the remaining bytes are the beginning of the file, not null, never modified
+	 * @return the format, or empty if there are no bytes
+	 * @throws IllegalArgumentException no format accepts the file
+	 */
+	static Optional<HistoryFormat> detect(ByteBuffer bytes) {
+		if (!bytes.hasRemaining()) {
+			return Optional.empty();
+		}
+		byte[] header = new byte[Math.min(HEADER_LENGTH, bytes.remaining())];
+		bytes.duplicate().get(header);
+		return Optional.of(formats().stream()
+				.filter(e -> e.accepts(header))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException("unknown format")));
+	}
+
+	/**
+	 * Commands of a file, read from the newest.
+	 */
+	interface Records extends Closeable {
+
+		/**
+		 * Reads the previous command.
+		 *
+		 * @return the command, or null if the oldest command was returned
+		 * @throws IOException if an I/O error occurs
+		 */
+		Command previous() throws IOException;
+
+	}
+
+}
@@ -0,0 +1,33 @@
+package jp.coppermine.poortoys.history;
+
+/**
+ * An index of the history buffer of {@link AbstractHistory}, maintained incrementally.
+ * <p>
+ * Every command in the history buffer has a sequence number, which increases by appending.
+ * {@code AbstractHistory} notifies an index of each command entering and leaving the
+ * history buffer. Commands leave the history buffer oldest-first, so an index can rely on that
+ * the removed command is always the oldest one it has. The only exception is deduplicating mode,
+ * where a command also leaves right after a newer command with the same body entered; even then,
+ * the removed command is the oldest one with its body.
+ * <p>
+ * Notifications are made under the write lock of the history.
+ */
+interface HistoryIndex {
+
+	/**
+	 * Notifies that a command entered the history buffer as the newest one.
+	 *
+	 * @param command the command, never null
+	 * @param sequence the sequence number of the command
+	 */
+	void added(Command command, long sequence);
+
+	/**
+	 * Notifies that the oldest command left the history buffer.
+	 *
+	 * @param command the command, never null
+	 * @param sequence the sequence number of the command
+	 */
+	void removed(Command command, long sequence);
+
+}
@@ -0,0 +1,462 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.time.ZoneOffset.UTC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import jp.coppermine.poortoys.text.CsvReader;
+import jp.coppermine.poortoys.text.CsvWriter;
+
+/**
+ * Segments of a history, files holding the commands of periods of time, and the manifest listing them.
+ * <p>
+ * A command is stored in the segment of the period containing its timestamp. Expired commands are
+ * removed by deleting whole segments, and the newest commands are read from the newest segments
+ * without opening older ones. The manifest is a small CSV file at the path of the history file,
+ * listing the segments and the expiration timestamp. It is replaced atomically after the segments
+ * are written and before the segments are deleted, so a crash leaves only segments not listed.
+ * <p>
+ * Segments are named {@code <history file>.<start of period>.<generation>} in the directory of the
+ * history file. A rewrite writes all segments in a new generation, so it never overwrites listed ones.
+ * This class is not thread-safe.
+ */
+final class HistorySegments {
+
+	/**
+	 * The first entry of a manifest.
+	 */
+	static final String MAGIC = "#poortoys-history-segments";
+
+	private static final String VERSION = "1";
+
+	private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("uuuuMMdd'T'HHmmss");
+
+	/**
+	 * The path to the manifest.
+	 */
+	private final Path path;
+
+	/**
+	 * The length of a period, in seconds.
+	 */
+	private final long length;
+
+	private final HistoryFormat format;
+
+	private final Charset charset;
+
+	private final SyncPolicy sync;
+
+	/**
+	 * Forces the writes of the manifest.
+	 */
+	private final GroupCommit commit;
+
+	/**
+	 * Forces the writes of each segment, by the name.
+	 */
+	private final Map<String, GroupCommit> commits = new HashMap<>();
+
+	/**
+	 * The names of the listed segments, by the start of the period in epoch seconds.
+	 */
+	private final NavigableMap<Long, String> segments = new TreeMap<>();
+
+	/**
+	 * Segments not listed any more, deleted after the manifest is replaced.
+	 */
+	private final List<String> obsolete = new ArrayList<>();
+
+	/**
+	 * The generation of new segments.
+	 */
+	private long generation;
+
+	/**
+	 * The commands created at this timestamp or before are expired, or null.
+	 */
+	private LocalDateTime expired;
+
+	/**
+	 * Whether the manifest has been read, or the segments have been forgotten.
+	 */
+	private boolean known;
+
+	/**
+	 * Whether the manifest must be replaced.
+	 */
+	private boolean modified;
+
+	/**
+	 * Whether a segment in another format has been read.
+	 */
+	private boolean foreign;
+
+	/**
+	 * Creates an instance for a manifest.
+	 *
+	 * @param path the path to the manifest
+	 * @param length the length of a period, positive whole seconds
+	 * @param format the format of new segments
+	 * @param charset the charset of segments
+	 * @param sync when the writes of segments and the manifest are forced
+	 * @param commit forces the writes of the manifest
+	 */
+	HistorySegments(Path path, Duration length, HistoryFormat format, Charset charset, SyncPolicy sync, GroupCommit commit) {
+		this.path = path;
+		this.length = length.getSeconds();
+		this.format = format;
+		this.charset = charset;
+		this.sync = sync;
+		this.commit = commit;
+	}
+
+	/**
+	 * Tests whether a file is a manifest by its leading bytes.
+	 *
+	 * @param file the path to the file
+	 * @return {@code true} if the file is a manifest, {@code false} if it is another file or not found
+	 * @throws IOException if an I/O error occurs
+	 */
+	static boolean isManifest(Path file) throws IOException {
+		if (Files.notExists(file)) {
+			return false;
+		}
+		byte[] magic = MAGIC.getBytes(US_ASCII);
+		try (InputStream in = Files.newInputStream(file)) {
+			for (byte b : magic) {
+				if (in.read() != (b & 0xff)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the manifest, or forgets all segments if it is not found or empty.
+	 *
+	 * @throws IOException if an I/O error occurs, or the file is not a manifest
+	 */
+	void readManifest() throws IOException {
+		reset();
+		if (Files.notExists(path) || Files.size(path) == 0L) {
+			return;
+		}
+		try (CsvReader reader = new CsvReader(Files.newBufferedReader(path, UTF_8))) {
+			String[] record = reader.read();
+			if (record == null || record.length != 2 || !record[0].equals(MAGIC)) {
+				throw new IOException("not a history manifest: " + path);
+			}
+			if (!record[1].equals(VERSION)) {
+				throw new IOException("unsupported history manifest version: " + record[1]);
+			}
+			while ((record = reader.read()) != null) {
+				if (record.length == 0) {
+					continue;
+				}
+				switch (record[0]) {
+				case "generation":
+					generation = Long.parseLong(record[1]);
+					break;
+				case "expired":
+					expired = LocalDateTime.ofEpochSecond(Long.parseLong(record[1]), Integer.parseInt(record[2]), UTC);
+					break;
+				case "segment":
+					segments.put(Long.parseLong(record[1]), record[2]);
+					break;
+				default:
+					// written by a later version
+					break;
+				}
+			}
+			modified = false;
+		} catch (RuntimeException e) {
+			reset();
+			throw new IOException("broken history manifest: " + path, e);
+		}
+	}
+
+	/**
+	 * Forgets all segments, so the next {@link #commit(long)} replaces the history file by a manifest.
+	 */
+	void reset() {
+		segments.clear();
+		obsolete.clear();
+		commits.clear();
+		generation = 0L;
+		expired = null;
+		known = true;
+		modified = true;
+		foreign = false;
+	}
+
+	/**
+	 * Opens the listed segments to read commands from the newest.
+	 * <p>
+	 * Segments are opened when the commands of the newer ones are read, and the expired commands
+	 * are skipped. Missing segments are regarded as empty.
+	 *
+	 * @return the commands, never null
+	 */
+	HistoryFormat.Records records() {
+		Iterator<Map.Entry<Long, String>> iterator = segments.descendingMap().entrySet().iterator();
+		return new HistoryFormat.Records() {
+			private HistoryFormat.Records current;
+
+			@Override
+			public Command previous() throws IOException {
+				while (true) {
+					if (current == null) {
+						if (!iterator.hasNext()) {
+							return null;
+						}
+						Map.Entry<Long, String> segment = iterator.next();
+						if (expired != null && segment.getKey() + length <= expired.toEpochSecond(UTC)) {
+							// the older segments are all expired
+							return null;
+						}
+						current = open(segment.getValue());
+						continue;
+					}
+					Command command = current.previous();
+					if (command == null) {
+						current.close();
+						current = null;
+					} else if (expired == null || command.isAfter(expired)) {
+						return command;
+					}
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (current != null) {
+					current.close();
+					current = null;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Opens a segment.
+	 *
+	 * @param name the name of the segment
+	 * @return the commands of the segment, or null if it is empty or not found
+	 * @throws IOException if an I/O error occurs
+	 */
+	private HistoryFormat.Records open(String name) throws IOException {
+		Path file = path.resolveSibling(name);
+		Optional<HistoryFormat> detected = HistoryFormat.detect(file);
+		if (!detected.isPresent()) {
+			return null;
+		}
+		if (!detected.get().getName().equals(format.getName())) {
+			foreign = true;
+		}
+		return detected.get().read(file, charset);
+	}
+
+	/**
+	 * Obtains whether a segment in another format has been read since the manifest is read.
+	 *
+	 * @return {@code true} if the segments should be rewritten in the format
+	 */
+	boolean isForeign() {
+		return foreign;
+	}
+
+	/**
+	 * Appends commands to the segments of their periods, creating the segments not listed yet.
+	 *
+	 * @param commands the commands, oldest-first
+	 * @throws IOException if an I/O error occurs
+	 */
+	void append(List<Command> commands) throws IOException {
+		for (Map.Entry<Long, List<Command>> period : periods(commands).entrySet()) {
+			String name = segments.get(period.getKey());
+			if (name != null && Files.exists(path.resolveSibling(name))) {
+				format.write(path.resolveSibling(name), charset, period.getValue(), true);
+				commitOf(name).appended(period.getValue().size());
+			} else {
+				name = name(period.getKey());
+				create(name, period.getValue());
+				segments.put(period.getKey(), name);
+				modified = true;
+			}
+		}
+	}
+
+	/**
+	 * Replaces all segments by the segments of commands, in a new generation.
+	 *
+	 * @param commands the commands, oldest-first
+	 * @throws IOException if an I/O error occurs
+	 */
+	void rewrite(List<Command> commands) throws IOException {
+		if (!known) {
+			// the listed segments are replaced, and new names must not be theirs
+			try {
+				if (isManifest(path)) {
+					readManifest();
+				} else {
+					reset();
+				}
+			} catch (IOException e) {
+				// a broken manifest is replaced
+				reset();
+			}
+		}
+		generation++;
+		NavigableMap<Long, String> created = new TreeMap<>();
+		try {
+			for (Map.Entry<Long, List<Command>> period : periods(commands).entrySet()) {
+				String name = name(period.getKey());
+				create(name, period.getValue());
+				created.put(period.getKey(), name);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (String name : created.values()) {
+				delete(name);
+			}
+			throw e;
+		}
+		obsolete.addAll(segments.values());
+		segments.clear();
+		segments.putAll(created);
+		modified = true;
+	}
+
+	/**
+	 * Expires the commands created at a timestamp or before. They are never read again, and
+	 * the segments holding only them are deleted by the next {@link #commit(long)}.
+	 *
+	 * @param timestamp the expiration timestamp
+	 */
+	void expire(LocalDateTime timestamp) {
+		if (expired == null || timestamp.isAfter(expired)) {
+			expired = timestamp;
+			modified = true;
+		}
+	}
+
+	/**
+	 * Deletes the segments expired or before a time, and replaces the manifest if it is modified.
+	 *
+	 * @param before the segments holding only commands before this epoch second are deleted
+	 * @throws IOException if an I/O error occurs
+	 */
+	void commit(long before) throws IOException {
+		long limit = expired == null ? before : Math.max(before, expired.toEpochSecond(UTC));
+		for (Iterator<Map.Entry<Long, String>> iterator = segments.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<Long, String> segment = iterator.next();
+			if (segment.getKey() + length > limit) {
+				break;
+			}
+			obsolete.add(segment.getValue());
+			iterator.remove();
+			modified = true;
+		}
+		if (modified) {
+			writeManifest();
+			modified = false;
+		}
+		for (String name : obsolete) {
+			delete(name);
+		}
+		obsolete.clear();
+	}
+
+	/**
+	 * Obtains the number of the listed segments.
+	 *
+	 * @return the number of the segments
+	 */
+	int size() {
+		return segments.size();
+	}
+
+	/**
+	 * Groups commands by the start of their periods.
+	 */
+	private NavigableMap<Long, List<Command>> periods(List<Command> commands) {
+		NavigableMap<Long, List<Command>> periods = new TreeMap<>();
+		for (Command command : commands) {
+			long start = Math.floorDiv(command.getEpochSecond(), length) * length;
+			periods.computeIfAbsent(start, k -> new ArrayList<>()).add(command);
+		}
+		return periods;
+	}
+
+	private String name(long start) {
+		return path.getFileName() + "." + NAME_FORMAT.format(LocalDateTime.ofEpochSecond(start, 0, UTC)) + "." + generation;
+	}
+
+	/**
+	 * Writes a new segment through a temporary file.
+	 */
+	private void create(String name, List<Command> commands) throws IOException {
+		GroupCommit segment = commitOf(name);
+		Path temporary = segment.createTemporary();
+		try {
+			format.write(temporary, charset, commands, false);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		segment.replace(temporary);
+	}
+
+	private GroupCommit commitOf(String name) {
+		return commits.computeIfAbsent(name, k -> new GroupCommit(path.resolveSibling(k), sync));
+	}
+
+	private void delete(String name) {
+		commits.remove(name);
+		try {
+			Files.deleteIfExists(path.resolveSibling(name));
+		} catch (IOException e) {
+			// left in the directory of the history file, never read
+		}
+	}
+
+	/**
+	 * Replaces the manifest through a temporary file.
+	 */
+	private void writeManifest() throws IOException {
+		Path temporary = commit.createTemporary();
+		try (CsvWriter writer = new CsvWriter(Files.newBufferedWriter(temporary, UTF_8), "\n")) {
+			writer.writeRecord(MAGIC, VERSION);
+			writer.writeRecord("generation", Long.toString(generation));
+			if (expired != null) {
+				writer.writeRecord("expired", Long.toString(expired.toEpochSecond(UTC)), Integer.toString(expired.getNano()));
+			}
+			for (Map.Entry<Long, String> segment : segments.entrySet()) {
+				writer.writeRecord("segment", Long.toString(segment.getKey()), segment.getValue());
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		commit.replace(temporary);
+	}
+
+}
@@ -0,0 +1,601 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An implementation of {@link History} whose history buffer is a memory-mapped file.
+ * <p>
+ * The file is a ring of fixed-size slots after a header. A slot holds the sequence number,
+ * the timestamp and the UTF-8 body of a command, and the header holds the sequence numbers of
+ * the oldest and the next command. So {@link #append(Command)} writes a slot and the header in
+ * mapped memory, {@link #save()} only forces them to the storage device, and {@link #load()}
+ * maps the file without parsing it. The commands stay off the heap, and {@link #list()} is a view
+ * of the slots decoding a command each time it is read.
+ * <p>
+ * The ring has a free slot for each slot of the history buffer, so the slots of a list are reused
+ * after {@link #getMaxSize()} appends at least, and a command is moved by {@link #shrink(LocalDateTime)}
+ * to the free slots before the header is updated. Readers do not lock the slots: a command is read
+ * optimistically and read again under the lock only if a slot is written meanwhile.
+ * <p>
+ * The file is mapped by {@link #load()}, or by the first modification. If it was created with
+ * another maximum size or slot size, it is converted keeping the newest commands which fit in
+ * the new slots. A body longer than the slot allows is rejected by {@link #append(Command)}.
+ * <p>
+ * The path is the system property {@code poortoys.history.mapped.path}, the slot size is
+ * {@code poortoys.history.mapped.slot}, and the maximum size is {@code poortoys.history.size}
+ * for the constructors without them. An invalid slot size of the property is ignored, and
+ * the maximum size of the property is reduced to fit the file in 2 GiB.
+ */
+public class MappedHistory implements History {
+
+    /**
+     * Property key to set the path to the mapped file.
+     * This value is "poortoys.history.mapped.path"
+     */
+    public static final String PROPERTY_KEY_HISTORY_MAPPED_PATH = "poortoys.history.mapped.path";
+
+    /**
+     * Property key to set the size of a slot in bytes.
+     * This value is "poortoys.history.mapped.slot"
+     */
+    public static final String PROPERTY_KEY_HISTORY_MAPPED_SLOT = "poortoys.history.mapped.slot";
+
+	/**
+	 * The default path to the mapped file, {@code .history.ring} in the user home.
+	 */
+	public static final Path DEFAULT_MAPPED_PATH = Paths.get(System.getProperty(PROPERTY_KEY_HISTORY_MAPPED_PATH,
+			Paths.get(System.getProperty("user.home"), ".history.ring").toString()));
+
+	/**
+	 * The default size of a slot in bytes.
+	 */
+	public static final int DEFAULT_SLOT_SIZE = 512;
+
+	/**
+	 * The signature and the version of the mapped file.
+	 */
+	private static final byte[] MAGIC = { 'P', 'T', 'R', 'I', 'N', 'G', 0, 1 };
+
+	/**
+	 * The size of the header.
+	 */
+	private static final int HEADER = 64;
+
+	private static final int HEADER_SLOT_SIZE = 8;
+
+	private static final int HEADER_SLOT_COUNT = 12;
+
+	private static final int HEADER_LO = 16;
+
+	private static final int HEADER_HI = 24;
+
+	private static final int SLOT_SEQUENCE = 0;
+
+	private static final int SLOT_SECOND = 8;
+
+	private static final int SLOT_NANO = 16;
+
+	private static final int SLOT_LENGTH = 20;
+
+	private static final int SLOT_BODY = 24;
+
+	/**
+	 * The minimum size of a slot.
+	 */
+	private static final int MIN_SLOT_SIZE = 32;
+
+	/**
+	 * The sequence number of a slot being written.
+	 */
+	private static final long WRITING = -1L;
+
+	/**
+	 * Path to the mapped file.
+	 */
+	private final Path path;
+
+	/**
+	 * The maximum size of the history buffer.
+	 */
+	private final int maxSize;
+
+	/**
+	 * The size of a slot in bytes.
+	 */
+	private final int slotSize;
+
+	/**
+	 * The number of slots of the ring.
+	 */
+	private final int slotCount;
+
+	/**
+	 * The mapped file, or null until it is mapped, guarded by this object.
+	 */
+	private MappedByteBuffer buffer;
+	
+	/**
+	 * The lock to write the slots, it is read only when an optimistic read fails.
+	 */
+	private final StampedLock slots = new StampedLock();
+
+	/**
+	 * The current contents, published after each modification.
+	 */
+	private volatile Window current;
+
+	/**
+	 * Creates an instance of this class by system properties.
+	 */
+	public MappedHistory() {
+		this(DEFAULT_MAPPED_PATH);
+	}
+
+	/**
+	 * Creates an instance of this class, provides {@code path}.
+	 * The maximum size and the slot size are obtained by system properties.
+	 *
+	 * @param path the path to the mapped file, not null
+	 */
+	public MappedHistory(Path path) {
+		this(path, Math.min(Integer.getInteger(AbstractHistory.PROPERTY_KEY_HISTORY_SIZE, AbstractHistory.DEFAULT_HISTORY_SIZE),
+				maxSizeOf(slotSizeProperty())));
+	}
+
+	/**
+	 * Creates an instance of this class, provides {@code path} and {@code maxSize}.
+	 * The slot size is obtained by system property.
+	 *
+	 * @param path the path to the mapped file, not null
+	 * @param maxSize the maximum size of history buffer, {@link AbstractHistory#DEFAULT_HISTORY_SIZE} if negative
+	 */
+	public MappedHistory(Path path, int maxSize) {
+		this(path, maxSize, slotSizeProperty());
+	}
+
+	/**
+	 * Creates an instance of this class, provides {@code path}, {@code maxSize} and {@code slotSize}.
+	 *
+	 * @param path the path to the mapped file, not null
+	 * @param maxSize the maximum size of history buffer, {@link AbstractHistory#DEFAULT_HISTORY_SIZE} if negative
+	 * @param slotSize the size of a slot in bytes, a multiple of 8 and 32 or above,
+	 *        a body up to {@code slotSize - 24} bytes in UTF-8 is accepted
+	 * @throws IllegalArgumentException the slot size is invalid, or the mapped file is too large
+	 */
+	public MappedHistory(Path path, int maxSize, int slotSize) {
+		if (!isValidSlotSize(slotSize)) {
+			throw new IllegalArgumentException("slotSize: " + slotSize);
+		}
+		this.path = requireNonNull(path);
+		this.maxSize = maxSize < 0 ? AbstractHistory.DEFAULT_HISTORY_SIZE : maxSize;
+		this.slotSize = slotSize;
+		long slots = this.maxSize == 0 ? 0L : this.maxSize + Math.max((long) this.maxSize, 64L);
+		if (HEADER + slots * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too large: " + this.maxSize + " slots of " + slotSize + " bytes");
+		}
+		this.slotCount = (int) slots;
+		this.current = new Window(null, 0L, 0L);
+	}
+
+	private static boolean isValidSlotSize(int slotSize) {
+		return slotSize >= MIN_SLOT_SIZE && slotSize % 8 == 0;
+	}
+
+	/**
+	 * Obtains the slot size by system property, {@link #DEFAULT_SLOT_SIZE} if it is invalid.
+	 */
+	private static int slotSizeProperty() {
+		int slotSize = Integer.getInteger(PROPERTY_KEY_HISTORY_MAPPED_SLOT, DEFAULT_SLOT_SIZE);
+		return isValidSlotSize(slotSize) ? slotSize : DEFAULT_SLOT_SIZE;
+	}
+
+	/**
+	 * Obtains the largest maximum size whose mapped file fits in 2 GiB.
+	 */
+	private static int maxSizeOf(int slotSize) {
+		long slots = (Integer.MAX_VALUE - HEADER) / slotSize;
+		return (int) Math.max(Math.min(slots / 2L, slots - 64L), 0L);
+	}
+
+	/**
+	 * Obtains path to the mapped file.
+	 *
+	 * @return path to the mapped file, never null
+	 */
+	public Path getHistoryFilePath() {
+		return path;
+	}
+
+	/**
+	 * Obtains the size of a slot.
+	 *
+	 * @return the size of a slot in bytes
+	 */
+	public int getSlotSize() {
+		return slotSize;
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.History#getMaxSize()
+	 */
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Maps the file, and reads the header written by other instances.
+	 *
+	 * @see jp.coppermine.poortoys.history.History#load()
+	 */
+	@Override
+	public synchronized void load() {
+		if (buffer == null) {
+			open();
+			return;
+		}
+		long hi = buffer.getLong(HEADER_HI);
+		publish(Math.max(buffer.getLong(HEADER_LO), hi - maxSize), hi);
+	}
+
+	/**
+	 * Forces the mapped file to the storage device.
+	 * The commands are already in the mapped file when they are appended.
+	 *
+	 * @see jp.coppermine.poortoys.history.History#save()
+	 */
+	@Override
+	public synchronized void save() {
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Obtains the commands in the mapped file, newest-first.
+	 * <p>
+	 * The list is an immutable view of the slots, validated by their sequence numbers. It is
+	 * not changed by later modifications, and throws {@link ConcurrentModificationException}
+	 * when a command is read after its slot is reused. It is empty until the file is mapped.
+	 *
+	 * @see jp.coppermine.poortoys.history.History#list()
+	 */
+	@Override
+	public List<Command> list() {
+		return current;
+	}
+
+	/**
+	 * Writes a command to the next slot of the mapped file.
+	 *
+	 * @throws IllegalArgumentException the body is longer than the slot allows in UTF-8
+	 * @see jp.coppermine.poortoys.history.History#append(jp.coppermine.poortoys.history.Command)
+	 */
+	@Override
+	public synchronized void append(Command command) {
+		byte[] body = command.getCommand().getBytes(UTF_8);
+		if (!fits(body)) {
+			throw new IllegalArgumentException("too long: " + body.length + " bytes, the slot allows "
+					+ (slotSize - SLOT_BODY));
+		}
+		opened();
+		if (maxSize == 0) {
+			return;
+		}
+		Window w = current;
+		write(w.hi, command.getEpochSecond(), command.getNano(), body);
+		publish(Math.max(w.lo, w.hi + 1 - maxSize), w.hi + 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.History#clear()
+	 */
+	@Override
+	public synchronized void clear() {
+		opened();
+		publish(current.hi, current.hi);
+	}
+
+	/**
+	 * Removes the commands created at {@code expired} or before.
+	 * <p>
+	 * If they are the oldest ones, only the header is updated. Otherwise the rest are written again
+	 * as the newest commands to the free slots, and the header is updated after that, so the slots
+	 * of the current commands are never overwritten.
+	 *
+	 * @see jp.coppermine.poortoys.history.History#shrink(java.time.LocalDateTime)
+	 */
+	@Override
+	public synchronized void shrink(LocalDateTime expired) {
+		requireNonNull(expired);
+		opened();
+		Window w = current;
+		Command limit = Command.of("", expired);
+		long lo = w.lo;
+		while (lo < w.hi && !w.isAfter(lo, limit)) {
+			lo++;
+		}
+		List<Command> alive = new ArrayList<>();
+		boolean scattered = false;
+		for (long seq = lo; seq < w.hi; seq++) {
+			if (w.isAfter(seq, limit)) {
+				alive.add(w.at(seq));
+			} else {
+				scattered = true;
+			}
+		}
+		if (!scattered) {
+			if (lo != w.lo) {
+				publish(lo, w.hi);
+			}
+			return;
+		}
+		// fewer than the maximum size, so they fit in the free slots
+		long seq = w.hi;
+		for (Command command : alive) {
+			write(seq++, command.getEpochSecond(), command.getNano(), command.getCommand().getBytes(UTF_8));
+		}
+		publish(w.hi, seq);
+	}
+
+	/**
+	 * Maps the file if not yet. The caller must hold the lock of this.
+	 */
+	private void opened() {
+		if (buffer == null) {
+			open();
+		}
+	}
+
+	/**
+	 * Maps the file, creating or converting it.
+	 * The caller must hold the lock of this.
+	 */
+	private void open() {
+		int size = HEADER + slotCount * slotSize;
+		List<Command> converted = Collections.emptyList();
+		try (FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+				// reads the header
+			}
+			boolean exists = header.position() > 0;
+			if (exists) {
+				if (header.position() < HEADER || !Arrays.equals(Arrays.copyOf(header.array(), MAGIC.length), MAGIC)) {
+					throw new IOException("not a mapped history file: " + path);
+				}
+				if (header.getInt(HEADER_SLOT_SIZE) == slotSize && header.getInt(HEADER_SLOT_COUNT) == slotCount
+						&& channel.size() >= size) {
+					buffer = channel.map(MapMode.READ_WRITE, 0L, size);
+					long hi = buffer.getLong(HEADER_HI);
+					publish(Math.max(buffer.getLong(HEADER_LO), hi - maxSize), hi);
+					return;
+				}
+				converted = read(channel, header);
+				channel.truncate(0L);
+			}
+			buffer = channel.map(MapMode.READ_WRITE, 0L, size);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.put(MAGIC);
+		buffer.putInt(HEADER_SLOT_SIZE, slotSize);
+		buffer.putInt(HEADER_SLOT_COUNT, slotCount);
+		long seq = 0L;
+		for (Command command : converted) {
+			byte[] body = command.getCommand().getBytes(UTF_8);
+			// a command longer than the new slots is dropped, rather than truncated
+			if (fits(body)) {
+				write(seq++, command.getEpochSecond(), command.getNano(), body);
+			}
+		}
+		publish(0L, seq);
+	}
+
+	/**
+	 * Reads the newest commands of a mapped file in another geometry.
+	 *
+	 * @param channel the mapped file
+	 * @param header the header of the file
+	 * @return the commands, oldest-first
+	 * @throws IOException if an I/O error occurs
+	 */
+	private List<Command> read(FileChannel channel, ByteBuffer header) throws IOException {
+		int oldSize = header.getInt(HEADER_SLOT_SIZE);
+		int oldCount = header.getInt(HEADER_SLOT_COUNT);
+		long hi = header.getLong(HEADER_HI);
+		long lo = Math.max(header.getLong(HEADER_LO), hi - maxSize);
+		List<Command> commands = new ArrayList<>();
+		if (oldCount == 0 || oldSize < MIN_SLOT_SIZE) {
+			return commands;
+		}
+		ByteBuffer slot = ByteBuffer.allocate(oldSize);
+		for (long seq = lo; seq < hi; seq++) {
+			slot.clear();
+			long position = HEADER + (seq % oldCount) * oldSize;
+			while (slot.hasRemaining() && channel.read(slot, position + slot.position()) >= 0) {
+				// reads the slot
+			}
+			if (!slot.hasRemaining() && slot.getLong(SLOT_SEQUENCE) == seq) {
+				commands.add(decode(slot, 0));
+			}
+		}
+		return commands;
+	}
+
+	/**
+	 * Writes a command to the slot of a sequence number.
+	 * The caller must hold the lock of this.
+	 */
+	private void write(long seq, long epochSecond, int nano, byte[] body) {
+		int offset = offset(seq);
+		long stamp = slots.writeLock();
+		try {
+			// other processes reading the reused slot see that it is being written
+			buffer.putLong(offset + SLOT_SEQUENCE, WRITING);
+			buffer.putLong(offset + SLOT_SECOND, epochSecond);
+			buffer.putInt(offset + SLOT_NANO, nano);
+			buffer.putInt(offset + SLOT_LENGTH, body.length);
+			ByteBuffer slot = buffer.duplicate();
+			slot.position(offset + SLOT_BODY);
+			slot.put(body);
+			buffer.putLong(offset + SLOT_SEQUENCE, seq);
+		} finally {
+			slots.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Updates the header and publishes the contents.
+	 * The caller must hold the lock of this.
+	 */
+	private void publish(long lo, long hi) {
+		buffer.putLong(HEADER_LO, lo);
+		buffer.putLong(HEADER_HI, hi);
+		current = new Window(buffer, lo, hi);
+	}
+
+	/**
+	 * Tests whether a UTF-8 body fits in a slot.
+	 */
+	private boolean fits(byte[] body) {
+		return body.length <= slotSize - SLOT_BODY;
+	}
+
+	private int offset(long seq) {
+		return HEADER + (int) (seq % slotCount) * slotSize;
+	}
+
+	/**
+	 * Decodes the command in a slot.
+	 */
+	private static Command decode(ByteBuffer buffer, int offset) {
+		int length = buffer.getInt(offset + SLOT_LENGTH);
+		ByteBuffer body = buffer.duplicate();
+		body.limit(offset + SLOT_BODY + length);
+		body.position(offset + SLOT_BODY);
+		// the slots are written from valid commands, and the views are not interned
+		return new Command(UTF_8.decode(body).toString(), buffer.getLong(offset + SLOT_SECOND), buffer.getInt(offset + SLOT_NANO));
+	}
+
+	/**
+	 * The commands in the mapped file between two sequence numbers, viewed as a newest-first list.
+	 */
+	private final class Window extends AbstractList<Command> implements RandomAccess {
+
+		private final ByteBuffer buffer;
+
+		/**
+		 * The sequence number of the oldest command.
+		 */
+		private final long lo;
+
+		/**
+		 * The sequence number next to the newest command.
+		 */
+		private final long hi;
+
+		private Window(ByteBuffer buffer, long lo, long hi) {
+			this.buffer = buffer;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		/**
+		 * Obtains the command by its sequence number.
+		 * <p>
+		 * The slot is read without locking, and validated by the lock of the slots after that, which
+		 * orders the reads before the validation. If a slot is written meanwhile, it is read again
+		 * under the lock.
+		 *
+		 * @throws ConcurrentModificationException the slot is reused
+		 */
+		private Command at(long seq) {
+			int offset = offset(seq);
+			long stamp = slots.tryOptimisticRead();
+			Command command = read(offset, seq);
+			if (command == null || !slots.validate(stamp)) {
+				stamp = slots.readLock();
+				try {
+					command = read(offset, seq);
+				} finally {
+					slots.unlockRead(stamp);
+				}
+				if (command == null) {
+					throw new ConcurrentModificationException("the slot is reused: " + seq);
+				}
+			}
+			return command;
+		}
+
+		/**
+		 * Reads the command in a slot, if the slot holds the sequence number.
+		 *
+		 * @return the command, or null if the slot holds another one or is being written
+		 */
+		private Command read(int offset, long seq) {
+			if (buffer.getLong(offset + SLOT_SEQUENCE) != seq) {
+				return null;
+			}
+			int length = buffer.getInt(offset + SLOT_LENGTH);
+			if (length < 0 || length > slotSize - SLOT_BODY) {
+				return null;
+			}
+			return decode(buffer, offset);
+		}
+
+		/**
+		 * Tests whether the command of a sequence number is after another command, without creating it.
+		 * The caller must hold the lock of the history.
+		 */
+		private boolean isAfter(long seq, Command command) {
+			int offset = offset(seq);
+			long second = buffer.getLong(offset + SLOT_SECOND);
+			return second > command.getEpochSecond()
+					|| (second == command.getEpochSecond() && buffer.getInt(offset + SLOT_NANO) > command.getNano());
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public Command get(int index) {
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+			}
+			return at(hi - 1 - index);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return (int) (hi - lo);
+		}
+
+	}
+
+}
@@ -0,0 +1,376 @@
+package jp.coppermine.poortoys.history;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A trigram inverted index over the distinct command bodies of the history buffer.
+ * <p>
+ * Every posting list is ordered most recent first, so a search walks posting lists from the most
+ * recent term and stops as soon as it has enough commands. Substring search walks only the smallest
+ * posting list of the trigrams of the text. For typo-tolerant search, the text is split into
+ * {@code k + 1} pieces: if a body contains the text within {@code k} edits, it contains at least one
+ * of the pieces as it is. Only the terms found by the pieces are verified by approximate matching,
+ * and the split points are chosen to make them fewest.
+ * <p>
+ * Postings are kept per distinct body, so repeated commands cost the index only reordering the
+ * posting lists of the body.
+ */
+final class NgramIndex implements HistoryIndex {
+
+	/**
+	 * The length of grams.
+	 */
+	static final int GRAM = 3;
+
+	/**
+	 * Orders terms most recent first. Sequence numbers are unique, so are the terms.
+	 */
+	private static final Comparator<Term> RECENCY = (a, b) -> Long.compare(b.latest, a.latest);
+
+	/**
+	 * Distinct command bodies.
+	 */
+	private final Map<String, Term> terms = new HashMap<>();
+
+	/**
+	 * All terms, most recent first.
+	 */
+	private final NavigableSet<Term> recent = new TreeSet<>(RECENCY);
+
+	/**
+	 * Terms for each trigram, most recent first.
+	 */
+	private final Map<String, NavigableSet<Term>> postings = new HashMap<>();
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryIndex#added(jp.coppermine.poortoys.history.Command, long)
+	 */
+	@Override
+	public void added(Command command, long sequence) {
+		Term term = terms.get(command.getCommand());
+		if (term == null) {
+			term = new Term(command.getCommand());
+			terms.put(term.body, term);
+		} else {
+			unlink(term);
+		}
+		term.commands.addLast(command);
+		term.latest = sequence;
+		recent.add(term);
+		for (String gram : term.grams) {
+			postings.computeIfAbsent(gram, k -> new TreeSet<>(RECENCY)).add(term);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryIndex#removed(jp.coppermine.poortoys.history.Command, long)
+	 */
+	@Override
+	public void removed(Command command, long sequence) {
+		Term term = terms.get(command.getCommand());
+		if (term == null) {
+			throw new IllegalStateException("not indexed: " + command);
+		}
+		term.commands.pollFirst();
+		if (term.commands.isEmpty()) {
+			// The latest sequence number is unchanged while the term has other commands.
+			terms.remove(term.body);
+			unlink(term);
+		}
+	}
+
+	/**
+	 * Removes a term from the ordered sets, before its order changes or it is removed.
+	 */
+	private void unlink(Term term) {
+		recent.remove(term);
+		for (String gram : term.grams) {
+			NavigableSet<Term> posting = postings.get(gram);
+			posting.remove(term);
+			if (posting.isEmpty()) {
+				postings.remove(gram);
+			}
+		}
+	}
+
+	/**
+	 * Searches the commands containing {@code text}.
+	 * <p>
+	 * Each distinct command body appears once, as its most recent command.
+	 *
+	 * @param text the text to search, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, most recent first
+	 */
+	List<Command> searchContaining(CharSequence text, int limit) {
+		String pattern = text.toString();
+		List<Command> result = new ArrayList<>();
+		Iterator<Term> candidates = candidates(pattern).iterator();
+		while (result.size() < limit && candidates.hasNext()) {
+			Term term = candidates.next();
+			if (term.body.contains(pattern)) {
+				result.add(term.commands.peekLast());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Searches the commands containing {@code text} approximately.
+	 * <p>
+	 * A command matches if a substring of it is within {@link #maxErrors(int)} edits
+	 * (insertion, deletion or substitution of a character) from {@code text}. Commands are ranked
+	 * by the number of edits, and then most recent first. Each distinct command body appears once.
+	 *
+	 * @param text the text to search, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, best first
+	 */
+	List<Command> searchSimilar(CharSequence text, int limit) {
+		String pattern = text.toString();
+		List<Command> exact = searchContaining(pattern, limit);
+		int errors = maxErrors(pattern.length());
+		if (exact.size() == limit || errors == 0) {
+			return exact;
+		}
+		PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+		for (NavigableSet<Term> candidates : pieces(pattern, errors + 1)) {
+			Cursor cursor = new Cursor(candidates.iterator());
+			if (cursor.current != null) {
+				cursors.add(cursor);
+			}
+		}
+		// A body within k edits shares all trigrams of the text but 3k with it.
+		Set<String> grams = new HashSet<>();
+		for (int i = 0; i + GRAM <= pattern.length(); i++) {
+			grams.add(pattern.substring(i, i + GRAM));
+		}
+		int threshold = grams.size() - GRAM * errors;
+		// Buckets by the number of edits, each is most recent first.
+		List<List<Term>> matched = new ArrayList<>();
+		for (int i = 0; i <= errors; i++) {
+			matched.add(new ArrayList<>());
+		}
+		Term last = null;
+		while (!cursors.isEmpty() && matched.get(0).size() < limit) {
+			// Merges the candidates most recent first, no more recent candidate can beat exact ones.
+			Cursor cursor = cursors.poll();
+			Term term = cursor.current;
+			if (cursor.advance()) {
+				cursors.add(cursor);
+			}
+			if (term == last) {
+				continue;
+			}
+			last = term;
+			if (threshold > 0 && term.shared(grams) < threshold) {
+				continue;
+			}
+			int distance = distance(pattern, term.body);
+			if (distance <= errors) {
+				matched.get(distance).add(term);
+			}
+		}
+		List<Command> result = new ArrayList<>();
+		for (List<Term> bucket : matched) {
+			for (int i = 0; i < bucket.size() && result.size() < limit; i++) {
+				result.add(bucket.get(i).commands.peekLast());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Obtains the number of edits which approximate search allows.
+	 * It is a sixth of the length of the text, so each of the pieces split by it
+	 * is a trigram or longer.
+	 *
+	 * @param length the length of the text to search
+	 * @return the number of edits, 0 or above
+	 */
+	static int maxErrors(int length) {
+		return length / 6;
+	}
+
+	/**
+	 * Splits a text into pieces, and obtains the candidate terms of each piece.
+	 * <p>
+	 * If a body contains the text within {@code pieces - 1} edits, it contains at least one
+	 * of the pieces as it is. The split points are chosen so that the candidates are fewest.
+	 *
+	 * @param text the text to split, its length must be {@code pieces * GRAM} or above
+	 * @param pieces the number of pieces
+	 * @return the candidate terms of each piece
+	 */
+	private List<NavigableSet<Term>> pieces(String text, int pieces) {
+		int m = text.length();
+		// cost[p][i]: the fewest candidates splitting text[0, i) into p pieces
+		long[][] cost = new long[pieces + 1][m + 1];
+		int[][] split = new int[pieces + 1][m + 1];
+		for (long[] row : cost) {
+			Arrays.fill(row, Long.MAX_VALUE);
+		}
+		cost[0][0] = 0L;
+		for (int p = 1; p <= pieces; p++) {
+			for (int i = p * GRAM; i <= m - (pieces - p) * GRAM; i++) {
+				for (int j = (p - 1) * GRAM; j <= i - GRAM; j++) {
+					if (cost[p - 1][j] == Long.MAX_VALUE) {
+						continue;
+					}
+					long c = cost[p - 1][j] + candidates(text.substring(j, i)).size();
+					if (c < cost[p][i]) {
+						cost[p][i] = c;
+						split[p][i] = j;
+					}
+				}
+			}
+		}
+		List<NavigableSet<Term>> result = new ArrayList<>();
+		for (int p = pieces, i = m; p > 0; i = split[p][i], p--) {
+			result.add(candidates(text.substring(split[p][i], i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Obtains the terms which may contain {@code text}, most recent first.
+	 * <p>
+	 * It is the smallest posting list of trigrams in {@code text}.
+	 * If {@code text} is shorter than a trigram, it is all terms.
+	 *
+	 * @param text the text to search
+	 * @return the candidate terms, never null
+	 */
+	private NavigableSet<Term> candidates(String text) {
+		if (text.length() < GRAM) {
+			return recent;
+		}
+		NavigableSet<Term> candidates = null;
+		for (int i = 0; i + GRAM <= text.length(); i++) {
+			NavigableSet<Term> posting = postings.get(text.substring(i, i + GRAM));
+			if (posting == null) {
+				return Collections.emptyNavigableSet();
+			}
+			if (candidates == null || posting.size() < candidates.size()) {
+				candidates = posting;
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Computes the least number of edits from {@code pattern} to any substring of {@code text}.
+	 *
+	 * @param pattern the text to search
+	 * @param text the text to search in
+	 * @return the number of edits, it is {@code pattern.length()} at most
+	 */
+	static int distance(CharSequence pattern, CharSequence text) {
+		int m = pattern.length();
+		// column[i]: the least edits from pattern[0, i) to a substring of text ending at the current position
+		int[] column = new int[m + 1];
+		for (int i = 0; i <= m; i++) {
+			column[i] = i;
+		}
+		int best = column[m];
+		for (int j = 0; j < text.length(); j++) {
+			char c = text.charAt(j);
+			int diagonal = 0;
+			for (int i = 1; i <= m; i++) {
+				int above = column[i];
+				int cost = pattern.charAt(i - 1) == c ? 0 : 1;
+				column[i] = Math.min(Math.min(column[i - 1] + 1, above + 1), diagonal + cost);
+				diagonal = above;
+			}
+			best = Math.min(best, column[m]);
+		}
+		return best;
+	}
+
+	/**
+	 * A distinct command body.
+	 */
+	private static final class Term {
+
+		private final String body;
+
+		/**
+		 * The distinct trigrams of the body.
+		 */
+		private final String[] grams;
+
+		/**
+		 * Commands with this body in the history buffer, oldest-first.
+		 */
+		private final Deque<Command> commands = new ArrayDeque<>(1);
+
+		/**
+		 * The sequence number of the newest command.
+		 */
+		private long latest;
+
+		private Term(String body) {
+			this.body = body;
+			Set<String> grams = new HashSet<>();
+			for (int i = 0; i + GRAM <= body.length(); i++) {
+				grams.add(body.substring(i, i + GRAM));
+			}
+			this.grams = grams.toArray(new String[grams.size()]);
+		}
+
+		/**
+		 * Counts the trigrams of the body contained in {@code grams}.
+		 */
+		private int shared(Set<String> grams) {
+			int count = 0;
+			for (String gram : this.grams) {
+				if (grams.contains(gram)) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+	}
+
+	/**
+	 * An iterator over a posting list, ordered by its current term.
+	 */
+	private static final class Cursor implements Comparable<Cursor> {
+
+		private final Iterator<Term> iterator;
+
+		private Term current;
+
+		private Cursor(Iterator<Term> iterator) {
+			this.iterator = iterator;
+			advance();
+		}
+
+		private boolean advance() {
+			current = iterator.hasNext() ? iterator.next() : null;
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			return RECENCY.compare(current, other.current);
+		}
+
+	}
+
+}
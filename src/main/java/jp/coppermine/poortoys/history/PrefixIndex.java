@@ -0,0 +1,200 @@
+package jp.coppermine.poortoys.history;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A prefix trie over the command bodies of the history buffer.
+ * <p>
+ * Each node knows the newest sequence number in its subtree. Because commands leave the history
+ * buffer oldest-first, or after a newer command with the same body, removing a command never
+ * changes that value of a non-empty subtree, so both updates only walk the path of the command.
+ * {@link #search(CharSequence, int)} visits the subtree
+ * best-first by that value and stops when enough commands are found, so its cost depends on the
+ * prefix length and the result size rather than the history size.
+ */
+final class PrefixIndex implements HistoryIndex {
+
+	/**
+	 * The root node, it represents the empty prefix.
+	 */
+	private final Node root = new Node(null, '\0');
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryIndex#added(jp.coppermine.poortoys.history.Command, long)
+	 */
+	@Override
+	public void added(Command command, long sequence) {
+		String body = command.getCommand();
+		Node node = root;
+		node.count++;
+		node.latest = sequence;
+		for (int i = 0; i < body.length(); i++) {
+			node = node.child(body.charAt(i), true);
+			node.count++;
+			node.latest = sequence;
+		}
+		if (node.occurrences == null) {
+			node.occurrences = new ArrayDeque<>(1);
+		}
+		node.occurrences.addLast(new Occurrence(command, sequence));
+	}
+
+	/* (non-Javadoc)
+	 * @see jp.coppermine.poortoys.history.HistoryIndex#removed(jp.coppermine.poortoys.history.Command, long)
+	 */
+	@Override
+	public void removed(Command command, long sequence) {
+		Node node = find(command.getCommand());
+		if (node == null || node.occurrences == null || node.occurrences.isEmpty()) {
+			throw new IllegalStateException("not indexed: " + command);
+		}
+		node.occurrences.pollFirst();
+		if (node.occurrences.isEmpty()) {
+			node.occurrences = null;
+		}
+		for (; node != null; node = node.parent) {
+			node.count--;
+			if (node.count == 0 && node.parent != null) {
+				node.parent.children.remove(node.key);
+			}
+		}
+	}
+
+	/**
+	 * Searches the commands starting with {@code prefix}.
+	 * <p>
+	 * Each distinct command body appears once, as its most recent command.
+	 *
+	 * @param prefix the prefix, not null
+	 * @param limit the maximum number of commands, 0 or above
+	 * @return the matched commands, most recent first
+	 */
+	List<Command> search(CharSequence prefix, int limit) {
+		Node start = find(prefix);
+		if (start == null || limit == 0) {
+			return Collections.emptyList();
+		}
+		List<Command> result = new ArrayList<>(Math.min(limit, start.count));
+		PriorityQueue<Occurrence> queue = new PriorityQueue<>((a, b) -> Long.compare(b.sequence, a.sequence));
+		queue.add(start.pointer());
+		while (!queue.isEmpty() && result.size() < limit) {
+			Occurrence head = queue.poll();
+			if (head.node == null) {
+				result.add(head.command);
+				continue;
+			}
+			Node node = head.node;
+			if (node.occurrences != null) {
+				queue.add(node.occurrences.peekLast());
+			}
+			if (node.children != null) {
+				for (Node child : node.children.values()) {
+					queue.add(child.pointer());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the node of the prefix.
+	 *
+	 * @param prefix the prefix
+	 * @return the node, or null if no command starts with {@code prefix}
+	 */
+	private Node find(CharSequence prefix) {
+		Node node = root;
+		for (int i = 0; i < prefix.length() && node != null; i++) {
+			node = node.child(prefix.charAt(i), false);
+		}
+		return node == null || node.count == 0 ? null : node;
+	}
+
+	/**
+	 * A node of the trie.
+	 */
+	private static final class Node {
+
+		private final Node parent;
+
+		private final char key;
+
+		/**
+		 * Child nodes, created lazily.
+		 */
+		private Map<Character, Node> children;
+
+		/**
+		 * The number of commands in the subtree.
+		 */
+		private int count;
+
+		/**
+		 * The newest sequence number in the subtree.
+		 */
+		private long latest;
+
+		/**
+		 * Commands whose body ends at this node, oldest-first, or null.
+		 */
+		private Deque<Occurrence> occurrences;
+
+		private Node(Node parent, char key) {
+			this.parent = parent;
+			this.key = key;
+		}
+
+		private Node child(char c, boolean create) {
+			if (children == null) {
+				if (!create) {
+					return null;
+				}
+				children = new HashMap<>(4);
+			}
+			Node child = children.get(c);
+			if (child == null && create) {
+				child = new Node(this, c);
+				children.put(c, child);
+			}
+			return child;
+		}
+
+		private Occurrence pointer() {
+			return new Occurrence(this, latest);
+		}
+
+	}
+
+	/**
+	 * A command in the trie, or a pointer to a subtree while searching.
+	 */
+	private static final class Occurrence {
+
+		private final Command command;
+
+		private final Node node;
+
+		private final long sequence;
+
+		private Occurrence(Command command, long sequence) {
+			this.command = command;
+			this.node = null;
+			this.sequence = sequence;
+		}
+
+		private Occurrence(Node node, long sequence) {
+			this.command = null;
+			this.node = node;
+			this.sequence = sequence;
+		}
+
+	}
+
+}
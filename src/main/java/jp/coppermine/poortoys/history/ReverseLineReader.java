@@ -0,0 +1,161 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads lines of a text file backwards, from the last line to the first line.
+ * <p>
+ * The file is read by positional reads of blocks from the end, so reading the last lines costs
+ * only their size regardless of the file size. Lines are separated by {@code LF} and an optional
+ * {@code CR} before it is removed, so it supports only charsets encoding them in single bytes
+ * which never appear in other characters (<i>e.g.</i> UTF-8). See {@link #supports(Charset)}.
+ */
+final class ReverseLineReader implements Closeable {
+
+	/**
+	 * The size of a block read at once.
+	 */
+	private static final int BLOCK_SIZE = 8192;
+
+	/**
+	 * Multibyte charsets which never use ASCII bytes in multibyte characters.
+	 */
+	private static final List<String> ASCII_COMPATIBLE =
+			Arrays.asList("UTF-8", "EUC-JP", "Shift_JIS", "windows-31j", "GB18030", "GBK", "EUC-KR", "Big5");
+
+	private final FileChannel channel;
+
+	private final Charset charset;
+
+	/**
+	 * The position in the file of {@code buffer[0]}.
+	 */
+	private long position;
+
+	/**
+	 * Bytes read from the file but not returned yet.
+	 */
+	private byte[] buffer = new byte[0];
+
+	/**
+	 * The end of bytes not returned yet in {@code buffer}, or -1 if the first line is returned.
+	 */
+	private int end;
+
+	/**
+	 * Opens a file to read lines backwards.
+	 *
+	 * @param path the path to the file, not null
+	 * @param charset the charset of the file, it must be supported
+	 * @throws IOException if an I/O error occurs
+	 */
+	ReverseLineReader(Path path, Charset charset) throws IOException {
+		if (!supports(charset)) {
+			throw new IllegalArgumentException("charset: " + charset);
+		}
+		this.charset = charset;
+		this.channel = FileChannel.open(path, READ);
+		this.position = channel.size();
+		if (fill() && buffer[end - 1] == '\n') {
+			// the line separator at the end of the file does not start a new line
+			end--;
+		}
+	}
+
+	/**
+	 * Tests whether a charset can be read backwards.
+	 *
+	 * @param charset the charset
+	 * @return {@code true} if line separators are encoded as single ASCII bytes, and the bytes
+	 *         never appear in other characters
+	 */
+	static boolean supports(Charset charset) {
+		if (!charset.canEncode() || !Arrays.equals("\r\n".getBytes(charset), new byte[] { '\r', '\n' })) {
+			return false;
+		}
+		// multibyte charsets whose trailing bytes never collide with them
+		return charset.newEncoder().maxBytesPerChar() <= 1.0f
+				|| ASCII_COMPATIBLE.contains(charset.name());
+	}
+
+	/**
+	 * Reads the previous line.
+	 *
+	 * @return the line without line separators, or null if the first line was returned
+	 * @throws IOException if an I/O error occurs
+	 */
+	String readLine() throws IOException {
+		if (end < 0) {
+			return null;
+		}
+		int from = end;
+		while (true) {
+			for (int i = from - 1; i >= 0; i--) {
+				if (buffer[i] == '\n') {
+					String line = decode(i + 1, end);
+					end = i;
+					return line;
+				}
+			}
+			int size = end;
+			if (!fill()) {
+				String line = decode(0, end);
+				end = -1;
+				return line;
+			}
+			// the bytes read before have no line separator
+			from = end - size;
+		}
+	}
+
+	/**
+	 * Reads the block before the bytes not returned yet.
+	 *
+	 * @return {@code false} if it is the beginning of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean fill() throws IOException {
+		if (position == 0) {
+			return false;
+		}
+		int size = (int) Math.min(BLOCK_SIZE, position);
+		byte[] grown = new byte[size + end];
+		position -= size;
+		ByteBuffer block = ByteBuffer.wrap(grown, 0, size);
+		while (block.hasRemaining()) {
+			if (channel.read(block, position + block.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		System.arraycopy(buffer, 0, grown, size, end);
+		buffer = grown;
+		end += size;
+		return true;
+	}
+
+	private String decode(int from, int to) {
+		if (to > from && buffer[to - 1] == '\r') {
+			to--;
+		}
+		return new String(buffer, from, to - from, charset);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,94 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAmount;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Expires old commands of a history periodically on a background thread.
+ * <p>
+ * Each run calls {@link History#shrink(LocalDateTime)} with the current time minus the retention
+ * period, so expired commands are removed from the history buffer without waiting the next load.
+ * The history store is never modified by this class.
+ * <p>
+ * The background thread is a daemon thread, so it does not prevent the application from exiting.
+ * Call {@link #close()} to stop it explicitly.
+ */
+public class ScheduledExpiry implements AutoCloseable {
+	
+	/**
+	 * The history to expire.
+	 */
+	private final History history;
+	
+	/**
+	 * The retention period of commands.
+	 */
+	private final TemporalAmount retention;
+	
+	/**
+	 * The executor running the expiration.
+	 */
+	private final ScheduledExecutorService executor;
+	
+	/**
+	 * Starts to expire commands periodically.
+	 * The first expiration runs immediately.
+	 * 
+	 * @param history the history to expire, not null
+	 * @param retention the retention period of commands, not null
+	 * @param period the interval between expirations, 1 millisecond or above
+	 * @throws IllegalArgumentException {@code period} is shorter than 1 millisecond
+	 */
+	public ScheduledExpiry(History history, TemporalAmount retention, Duration period) {
+		requireNonNull(period);
+		// checked before the thread is created, the schedule needs a positive period in milliseconds
+		if (period.isNegative() || period.toMillis() <= 0L) {
+			throw new IllegalArgumentException("period: " + period);
+		}
+		this.history = requireNonNull(history);
+		this.retention = requireNonNull(retention);
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "poortoys-history-expiry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				expire();
+			} catch (RuntimeException e) {
+				// keeps the schedule, it retries at the next period
+			}
+		}, 0L, period.toMillis(), MILLISECONDS);
+	}
+	
+	/**
+	 * Expires commands out of the retention period now.
+	 */
+	public void expire() {
+		history.shrink(LocalDateTime.now().minus(retention));
+	}
+	
+	/**
+	 * Obtains the retention period of commands.
+	 * 
+	 * @return the retention period, never null
+	 */
+	public TemporalAmount getRetention() {
+		return retention;
+	}
+	
+	/**
+	 * Stops the periodic expiration.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+	
+}
@@ -0,0 +1,130 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+
+/**
+ * When the writes of a history file are forced to the storage device.
+ * <p>
+ * {@link #never()} leaves it to the operating system, {@link #always()} forces each save, and
+ * {@link #group(Duration, int)} forces appended commands together, at most once an interval
+ * unless enough records are waiting. A rewritten history file is forced before it replaces the
+ * old one in all policies but {@link #never()}.
+ */
+public final class SyncPolicy {
+
+	/**
+	 * The kinds of the policies.
+	 */
+	public enum Mode {
+		
+		/**
+		 * Never forces writes.
+		 */
+		NEVER,
+		
+		/**
+		 * Forces each save.
+		 */
+		ALWAYS,
+		
+		/**
+		 * Forces appended commands together.
+		 */
+		GROUP
+		
+	}
+
+	private static final SyncPolicy NEVER = new SyncPolicy(Mode.NEVER, Duration.ZERO, 1);
+
+	private static final SyncPolicy ALWAYS = new SyncPolicy(Mode.ALWAYS, Duration.ZERO, 1);
+
+	private final Mode mode;
+
+	private final Duration interval;
+
+	private final int records;
+
+	private SyncPolicy(Mode mode, Duration interval, int records) {
+		this.mode = mode;
+		this.interval = interval;
+		this.records = records;
+	}
+
+	/**
+	 * Obtains the policy never forcing writes.
+	 *
+	 * @return the policy, never null
+	 */
+	public static SyncPolicy never() {
+		return NEVER;
+	}
+
+	/**
+	 * Obtains the policy forcing each save.
+	 *
+	 * @return the policy, never null
+	 */
+	public static SyncPolicy always() {
+		return ALWAYS;
+	}
+
+	/**
+	 * Obtains the policy forcing appended commands together.
+	 * <p>
+	 * Appended commands are forced when {@code records} commands are waiting, or {@code interval}
+	 * has passed from the last force. Otherwise they are forced in the background at the end of
+	 * the interval, so they reach the storage device in {@code interval} at most.
+	 *
+	 * @param interval the minimum interval of forces, 0 or above
+	 * @param records the number of waiting commands forced at once, positive
+	 * @return the policy, never null
+	 */
+	public static SyncPolicy group(Duration interval, int records) {
+		requireNonNull(interval);
+		if (interval.isNegative()) {
+			throw new IllegalArgumentException("interval: " + interval);
+		}
+		if (records <= 0) {
+			throw new IllegalArgumentException("records: " + records);
+		}
+		return new SyncPolicy(Mode.GROUP, interval, records);
+	}
+
+	/**
+	 * Obtains the kind of this policy.
+	 *
+	 * @return the mode, never null
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Obtains the minimum interval of forces in group commit.
+	 *
+	 * @return the interval, zero except in group commit
+	 */
+	public Duration getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Obtains the number of waiting commands forced at once in group commit.
+	 *
+	 * @return the number of commands, 1 except in group commit
+	 */
+	public int getRecords() {
+		return records;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return mode == Mode.GROUP ? "GROUP(" + interval + ", " + records + ")" : mode.name();
+	}
+
+}
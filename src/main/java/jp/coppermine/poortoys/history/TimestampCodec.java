@@ -0,0 +1,239 @@
+package jp.coppermine.poortoys.history;
+
+import static java.time.ZoneOffset.UTC;
+
+import java.time.LocalDateTime;
+
+/**
+ * Parses and formats timestamps of commands in ISO-8601, same as {@link LocalDateTime#parse(CharSequence)}
+ * and {@link LocalDateTime#toString()}, reading and writing digits directly.
+ * <p>
+ * Timestamps are epoch seconds and nanoseconds of a local date-time as if it were UTC.
+ * The fixed-width form {@code uuuu-MM-dd'T'HH:mm[:ss[.SSS[SSS[SSS]]]]} of years 0 to 9999 is handled
+ * without intermediate objects, and other forms fall back to {@link LocalDateTime}, so the results
+ * and the errors are the same.
+ */
+final class TimestampCodec {
+
+	/**
+	 * The maximum length of a formatted timestamp, with a 10-digit year and nanoseconds.
+	 */
+	static final int MAX_LENGTH = 35;
+
+	private static final int SECONDS_PER_DAY = 86400;
+
+	/**
+	 * Days from 0000-03-01 to 1970-01-01.
+	 */
+	private static final long DAYS_0000_TO_1970 = 719468L;
+
+	/**
+	 * Days of a 400-year cycle.
+	 */
+	private static final int DAYS_PER_CYCLE = 146097;
+
+	/**
+	 * The epoch second of 0000-01-01T00:00.
+	 */
+	private static final long MIN_FAST = -62167219200L;
+
+	/**
+	 * The epoch second after 9999-12-31T23:59:59.
+	 */
+	private static final long MAX_FAST = 253402300800L;
+
+	/**
+	 * Suppresses default constructor, ensuring non-instantiability.
+	 */
+	private TimestampCodec() { }
+
+	/**
+	 * Parses the epoch second of a timestamp.
+	 *
+	 * @param text the timestamp, not null
+	 * @return the epoch second
+	 * @throws java.time.format.DateTimeParseException if the text cannot be parsed
+	 */
+	static long epochSecond(CharSequence text) {
+		if (!isFixed(text)) {
+			return LocalDateTime.parse(text).toEpochSecond(UTC);
+		}
+		long day = epochDay(digits(text, 0, 4), digits(text, 5, 7), digits(text, 8, 10));
+		long second = text.length() >= 19 ? digits(text, 17, 19) : 0;
+		return day * SECONDS_PER_DAY + digits(text, 11, 13) * 3600 + digits(text, 14, 16) * 60 + second;
+	}
+
+	/**
+	 * Parses the nano-of-second of a timestamp.
+	 *
+	 * @param text the timestamp, not null
+	 * @return the nano-of-second
+	 * @throws java.time.format.DateTimeParseException if the text cannot be parsed
+	 */
+	static int nano(CharSequence text) {
+		if (!isFixed(text)) {
+			return LocalDateTime.parse(text).getNano();
+		}
+		int nano = 0;
+		int length = text.length();
+		for (int i = 20; i < 29; i++) {
+			nano = nano * 10 + (i < length ? text.charAt(i) - '0' : 0);
+		}
+		return nano;
+	}
+
+	/**
+	 * Formats a timestamp to a buffer.
+	 *
+	 * @param epochSecond the epoch second
+	 * @param nano the nano-of-second
+	 * @param buffer the buffer, at least {@link #MAX_LENGTH} long
+	 * @return the length of the formatted timestamp
+	 */
+	static int format(long epochSecond, int nano, char[] buffer) {
+		if (epochSecond < MIN_FAST || epochSecond >= MAX_FAST) {
+			String text = LocalDateTime.ofEpochSecond(epochSecond, nano, UTC).toString();
+			text.getChars(0, text.length(), buffer, 0);
+			return text.length();
+		}
+		long day = Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+		int time = (int) Math.floorMod(epochSecond, SECONDS_PER_DAY);
+
+		// civil date from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = day + DAYS_0000_TO_1970;
+		long era = Math.floorDiv(z, DAYS_PER_CYCLE);
+		int doe = (int) (z - era * DAYS_PER_CYCLE);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int dayOfMonth = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int) (yoe + era * 400) + (month <= 2 ? 1 : 0);
+
+		put(buffer, 0, year, 4);
+		buffer[4] = '-';
+		put(buffer, 5, month, 2);
+		buffer[7] = '-';
+		put(buffer, 8, dayOfMonth, 2);
+		buffer[10] = 'T';
+		put(buffer, 11, time / 3600, 2);
+		buffer[13] = ':';
+		put(buffer, 14, time / 60 % 60, 2);
+		if (time % 60 == 0 && nano == 0) {
+			return 16;
+		}
+		buffer[16] = ':';
+		put(buffer, 17, time % 60, 2);
+		if (nano == 0) {
+			return 19;
+		}
+		buffer[19] = '.';
+		if (nano % 1000000 == 0) {
+			put(buffer, 20, nano / 1000000, 3);
+			return 23;
+		} else if (nano % 1000 == 0) {
+			put(buffer, 20, nano / 1000, 6);
+			return 26;
+		}
+		put(buffer, 20, nano, 9);
+		return 29;
+	}
+
+	/**
+	 * Formats a timestamp.
+	 *
+	 * @param epochSecond the epoch second
+	 * @param nano the nano-of-second
+	 * @return the formatted timestamp
+	 */
+	static String format(long epochSecond, int nano) {
+		char[] buffer = new char[MAX_LENGTH];
+		return new String(buffer, 0, format(epochSecond, nano, buffer));
+	}
+
+	/**
+	 * Tests whether a text is a valid timestamp of the fixed-width form.
+	 */
+	private static boolean isFixed(CharSequence text) {
+		int length = text.length();
+		if (length != 16 && length != 19 && (length < 21 || length > 29)) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			boolean valid;
+			switch (i) {
+			case 4:
+			case 7:
+				valid = c == '-';
+				break;
+			case 10:
+				valid = c == 'T';
+				break;
+			case 13:
+			case 16:
+				valid = c == ':';
+				break;
+			case 19:
+				valid = c == '.';
+				break;
+			default:
+				valid = c >= '0' && c <= '9';
+				break;
+			}
+			if (!valid) {
+				return false;
+			}
+		}
+		int year = digits(text, 0, 4);
+		int month = digits(text, 5, 7);
+		int dayOfMonth = digits(text, 8, 10);
+		return month >= 1 && month <= 12
+				&& dayOfMonth >= 1 && dayOfMonth <= lengthOfMonth(year, month)
+				&& digits(text, 11, 13) < 24
+				&& digits(text, 14, 16) < 60
+				&& (length < 19 || digits(text, 17, 19) < 60);
+	}
+
+	private static int lengthOfMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Computes the epoch day of a date of years 0 to 9999.
+	 */
+	private static long epochDay(int year, int month, int dayOfMonth) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = Math.floorDiv(y, 400);
+		int yoe = y - era * 400;
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return (long) era * DAYS_PER_CYCLE + doe - DAYS_0000_TO_1970;
+	}
+
+	private static int digits(CharSequence text, int from, int to) {
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			value = value * 10 + text.charAt(i) - '0';
+		}
+		return value;
+	}
+
+	private static void put(char[] buffer, int offset, int value, int width) {
+		for (int i = offset + width - 1; i >= offset; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+}
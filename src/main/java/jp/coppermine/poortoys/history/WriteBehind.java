@@ -0,0 +1,220 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Saves a history on a background thread, coalescing modifications.
+ * <p>
+ * {@link #markDirty()} tells that the history buffer is modified, and {@link History#save()} runs
+ * after the delay from the first modification not saved yet, or at once when the modifications
+ * not saved reach the maximum. Modifications during the delay are saved together, and at most
+ * one save runs at a time. If a save fails, it is retried after the delay.
+ * <p>
+ * The background thread is a daemon thread, and the modifications not saved yet are saved
+ * by {@link #close()} or on the shutdown of the JVM.
+ */
+public class WriteBehind implements AutoCloseable {
+
+	/**
+	 * The history to save.
+	 */
+	private final History history;
+
+	/**
+	 * The delay from the first modification to the save.
+	 */
+	private final Duration delay;
+
+	/**
+	 * The number of modifications to save at once.
+	 */
+	private final int maxPending;
+
+	/**
+	 * The executor running saves, a single thread.
+	 */
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Saves on the shutdown of the JVM.
+	 */
+	private final Thread shutdownHook;
+
+	/**
+	 * The number of modifications not saved yet, guarded by this.
+	 */
+	private int pending;
+
+	/**
+	 * The scheduled save not started yet, or null, guarded by this.
+	 */
+	private ScheduledFuture<?> scheduled;
+
+	/**
+	 * Starts to save a history in the background.
+	 *
+	 * @param history the history to save, not null
+	 * @param delay the delay from the first modification to the save, 0 or above
+	 * @param maxPending the number of modifications to save at once, positive
+	 */
+	public WriteBehind(History history, Duration delay, int maxPending) {
+		requireNonNull(delay);
+		if (delay.isNegative()) {
+			throw new IllegalArgumentException("delay: " + delay);
+		}
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("maxPending: " + maxPending);
+		}
+		this.history = requireNonNull(history);
+		this.delay = delay;
+		this.maxPending = maxPending;
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "poortoys-history-save");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.shutdownHook = new Thread(this::close, "poortoys-history-save-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Tells that the history buffer is modified, and schedules a save.
+	 */
+	public synchronized void markDirty() {
+		pending++;
+		if (pending >= maxPending) {
+			schedule(0L);
+		} else if (scheduled == null) {
+			schedule(delay.toMillis());
+		}
+	}
+
+	/**
+	 * Obtains the number of modifications not saved yet.
+	 *
+	 * @return the number of modifications, 0 or above
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Saves the modifications not saved yet now, and waits for it and the save in flight.
+	 *
+	 * @throws RuntimeException if the save fails
+	 */
+	public void flush() {
+		Future<?> future;
+		synchronized (this) {
+			if (scheduled != null) {
+				scheduled.cancel(false);
+				scheduled = null;
+			}
+			try {
+				// runs after the save in flight, on the single thread
+				future = executor.submit(this::save);
+			} catch (RejectedExecutionException e) {
+				future = null;
+			}
+		}
+		if (future == null) {
+			// closed, saves on the caller thread
+			save();
+			return;
+		}
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Schedules a save, replacing the scheduled save.
+	 * The caller must hold the lock of this.
+	 *
+	 * @param millis the delay of the save
+	 */
+	private void schedule(long millis) {
+		if (scheduled != null) {
+			if (millis > 0L) {
+				return;
+			}
+			scheduled.cancel(false);
+		}
+		try {
+			scheduled = executor.schedule(() -> {
+				try {
+					save();
+				} catch (RuntimeException e) {
+					// retries after the delay, see save()
+				}
+			}, millis, MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// closed, close() has saved or flush() saves
+			scheduled = null;
+		}
+	}
+
+	/**
+	 * Saves the history, on the background thread.
+	 */
+	private void save() {
+		int saving;
+		synchronized (this) {
+			scheduled = null;
+			saving = pending;
+			pending = 0;
+		}
+		if (saving == 0) {
+			return;
+		}
+		try {
+			history.save();
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				pending += saving;
+				if (scheduled == null && !executor.isShutdown()) {
+					schedule(delay.toMillis());
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Saves the modifications not saved yet, and stops the background thread.
+	 */
+	@Override
+	public void close() {
+		try {
+			flush();
+		} finally {
+			executor.shutdownNow();
+			if (Thread.currentThread() != shutdownHook) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// the JVM is shutting down
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the latest request of a computation in the background after a delay.
+ * <p>
+ * A newer request cancels the older one if it has not started, and only the result of the latest
+ * request is applied by the applier (<i>e.g.</i> {@code Platform::runLater}). Requests are made
+ * and applied on the same thread, the thread of the applier.
+ * <p>
+ * In the default, computations run on a daemon thread shared by all instances, so the
+ * instances need not be disposed, and each object touched only by the computations is
+ * touched by the single thread.
+ */
+final class Debouncer {
+
+    /**
+     * The shared executor of computations, a daemon thread.
+     */
+    static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "poortoys-history-suggestion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Representation of the executor of computations.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Representation of the executor applying results.
+     */
+    private final Executor applier;
+
+    /**
+     * Representation of the latest request, or null.
+     */
+    private ScheduledFuture<?> request;
+
+    /**
+     * Generation of requests, only the result of the latest one is applied.
+     */
+    private volatile long generation;
+
+    /**
+     * Creates an instance of this class, computing on the shared executor.
+     *
+     * @param applier the executor applying results, not null
+     */
+    Debouncer(Executor applier) {
+        this(EXECUTOR, applier);
+    }
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param executor the executor of computations, a single thread, not null
+     * @param applier the executor applying results, not null
+     */
+    Debouncer(ScheduledExecutorService executor, Executor applier) {
+        this.executor = requireNonNull(executor);
+        this.applier = requireNonNull(applier);
+    }
+
+    /**
+     * Requests a computation, cancelling the previous request.
+     * <p>
+     * If the computation throws {@link RuntimeException}, it is reported to the uncaught exception
+     * handler of the thread, like an exception on the JavaFX application thread, and no result is applied.
+     *
+     * @param computation the computation, not null
+     * @param delay delay in milliseconds before the computation
+     * @param then applies the result if it is of the latest request, not null
+     */
+    <T> void request(Supplier<T> computation, long delay, Consumer<? super T> then) {
+        long current = ++generation;
+        if (request != null) {
+            request.cancel(false);
+        }
+        request = executor.schedule(() -> {
+            T result;
+            try {
+                result = computation.get();
+            } catch (RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                return;
+            }
+            applier.execute(() -> {
+                if (current == generation) {
+                    then.accept(result);
+                }
+            });
+        }, delay, MILLISECONDS);
+    }
+
+    /**
+     * Discards the request, if any.
+     */
+    void cancel() {
+        generation++;
+        if (request != null) {
+            request.cancel(false);
+            request = null;
+        }
+    }
+
+    /**
+     * Runs a task on the thread of computations, after the computations started before.
+     *
+     * @param task the task, not null
+     */
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+}
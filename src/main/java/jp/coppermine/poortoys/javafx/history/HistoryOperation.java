@@ -1,16 +1,21 @@
 package jp.coppermine.poortoys.javafx.history;
 
+import static java.util.stream.Collectors.toCollection;
 import static java.util.stream.Collectors.toList;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.TemporalAmount;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javafx.application.Platform;
 import jp.coppermine.poortoys.history.Command;
 import jp.coppermine.poortoys.history.History;
+import jp.coppermine.poortoys.history.ScheduledExpiry;
+import jp.coppermine.poortoys.history.WriteBehind;
 
 public interface HistoryOperation {
 
@@ -48,37 +53,174 @@ public interface HistoryOperation {
         return Duration.ofDays(Integer.getInteger("jp.coppermine.poortoys.javafx.history.remain.days", 30));
     }
     
+    /**
+     * Interval of the scheduled expiry.
+     * <p>
+     * In the default, this value is 60 minutes.
+     * 
+     * @return Interval of the scheduled expiry, never null
+     */
+    default Duration expiryPeriod() {
+        return Duration.ofMinutes(Long.getLong("jp.coppermine.poortoys.javafx.history.expiry.minutes", 60));
+    }
+    
+    /**
+     * Starts to expire keywords out of {@link #remaining()} periodically on a background thread.
+     * <p>
+     * The caller should keep the returned object and close it when the history is no longer used.
+     * 
+     * @return the running expiry, never null
+     */
+    default ScheduledExpiry scheduleExpiry() {
+        return new ScheduledExpiry(getHistory(), remaining(), expiryPeriod());
+    }
+    
+    /**
+     * Delay from the first keyword not saved to saving the history.
+     * <p>
+     * In the default, this value is 1000 milliseconds.
+     * 
+     * @return Delay of saving the history, never null
+     */
+    default Duration saveDelay() {
+        return Duration.ofMillis(Long.getLong("jp.coppermine.poortoys.javafx.history.save.delay.millis", 1000));
+    }
+    
+    /**
+     * Number of keywords not saved to save the history at once.
+     * <p>
+     * In the default, this value is 100.
+     * 
+     * @return Number of keywords not saved, positive
+     */
+    default int saveMaxPending() {
+        return Integer.getInteger("jp.coppermine.poortoys.javafx.history.save.pending.max", 100);
+    }
+    
+    /**
+     * Obtains the write-behind saver of the history.
+     * <p>
+     * It is created at first with {@link #saveDelay()} and {@link #saveMaxPending()}, and shared by
+     * all operations of the same history. It saves the history on a background thread, and
+     * saves keywords not saved yet when it is closed or the JVM shuts down.
+     * <p>
+     * A closed saver is released, and the next call creates another one.
+     * 
+     * @return the write-behind saver, never null
+     */
+    default WriteBehind writeBehind() {
+        return WriteBehinds.of(getHistory(), saveDelay(), saveMaxPending());
+    }
+    
+    /**
+     * Obtains if keywords are ranked by frecency instead of recency.
+     * <p>
+     * In the default, it is {@code true} if the system property
+     * {@code jp.coppermine.poortoys.javafx.history.order} is {@code frecency}.
+     * 
+     * @return {@code true} if keywords are ranked by frecency, otherwise {@code false}
+     * @see History#searchRanked(CharSequence, int)
+     */
+    default boolean isRanked() {
+        return "frecency".equalsIgnoreCase(System.getProperty("jp.coppermine.poortoys.javafx.history.order", "recency"));
+    }
+    
     /**
      * loads keywords in the history.
+     * <p>
+     * The history is loaded by {@link History#loadAsync()}, so the JavaFX application thread
+     * never waits for reading the store, and this method can be called on any thread.
      */
     default void loadKeywords() {
-        Platform.runLater(() -> {
-            getHistory().load();
+        getHistory().loadAsync().whenComplete((v, e) -> {
+            if (e != null) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                return;
+            }
             getHistory().shrink(LocalDateTime.now().minus(remaining()));
-            getHistory().save();
+            writeBehind().markDirty();
         });
     }
     
     /**
      * Appends or updates a keyword in the history.
+     * <p>
+     * The history is saved by {@link #writeBehind()} in the background, with other keywords
+     * appended in a short time.
      * 
      * @param keyword an updating keyword, not null
      */
     default void updateKeywords(String keyword) {
         Platform.runLater(() -> {
             getHistory().append(Command.of(keyword));
-            getHistory().save();
+            writeBehind().markDirty();
         });
     }
     
     /**
      * Obtains keywords in the history.
+     * <p>
+     * Keywords are distinct and ordered most recent first.
+     * It uses {@link History#keywords()}, so the history may keep them between calls.
      * 
      * @return keywords, never null 
      */
     default List<String> getKeywords() {
         if (isValid()) {
-            return getHistory().list().stream().map(e -> e.getCommand()).collect(toList());
+            return getHistory().keywords();
+        } else {
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Obtains keywords starting with {@code prefix} in the history.
+     * <p>
+     * Keywords are distinct and ordered most recent first, or by frecency if {@link #isRanked()}.
+     * It uses {@link History#search(CharSequence, int)} or {@link History#searchRanked(CharSequence, int)},
+     * so it does not scan the whole history if the history has an index.
+     * 
+     * @param prefix the prefix of keywords, not null
+     * @param limit the maximum number of keywords, 0 or above
+     * @return keywords, never null
+     */
+    default List<String> getKeywords(String prefix, int limit) {
+        if (isValid()) {
+            List<Command> commands = isRanked()
+                    ? getHistory().searchRanked(prefix, limit)
+                    : getHistory().search(prefix, limit);
+            return commands.stream().map(e -> e.getCommand()).collect(toList());
+        } else {
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Obtains keywords containing {@code text} in the history, for reverse search.
+     * <p>
+     * Keywords containing {@code text} exactly come first, most recent first.
+     * If they are fewer than {@code limit}, keywords containing {@code text} approximately
+     * follow them, so a typo does not hide the keyword.
+     * 
+     * @param text the text contained in keywords, not null
+     * @param limit the maximum number of keywords, 0 or above
+     * @return keywords, never null
+     */
+    default List<String> findKeywords(String text, int limit) {
+        if (isValid()) {
+            Set<String> keywords = getHistory().searchContaining(text, limit).stream()
+                    .map(e -> e.getCommand())
+                    .collect(toCollection(LinkedHashSet::new));
+            if (keywords.size() < limit) {
+                int exact = keywords.size();
+                getHistory().searchSimilar(text, limit).stream()
+                        .map(e -> e.getCommand())
+                        .filter(e -> !keywords.contains(e))
+                        .limit(limit - exact)
+                        .forEach(keywords::add);
+            }
+            return new ArrayList<>(keywords);
         } else {
             return new ArrayList<>();
         }
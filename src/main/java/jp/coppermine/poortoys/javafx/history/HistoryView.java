@@ -3,12 +3,15 @@ package jp.coppermine.poortoys.javafx.history;
 import static java.util.stream.Collectors.toList;
 import static javafx.geometry.Orientation.VERTICAL;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.scene.Node;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
@@ -18,40 +21,76 @@ import javafx.scene.layout.Pane;
 
 public class HistoryView {
     
+    /**
+     * Maximum size of the edit table computing differences of items.
+     * Larger differences replace the changed range of items as a whole.
+     */
+    private static final long DIFF_LIMIT = 1L << 16;
+    
     /**
      * Representation of {@link ListView} that consists to {@code HistoryView}.
      */
     private final ListView<String> history;
     
+    /**
+     * Representation of items of {@link ListView}, it is updated in place.
+     */
+    private final ObservableList<String> items;
+    
     /**
      * Maximum numbers of items contains {@code HistoryView}.
      */
     private final long count;
     
+    /**
+     * Delay in milliseconds before computing keywords while the user types.
+     */
+    private final long debounce;
+    
+    /**
+     * Representation of the requests of keywords, computed on the shared thread touching suggestions.
+     */
+    private final Debouncer debouncer;
+    
     /**
      * Representation of {@link TextField} that is attached with {@code HistoryView}
      */
     private TextField textField;
     
     /**
-     * Representation of keyword supplier.
-     * 
-     * @see Supplier
+     * Representation of suggestions of keywords starting with the text.
      */
-    private Supplier<List<String>> keywordSupplier;
+    private SuggestionEngine suggestions;
+    
+    /**
+     * Representation of suggestions of keywords containing the text, for reverse search.
+     */
+    private SuggestionEngine reverseSuggestions;
+    
+    /**
+     * {@code true} if it is in reverse search mode, which is switched by Ctrl+R.
+     */
+    private boolean reverseSearch;
     
     public HistoryView() {
         history = new ListView<>();
         history.setOpacity(1.0);
         history.setOrientation(VERTICAL);
         history.setOnMousePressed(this::onMousePressedAction);
-        history.setItems(FXCollections.observableArrayList());
+        items = FXCollections.observableArrayList();
+        history.setItems(items);
         history.setVisible(false);
         count = Long.getLong("jp.coppermine.poortoys.javafx.history.items", 10);
+        debounce = Long.getLong("jp.coppermine.poortoys.javafx.history.debounce.millis", 50);
+        debouncer = new Debouncer(Platform::runLater);
     }
     
     /**
      * Attach a history view on a text field.
+     * <p>
+     * Keywords are computed on a background thread, so {@code keywordSupplier} must not touch
+     * the scene graph. The supplied list is also the version of keywords: while it returns the
+     * same list, keywords are narrowed down from the previous ones as the text is extended.
      * 
      * @param parent the parent pane of the text field, not null
      * @param textField the text field that is attached a history view, not null
@@ -59,6 +98,56 @@ public class HistoryView {
      * @return an instance of {@code HistoryView}, never null
      */
     public HistoryView attach(Pane parent, TextField textField, Supplier<List<String>> keywordSupplier) {
+        return attach(parent, textField, 
+                new SuggestionEngine(
+                        (text, limit) -> keywordSupplier.get().stream()
+                                .distinct()
+                                .filter(s -> s.startsWith(text))
+                                .limit(limit)
+                                .collect(toList()),
+                        String::startsWith, keywordSupplier),
+                new SuggestionEngine(
+                        (text, limit) -> keywordSupplier.get().stream()
+                                .distinct()
+                                .filter(s -> s.contains(text))
+                                .limit(limit)
+                                .collect(toList()),
+                        String::contains, keywordSupplier));
+    }
+    
+    /**
+     * Attach a history view on a text field.
+     * <p>
+     * Keywords are obtained by {@link HistoryOperation#getKeywords(String, int)}, and
+     * {@link HistoryOperation#findKeywords(String, int)} in reverse search mode,
+     * so the history index is used instead of filtering all keywords. Keywords in reverse search
+     * mode include approximate matches, so they are found again for each text.
+     * <p>
+     * It is not an overload of {@code attach}, as {@code HistoryOperation} is a functional interface
+     * and a method reference like {@code this::getKeywords} would be ambiguous.
+     * 
+     * @param parent the parent pane of the text field, not null
+     * @param textField the text field that is attached a history view, not null
+     * @param operation history operation, not null
+     * @return an instance of {@code HistoryView}, never null
+     */
+    public HistoryView attachOperation(Pane parent, TextField textField, HistoryOperation operation) {
+        return attach(parent, textField,
+                new SuggestionEngine(operation::getKeywords, String::startsWith, () -> operation.getHistory().list()),
+                new SuggestionEngine(operation::findKeywords));
+    }
+    
+    /**
+     * Attach a history view on a text field.
+     * 
+     * @param parent the parent pane of the text field, not null
+     * @param textField the text field that is attached a history view, not null
+     * @param suggestions suggestions of keywords starting with the text, not null
+     * @param reverseSuggestions suggestions of keywords containing the text, not null
+     * @return an instance of {@code HistoryView}, never null
+     */
+    private HistoryView attach(Pane parent, TextField textField, 
+            SuggestionEngine suggestions, SuggestionEngine reverseSuggestions) {
         history.setLayoutX(textField.getLayoutX());
         history.setLayoutY(textField.getLayoutY() + textField.getPrefHeight());
         history.setPrefWidth(textField.getPrefWidth());
@@ -68,15 +157,10 @@ public class HistoryView {
         textField.setOnKeyReleased(this::onTextFieldKeyReleasedAction);
         textField.setOnMouseClicked(this::onTextFieldMouseClickedAction);
         textField.textProperty().addListener(
-                (observable, oldValue, newValue) -> history.setItems(
-                        FXCollections.observableList(getKeywords().stream()
-                                .filter(s -> s.startsWith(newValue))
-                                .limit(count)
-                                .collect(toList()))
-                        )
-                );
+                (observable, oldValue, newValue) -> requestKeywords(false, debounce, null));
         
-        this.keywordSupplier = keywordSupplier;
+        this.suggestions = suggestions;
+        this.reverseSuggestions = reverseSuggestions;
         
         return this;
     }
@@ -94,6 +178,19 @@ public class HistoryView {
         return attach(getParentPane(textField), textField, keywordSupplier);
     }
     
+    /**
+     * Attach a history view on a text field.
+     * <p>
+     * It's same as call {@code attachOperation(getParentPane(textField), textField, operation)}.
+     * 
+     * @param textField the text field that is attached a history view, not null
+     * @param operation history operation, not null
+     * @return an instance of {@code HistoryView}, never null
+     */
+    public HistoryView attachOperation(TextField textField, HistoryOperation operation) {
+        return attachOperation(getParentPane(textField), textField, operation);
+    }
+    
     /**
      * Obtains the parent pane of the node.
      * 
@@ -108,14 +205,140 @@ public class HistoryView {
     }
     
     /**
-     * Obtains keywords in the history.
+     * Requests keywords starting with the text in the history.
+     * In reverse search mode, requests keywords containing the text.
+     * <p>
+     * Keywords are computed on the background thread after the delay, and narrowed down from
+     * the previous ones while the user extends the text. A newer request cancels the older one,
+     * and only the result of the latest request is applied on the JavaFX application thread.
      * 
-     * @return list of keywords in the history, never null
+     * @param visible {@code true} to show the keywords, {@code false} to keep the visibility
+     * @param delay delay in milliseconds before computing keywords
+     * @param then action after the keywords are applied, or null
      */
-    private List<String> getKeywords() {
-        return keywordSupplier.get().stream()
-                                .distinct()
-                                .collect(toList());
+    private void requestKeywords(boolean visible, long delay, Runnable then) {
+        String text = textField.getText();
+        SuggestionEngine engine = reverseSearch ? reverseSuggestions : suggestions;
+        int limit = (int) Math.min(count, Integer.MAX_VALUE);
+        debouncer.request(
+                () -> engine.suggest(text, limit).stream()
+                        .filter(s -> !s.trim().isEmpty())
+                        .collect(toList()),
+                delay,
+                keywords -> {
+                    applyKeywords(keywords, visible);
+                    Optional.ofNullable(then).ifPresent(Runnable::run);
+                });
+    }
+    
+    /**
+     * Discards the request of keywords, if any.
+     */
+    private void cancelKeywords() {
+        debouncer.cancel();
+    }
+    
+    /**
+     * Applies keywords to {@code HistoryView}.
+     * <p>
+     * Only differences from the current items are applied, so the list cells are reused.
+     * 
+     * @param keywords list of keywords in the history, not null
+     * @param visible {@code true} to show the keywords, {@code false} to keep the visibility
+     */
+    private void applyKeywords(List<String> keywords, boolean visible) {
+        int size = items.size();
+        update(items, keywords);
+        if (keywords.size() != size) {
+            history.setPrefHeight((keywords.size() * 20.0 + 2.0));
+        }
+        if (visible) {
+            history.setVisible(!keywords.isEmpty());
+        }
+    }
+    
+    /**
+     * Updates a list to the same elements as another list with few changes.
+     * <p>
+     * The common head and tail are kept, and the rest is edited along the longest common
+     * subsequence. Each run of removed or inserted elements is a single change.
+     * 
+     * @param target the list to update, not null
+     * @param source the list of new elements, not null
+     */
+    static <T> void update(List<T> target, List<T> source) {
+        int n = target.size();
+        int m = source.size();
+        int head = 0;
+        while (head < n && head < m && target.get(head).equals(source.get(head))) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < n - head && tail < m - head
+                && target.get(n - 1 - tail).equals(source.get(m - 1 - tail))) {
+            tail++;
+        }
+        int a = n - head - tail;
+        int b = m - head - tail;
+        if (a == 0 && b == 0) {
+            return;
+        }
+        if ((long) a * b > DIFF_LIMIT) {
+            target.subList(head, head + a).clear();
+            target.addAll(head, source.subList(head, head + b));
+            return;
+        }
+        List<T> older = new ArrayList<>(target.subList(head, head + a));
+        List<T> newer = source.subList(head, head + b);
+        // lcs[i][j]: the length of the longest common subsequence of older[i, a) and newer[j, b)
+        int[][] lcs = new int[a + 1][b + 1];
+        for (int i = a - 1; i >= 0; i--) {
+            for (int j = b - 1; j >= 0; j--) {
+                lcs[i][j] = older.get(i).equals(newer.get(j))
+                        ? lcs[i + 1][j + 1] + 1
+                        : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+        int i = 0;
+        int j = 0;
+        int at = head;
+        while (i < a || j < b) {
+            if (i < a && j < b && older.get(i).equals(newer.get(j))) {
+                i++;
+                j++;
+                at++;
+                continue;
+            }
+            int from = i;
+            while (i < a && (j == b || !older.get(i).equals(newer.get(j)) && lcs[i + 1][j] >= lcs[i][j + 1])) {
+                i++;
+            }
+            if (i > from) {
+                target.subList(at, at + i - from).clear();
+            }
+            from = j;
+            while (j < b && (i == a || !older.get(i).equals(newer.get(j)) && lcs[i][j + 1] > lcs[i + 1][j])) {
+                j++;
+            }
+            if (j > from) {
+                target.addAll(at, newer.subList(from, j));
+                at += j - from;
+            }
+        }
+    }
+    
+    /**
+     * Selects an item of {@code HistoryView}.
+     * 
+     * @param index the selected index before moving
+     * @param step 1 to select the next item, -1 to select the previous item
+     */
+    private void selectItem(int index, int step) {
+        IntStream.of(history.getItems().size())
+                    .filter(i -> i > 0)
+                    .map(i -> (i + index + step) % i)
+                    .findFirst()
+                    .ifPresent(history.getSelectionModel()::select);
     }
 
     /**
@@ -126,7 +349,7 @@ public class HistoryView {
     private void onMousePressedAction(MouseEvent event) {
         Optional.ofNullable(history.getSelectionModel().getSelectedItem())
                     .ifPresent(textField::setText);
-        history.setVisible(false);
+        showItems(false);
     } 
     
     /**
@@ -152,20 +375,10 @@ public class HistoryView {
         
         switch (event.getCode()) {
         case DOWN:
-            showItems(true);
-            IntStream.of(items)
-                        .filter(i -> i > 0)
-                        .map(i -> (index + 1) % i)
-                        .findFirst()
-                        .ifPresent(history.getSelectionModel()::select);
+            moveSelection(index, 1);
             break;
         case UP:
-            showItems(true);
-            IntStream.of(items)
-                        .filter(i -> i > 0)
-                        .map(i -> (i + index - 1) % i)
-                        .findFirst()
-                        .ifPresent(history.getSelectionModel()::select);
+            moveSelection(index, -1);
             break;
         case ENTER:
             IntStream.of(items)
@@ -176,30 +389,67 @@ public class HistoryView {
                                                 .ifPresent(textField::setText));
             // fall through
         case ESCAPE:
-            history.setVisible(false);
+            reverseSearch = false;
+            showItems(false);
             break;
+        case R:
+            if (event.isControlDown()) {
+                reverseSearch = !reverseSearch;
+                debouncer.execute(reverseSuggestions::invalidate);
+                showItems(true);
+                break;
+            }
+            // fall through
         default:
-            showItems(!textField.getText().isEmpty());
+            showItems(!textField.getText().isEmpty(), debounce, null);
             break;
         }
     }
     
+    /**
+     * Moves the selection of {@code HistoryView}, showing items if they are hidden.
+     * 
+     * @param index the selected index before moving
+     * @param step 1 to select the next item, -1 to select the previous item
+     */
+    private void moveSelection(int index, int step) {
+        if (history.isVisible()) {
+            selectItem(index, step);
+        } else {
+            showItems(true, 0L, () -> selectItem(index, step));
+        }
+    }
+    
     /**
      * Switch to show items of {@code HistoryView}.
      * 
      * @param visible {@code true} if it's visible, otherwise {@code false}
      */
     private void showItems(boolean visible) {
+        showItems(visible, 0L, null);
+    }
+    
+    /**
+     * Switch to show items of {@code HistoryView}.
+     * <p>
+     * Items are shown after keywords are computed, hiding items takes effect immediately.
+     * 
+     * @param visible {@code true} if it's visible, otherwise {@code false}
+     * @param delay delay in milliseconds before computing keywords
+     * @param then action after items are shown, or null
+     */
+    private void showItems(boolean visible, long delay, Runnable then) {
         if (visible) {
-            history.setItems(
-                    FXCollections.observableList(getKeywords().stream()
-                            .filter(s -> !s.trim().isEmpty())
-                            .filter(s -> s.startsWith(textField.getText()))
-                            .limit(count)
-                            .collect(toList())));
-            history.setPrefHeight((history.getItems().size() * 20.0 + 2.0));
-            history.setVisible(!history.getItems().isEmpty());
+            if (!history.isVisible()) {
+                // keywords may be changed while the history view is hidden
+                debouncer.execute(() -> {
+                    suggestions.invalidate();
+                    reverseSuggestions.invalidate();
+                });
+            }
+            requestKeywords(true, delay, then);
         } else {
+            cancelKeywords();
             history.setVisible(false);
         }
     }
@@ -0,0 +1,141 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Computes suggestions incrementally while the user types.
+ * <p>
+ * It keeps a page of keywords matched with the previous text, a few times as many as the
+ * suggestions. When the new text extends the previous text, keywords matched with the new text
+ * are a subset of them, so it only narrows them down. It queries a page again if the narrowed
+ * keywords are fewer than the suggestions while more keywords may match, the text is shortened
+ * or changed otherwise, the history has changed, or {@link #invalidate()} is called.
+ * <p>
+ * Without the match condition, it queries for each text, for finders whose matches cannot be
+ * narrowed down (<i>e.g.</i> approximate matches).
+ * <p>
+ * This class is not thread-safe.
+ */
+class SuggestionEngine {
+
+    /**
+     * The number of keywords in a page per suggestion.
+     */
+    static final int PAGE_FACTOR = 4;
+
+    /**
+     * Representation of keyword finder for full query.
+     */
+    private final BiFunction<String, Integer, List<String>> keywordFinder;
+
+    /**
+     * Representation of the match condition, it tests a keyword with the text, or null.
+     * If a keyword matches a text, it must match all prefixes of the text.
+     */
+    private final BiPredicate<String, String> matcher;
+
+    /**
+     * Representation of the history version.
+     * The history is assumed to be changed when it returns another object.
+     */
+    private final Supplier<?> version;
+
+    /**
+     * The text of the previous query, or null.
+     */
+    private String lastText;
+
+    /**
+     * The history version of the previous query.
+     */
+    private Object lastVersion;
+
+    /**
+     * The first keywords matched with {@link #lastText} in the order of the finder, or null.
+     */
+    private List<String> candidates;
+
+    /**
+     * {@code true} if {@link #candidates} has all keywords matched with {@link #lastText}.
+     */
+    private boolean complete;
+
+    /**
+     * Creates an instance of this class.
+     *
+     * @param keywordFinder keyword finder, it obtains keywords matched with the text up to the limit, not null
+     * @param matcher the match condition used by {@code keywordFinder}, not null
+     * @param version the history version, not null
+     */
+    SuggestionEngine(BiFunction<String, Integer, List<String>> keywordFinder,
+            BiPredicate<String, String> matcher, Supplier<?> version) {
+        this.keywordFinder = requireNonNull(keywordFinder);
+        this.matcher = requireNonNull(matcher);
+        this.version = requireNonNull(version);
+    }
+
+    /**
+     * Creates an instance of this class, which queries for each text.
+     *
+     * @param keywordFinder keyword finder, it obtains keywords matched with the text up to the limit, not null
+     */
+    SuggestionEngine(BiFunction<String, Integer, List<String>> keywordFinder) {
+        this.keywordFinder = requireNonNull(keywordFinder);
+        this.matcher = null;
+        this.version = () -> null;
+    }
+
+    /**
+     * Obtains suggestions for the text.
+     *
+     * @param text the text in the text field, not null
+     * @param limit the maximum number of suggestions, 0 or above
+     * @return suggestions, never null
+     */
+    List<String> suggest(String text, int limit) {
+        Object currentVersion = version.get();
+        if (matcher != null && candidates != null && currentVersion == lastVersion && text.startsWith(lastText)) {
+            List<String> narrowed = candidates;
+            if (text.length() > lastText.length()) {
+                narrowed = new ArrayList<>();
+                for (String candidate : candidates) {
+                    if (matcher.test(candidate, text)) {
+                        narrowed.add(candidate);
+                    }
+                }
+            }
+            // the first keywords of a page are the first ones of the narrowed page
+            if (complete || narrowed.size() >= limit) {
+                candidates = narrowed;
+                lastText = text;
+                return head(limit);
+            }
+        }
+        int page = (int) Math.min((long) limit * PAGE_FACTOR, Integer.MAX_VALUE);
+        candidates = keywordFinder.apply(text, page);
+        complete = candidates.size() < page;
+        lastText = text;
+        lastVersion = currentVersion;
+        return head(limit);
+    }
+
+    private List<String> head(int limit) {
+        return candidates.size() <= limit ? candidates : candidates.subList(0, limit);
+    }
+
+    /**
+     * Discards the kept keywords, so the next query obtains a page of keywords.
+     */
+    void invalidate() {
+        candidates = null;
+        lastText = null;
+        lastVersion = null;
+        complete = false;
+    }
+}
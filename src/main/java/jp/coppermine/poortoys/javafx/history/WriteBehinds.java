@@ -0,0 +1,66 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.coppermine.poortoys.history.History;
+import jp.coppermine.poortoys.history.WriteBehind;
+
+/**
+ * Write-behind savers shared by the operations of each history.
+ * <p>
+ * {@link HistoryOperation} is an interface without state, so the saver of a history is kept here
+ * until it is closed. A closed saver is removed, and the next call creates another one.
+ */
+final class WriteBehinds {
+    
+    /**
+     * Savers not closed yet by histories, compared by identity.
+     * A saver refers to its history, so the history is kept until the saver is closed.
+     */
+    private static final Map<History, WriteBehind> SAVERS = new ConcurrentHashMap<>();
+    
+    /**
+     * Suppresses default constructor, ensuring non-instantiability.
+     */
+    private WriteBehinds() { }
+    
+    /**
+     * Obtains the saver of a history, creating it at first.
+     * 
+     * @param history the history, not null
+     * @param delay the delay from the first modification to the save, 0 or above
+     * @param maxPending the number of modifications to save at once, positive
+     * @return the saver, never null
+     */
+    static WriteBehind of(History history, Duration delay, int maxPending) {
+        return SAVERS.computeIfAbsent(history, e -> new SharedWriteBehind(e, delay, maxPending));
+    }
+    
+    /**
+     * A saver removed from the shared savers when it is closed.
+     */
+    private static final class SharedWriteBehind extends WriteBehind {
+        
+        private final History history;
+        
+        private SharedWriteBehind(History history, Duration delay, int maxPending) {
+            super(history, delay, maxPending);
+            this.history = history;
+        }
+        
+        /**
+         * Removes this saver from the shared savers, then saves and stops it.
+         * 
+         * @see jp.coppermine.poortoys.history.WriteBehind#close()
+         */
+        @Override
+        public void close() {
+            SAVERS.remove(history, this);
+            super.close();
+        }
+        
+    }
+    
+}
@@ -1,75 +1,67 @@
 package jp.coppermine.poortoys.text;
 
-import static java.util.regex.Pattern.COMMENTS;
-
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class CsvCodec {
-	
+
 	/**
 	 * Suppresses default constructor, ensuring non-instantiability.
 	 */
 	private CsvCodec() { }
-	
-	/**
-	 * A pattern of regular expression for splitting a CSV field to entries.
-	 */
-	private static final String REGEX = "\\G(?:^|,) \n" + "(?: \n"
-			+ "   # a field enclosed double-quotes ... \n"
-			+ "   \" # an open quote of a field  \n"
-			+ "    ( (?: [^\"]++ | \"\" | \n )*+ ) \n"
-			+ "   \" # a close quote of a field \n" + " | # ... or ... \n"
-			+ "      # ... a plain text not use quotes and commas \n"
-			+ "   ( [^\",]*) \n" + " ) \n";
 
 	/**
 	 * Split a CSV field to entries.
-	 * 
+	 * <p>
+	 * The field is parsed in a single pass. Each entry is either enclosed double-quotes,
+	 * in which two double-quotes mean a double-quote, or a plain text without quotes and
+	 * commas, trimmed blank. Parsing stops at the first entry not followed by a comma,
+	 * and the rest of the field is ignored.
+	 *
 	 * @param field
 	 *            a CSV field.
 	 * @return a String array contains entries.
+	 * @throws CsvFormatException
+	 *            the field is not blank but has no entries except an empty one.
 	 */
 	public static String[] decode(CharSequence field) {
-		// If the length of field is zero or field contents only spaces,
-		// the method returns a String array it's length zero.
-		// At first, checking field's length because of performance reason.
-		// Because some "toString" method may spend large time,
-		// so we will early out if not use a "toString".
-		if (field.length() == 0 || field.toString().length() == 0) {
+		// If the length of field is zero, the method returns a String array it's length zero.
+		int length = field.length();
+		if (length == 0) {
 			return new String[0];
 		}
 
-		// Create a matcher object of the above regular expression,
-		// at this time, use a dummy text.
-		Matcher mMain = Pattern.compile(REGEX, COMMENTS).matcher("");
-
-		// Create a matcher object of the regular expression '""' (two double-quotes),
-		// at this time, use a dummy text.
-		Matcher mQuote = Pattern.compile("\"\"").matcher("");
-
 		// A list of strings for contains fields.
 		List<String> entries = new ArrayList<String>();
 
-		// A line by line, a following procedure.
-		mMain.reset(field);
-		while (mMain.find()) {
-			String entry;
-			if (mMain.start(2) >= 0) {
-				// A string not enclosed quotes.
-				// Trim blank from it.
-				entry = mMain.group(2).trim();
-			} else {
+		int position = 0;
+		while (true) {
+			int start = position;
+			int close = position < length && field.charAt(position) == '"' ? closeQuote(field, position + 1) : -1;
+			if (close >= 0) {
 				// A string enclosed two quotes.
-				// Replace Two double-quotes to one single quote.
-				entry = mQuote.reset(mMain.group(1)).replaceAll("\"");
+				entries.add(unquote(field, start + 1, close));
+				position = close + 1;
+			} else if (position < length && field.charAt(position) == '"') {
+				// An open quote without a close quote, it is an empty plain text.
+				entries.add("");
+			} else {
+				// A string not enclosed quotes, up to a quote or a comma.
+				while (position < length && field.charAt(position) != '"' && field.charAt(position) != ',') {
+					position++;
+				}
+				entries.add(trim(field, start, position));
+			}
+
+			// An empty entry at the beginning ends the field,
+			// otherwise the next entry follows a comma.
+			if (position == 0 || position >= length || field.charAt(position) != ',') {
+				break;
 			}
-			entries.add(entry);
+			position++;
 		}
 
-		if (!field.toString().trim().isEmpty() && (entries.size() == 1 && entries.get(0).isEmpty())) {
+		if (entries.size() == 1 && entries.get(0).isEmpty() && !isBlank(field)) {
 			throw new CsvFormatException();
 		}
 
@@ -77,40 +69,152 @@ public final class CsvCodec {
 		return entries.toArray(new String[entries.size()]);
 	}
 
+	/**
+	 * Finds the close quote of an entry enclosed double-quotes.
+	 *
+	 * @param field a CSV field
+	 * @param from the position after the open quote
+	 * @return the position of the close quote, or -1 if not found
+	 */
+	private static int closeQuote(CharSequence field, int from) {
+		int length = field.length();
+		for (int i = from; i < length; i++) {
+			if (field.charAt(i) == '"') {
+				if (i + 1 < length && field.charAt(i + 1) == '"') {
+					// Two double-quotes are a part of the entry.
+					i++;
+				} else {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Replace two double-quotes to one single quote.
+	 *
+	 * @param field a CSV field
+	 * @param from the beginning of the entry, inclusive
+	 * @param to the end of the entry, exclusive
+	 * @return the entry
+	 */
+	private static String unquote(CharSequence field, int from, int to) {
+		StringBuilder builder = null;
+		int copied = from;
+		for (int i = from; i < to; i++) {
+			if (field.charAt(i) == '"') {
+				if (builder == null) {
+					builder = new StringBuilder(to - from - 1);
+				}
+				// Skips the second quote.
+				builder.append(field, copied, ++i);
+				copied = i + 1;
+			}
+		}
+		if (builder == null) {
+			return field.subSequence(from, to).toString();
+		}
+		return builder.append(field, copied, to).toString();
+	}
+
+	/**
+	 * Trims blank from an entry, same as {@link String#trim()}.
+	 *
+	 * @param field a CSV field
+	 * @param from the beginning of the entry, inclusive
+	 * @param to the end of the entry, exclusive
+	 * @return the trimmed entry
+	 */
+	private static String trim(CharSequence field, int from, int to) {
+		while (from < to && field.charAt(from) <= ' ') {
+			from++;
+		}
+		while (from < to && field.charAt(to - 1) <= ' ') {
+			to--;
+		}
+		return from == to ? "" : field.subSequence(from, to).toString();
+	}
+
+	private static boolean isBlank(CharSequence field) {
+		for (int i = 0; i < field.length(); i++) {
+			if (field.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Construct a CSV field from an entries.
-	 * 
+	 * <p>
+	 * An entry is enclosed double-quotes if it is empty, it contains a quote, a comma, a space,
+	 * a tab or a line feed, or it starts or ends with other white spaces.
+	 *
 	 * @param entries
 	 *            an entries of CSV, character sequences.
 	 * @return a CSV field.
 	 */
 	public static String encode(CharSequence... entries) {
-		List<String> entryList = new ArrayList<String>(entries.length);
-
-		// Create a matcher object of no-escaped entries.
-		// At this time, use a dummy text.
-		Matcher mUnescape = Pattern.compile("^(?=\\S)[^\"\n\t ,]+(?<=\\S)$").matcher("");
-
-		// Create a matcher object of the regular expression '""' (two
-		// double-quotes),
-		// at this time, use a dummy text.
-		Matcher mQuote = Pattern.compile("\"").matcher("");
-
-		for (CharSequence entry : entries) {
-			// A string consists one character and not contains WSChars.
-			mUnescape.reset(entry);
-			if (mUnescape.matches()) {
-				entryList.add(entry.toString());
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < entries.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			CharSequence entry = entries[i];
+			if (isPlain(entry)) {
+				builder.append(entry);
 				continue;
 			}
 
 			// An escaped string.
 			// Replace one double-quote to two double-quotes.
-			entryList.add("\"" + mQuote.reset(entry).replaceAll("\"\"") + "\"");
+			builder.append('"');
+			int copied = 0;
+			for (int j = 0; j < entry.length(); j++) {
+				if (entry.charAt(j) == '"') {
+					builder.append(entry, copied, j + 1).append('"');
+					copied = j + 1;
+				}
+			}
+			builder.append(entry, copied, entry.length()).append('"');
 		}
 
-		// Join entries delimited commas, and return it.
-		return String.join(",", entryList);
+		return builder.toString();
 	}
-	
+
+	/**
+	 * Tests whether an entry can be written without quotes.
+	 *
+	 * @param entry an entry of CSV
+	 * @return {@code true} if the entry has no quotes, commas, spaces, tabs and line feeds,
+	 *         and does not start or end with white spaces
+	 */
+	private static boolean isPlain(CharSequence entry) {
+		int length = entry.length();
+		if (length == 0 || isWhitespace(entry.charAt(0)) || isWhitespace(entry.charAt(length - 1))) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			switch (entry.charAt(i)) {
+			case '"':
+			case '\n':
+			case '\t':
+			case ' ':
+			case ',':
+				return false;
+			default:
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests whether a character is a white space, same as {@code \s} of regular expressions.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
 }
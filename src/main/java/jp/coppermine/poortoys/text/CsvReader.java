@@ -0,0 +1,314 @@
+package jp.coppermine.poortoys.text;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads CSV records from a stream of characters.
+ * <p>
+ * Each record is parsed like {@link CsvCodec#decode(CharSequence)} a line, but a record ends at
+ * a line separator ({@code LF}, {@code CR} or {@code CRLF}) out of double-quotes, so an entry
+ * enclosed double-quotes may have line separators. An open quote without a close quote
+ * in the rest of the stream is an empty entry as {@link CsvCodec#decode(CharSequence)}.
+ * <p>
+ * Entries are passed to a {@link FieldSink} in a reusable buffer, so reading records allocates
+ * nothing but what the sink makes from them. This class is not thread-safe.
+ */
+public final class CsvReader implements Closeable {
+
+	/**
+	 * Receives the entries of a record.
+	 */
+	@FunctionalInterface
+	public interface FieldSink {
+
+		/**
+		 * Receives an entry.
+		 *
+		 * @param index the index of the entry in the record, from 0
+		 * @param value the entry, valid only while this method runs
+		 */
+		void field(int index, CharSequence value);
+
+	}
+
+	/**
+	 * The initial size of the buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final int EOF = -1;
+
+	private final Reader reader;
+
+	private final CharBuffer source;
+
+	/**
+	 * Characters read from the source but not parsed yet.
+	 */
+	private char[] buffer = new char[BUFFER_SIZE];
+
+	private int position;
+
+	private int limit;
+
+	/**
+	 * The position of an open quote kept in the buffer until its close quote, or -1.
+	 */
+	private int mark = -1;
+
+	/**
+	 * The entry being parsed.
+	 */
+	private final StringBuilder value = new StringBuilder();
+
+	/**
+	 * Creates a reader of a stream.
+	 * <p>
+	 * The stream is read by blocks, so it need not be buffered.
+	 *
+	 * @param reader the stream, not null
+	 */
+	public CsvReader(Reader reader) {
+		this.reader = requireNonNull(reader);
+		this.source = null;
+	}
+
+	/**
+	 * Creates a reader of the remaining characters of a buffer.
+	 *
+	 * @param source the buffer, not null
+	 */
+	public CsvReader(CharBuffer source) {
+		this.reader = null;
+		this.source = requireNonNull(source);
+	}
+
+	/**
+	 * Reads a record.
+	 * <p>
+	 * An empty line is a record without entries.
+	 *
+	 * @param sink the sink of the entries, not null
+	 * @return the number of the entries, or -1 if it is the end of the stream
+	 * @throws IOException if an I/O error occurs
+	 * @throws CsvFormatException the record is not blank but has no entries except an empty one,
+	 *         the record is skipped and the next record can be read
+	 */
+	public int read(FieldSink sink) throws IOException {
+		int c = peek();
+		if (c == EOF) {
+			return -1;
+		}
+		if (c == '\n' || c == '\r') {
+			skipLine();
+			return 0;
+		}
+		boolean blank = true;
+		// An empty first entry is passed when the next entry is found,
+		// because it may be a format error.
+		boolean pending = false;
+		int count = 0;
+		while (true) {
+			value.setLength(0);
+			boolean consumed;
+			if (peek() == '"') {
+				mark = position++;
+				consumed = readQuoted();
+				if (consumed) {
+					blank = false;
+				} else {
+					// An open quote without a close quote is an empty plain text.
+					position = mark;
+					value.setLength(0);
+				}
+				mark = -1;
+			} else {
+				consumed = readPlain();
+				blank &= value.length() == 0;
+			}
+
+			if (count == 0 && value.length() == 0) {
+				pending = true;
+			} else {
+				if (pending) {
+					sink.field(0, "");
+					pending = false;
+				}
+				sink.field(count, value);
+			}
+			count++;
+
+			// An empty entry at the beginning ends the record,
+			// otherwise the next entry follows a comma.
+			if ((count > 1 || consumed) && peek() == ',') {
+				position++;
+				blank = false;
+				continue;
+			}
+			blank &= skipLine();
+			break;
+		}
+
+		if (pending) {
+			if (count == 1 && !blank) {
+				throw new CsvFormatException();
+			}
+			sink.field(0, "");
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a record to a String array.
+	 *
+	 * @return the entries, or null if it is the end of the stream
+	 * @throws IOException if an I/O error occurs
+	 * @throws CsvFormatException the record is not blank but has no entries except an empty one
+	 */
+	public String[] read() throws IOException {
+		List<String> entries = new ArrayList<>();
+		if (read((index, value) -> entries.add(value.toString())) < 0) {
+			return null;
+		}
+		return entries.toArray(new String[entries.size()]);
+	}
+
+	/**
+	 * Reads an entry enclosed double-quotes, after the open quote.
+	 *
+	 * @return {@code true} if the close quote is found
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean readQuoted() throws IOException {
+		for (int c = peek(); c != EOF; c = peek()) {
+			position++;
+			if (c == '"') {
+				if (peek() != '"') {
+					return true;
+				}
+				// Two double-quotes are a double-quote.
+				position++;
+			}
+			value.append((char) c);
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a plain text up to a quote, a comma or a line separator, and trims blank from it.
+	 *
+	 * @return {@code true} if any character is read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean readPlain() throws IOException {
+		boolean consumed = false;
+		for (int c = peek(); c != EOF && c != '"' && c != ',' && c != '\n' && c != '\r'; c = peek()) {
+			position++;
+			consumed = true;
+			if (c > ' ' || value.length() > 0) {
+				value.append((char) c);
+			}
+		}
+		int length = value.length();
+		while (length > 0 && value.charAt(length - 1) <= ' ') {
+			length--;
+		}
+		value.setLength(length);
+		return consumed;
+	}
+
+	/**
+	 * Skips the rest of the line and the line separator.
+	 *
+	 * @return {@code true} if the rest is blank
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean skipLine() throws IOException {
+		boolean blank = true;
+		for (int c = peek(); c != EOF; c = peek()) {
+			position++;
+			if (c == '\n') {
+				break;
+			}
+			if (c == '\r') {
+				if (peek() == '\n') {
+					position++;
+				}
+				break;
+			}
+			blank &= c <= ' ';
+		}
+		return blank;
+	}
+
+	/**
+	 * Obtains the next character without reading it.
+	 *
+	 * @return the next character, or {@code EOF}
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int peek() throws IOException {
+		if (position == limit && !fill()) {
+			return EOF;
+		}
+		return buffer[position];
+	}
+
+	/**
+	 * Reads characters from the source to the buffer.
+	 *
+	 * @return {@code false} if it is the end of the source
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean fill() throws IOException {
+		// Discards parsed characters, except an open quote and the following.
+		int keep = mark >= 0 ? mark : position;
+		if (keep > 0) {
+			System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+			limit -= keep;
+			position -= keep;
+			if (mark >= 0) {
+				mark -= keep;
+			}
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int n;
+		if (reader != null) {
+			do {
+				n = reader.read(buffer, limit, buffer.length - limit);
+			} while (n == 0);
+		} else {
+			n = Math.min(source.remaining(), buffer.length - limit);
+			if (n == 0) {
+				return false;
+			}
+			source.get(buffer, limit, n);
+		}
+		if (n < 0) {
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+package jp.coppermine.poortoys.text;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Writes CSV records to a stream of characters.
+ * <p>
+ * Entries are escaped like {@link CsvCodec#encode(CharSequence...)}, and an entry with
+ * {@code CR} is also enclosed double-quotes, so the records can be read by {@link CsvReader}.
+ * Characters are written to the stream by blocks without joining them to strings,
+ * so the stream need not be buffered. This class is not thread-safe.
+ */
+public final class CsvWriter implements Closeable, Flushable {
+
+	/**
+	 * The size of the buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Writer writer;
+
+	private final String lineSeparator;
+
+	/**
+	 * Characters not written to the stream yet.
+	 */
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int size;
+
+	/**
+	 * {@code true} if the current record has an entry.
+	 */
+	private boolean started;
+
+	/**
+	 * Creates a writer of a stream, using the system line separator.
+	 *
+	 * @param writer the stream, not null
+	 */
+	public CsvWriter(Writer writer) {
+		this(writer, System.lineSeparator());
+	}
+
+	/**
+	 * Creates a writer of a stream.
+	 *
+	 * @param writer the stream, not null
+	 * @param lineSeparator the separator of records, not null
+	 */
+	public CsvWriter(Writer writer, String lineSeparator) {
+		this.writer = requireNonNull(writer);
+		this.lineSeparator = requireNonNull(lineSeparator);
+	}
+
+	/**
+	 * Writes an entry to the current record.
+	 *
+	 * @param entry the entry, not null
+	 * @return this writer
+	 * @throws IOException if an I/O error occurs
+	 */
+	public CsvWriter field(CharSequence entry) throws IOException {
+		requireNonNull(entry);
+		if (started) {
+			append(',');
+		}
+		started = true;
+		if (isPlain(entry)) {
+			append(entry);
+			return this;
+		}
+
+		// An escaped string.
+		// Replace one double-quote to two double-quotes.
+		append('"');
+		for (int i = 0; i < entry.length(); i++) {
+			char c = entry.charAt(i);
+			if (c == '"') {
+				append('"');
+			}
+			append(c);
+		}
+		append('"');
+		return this;
+	}
+
+	/**
+	 * Writes an entry in a part of a char array to the current record.
+	 *
+	 * @param chars the char array, not null
+	 * @param offset the offset of the entry
+	 * @param length the length of the entry
+	 * @return this writer
+	 * @throws IOException if an I/O error occurs
+	 */
+	public CsvWriter field(char[] chars, int offset, int length) throws IOException {
+		return field(CharBuffer.wrap(chars, offset, length));
+	}
+
+	/**
+	 * Ends the current record.
+	 *
+	 * @return this writer
+	 * @throws IOException if an I/O error occurs
+	 */
+	public CsvWriter endRecord() throws IOException {
+		append(lineSeparator);
+		started = false;
+		return this;
+	}
+
+	/**
+	 * Writes a record.
+	 *
+	 * @param entries the entries of the record, not null
+	 * @return this writer
+	 * @throws IOException if an I/O error occurs
+	 */
+	public CsvWriter writeRecord(CharSequence... entries) throws IOException {
+		for (CharSequence entry : entries) {
+			field(entry);
+		}
+		return endRecord();
+	}
+
+	/**
+	 * Tests whether an entry can be written without quotes.
+	 *
+	 * @param entry an entry of CSV
+	 * @return {@code true} if the entry has no quotes, commas, spaces, tabs and line separators,
+	 *         and does not start or end with white spaces
+	 */
+	private static boolean isPlain(CharSequence entry) {
+		int length = entry.length();
+		if (length == 0) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			switch (entry.charAt(i)) {
+			case '"':
+			case '\n':
+			case '\r':
+			case '\t':
+			case ' ':
+			case ',':
+				return false;
+			default:
+				break;
+			}
+		}
+		char first = entry.charAt(0);
+		char last = entry.charAt(length - 1);
+		return first != '\u000B' && first != '\f' && last != '\u000B' && last != '\f';
+	}
+
+	private void append(char c) throws IOException {
+		if (size == buffer.length) {
+			flushBuffer();
+		}
+		buffer[size++] = c;
+	}
+
+	private void append(CharSequence chars) throws IOException {
+		for (int i = 0; i < chars.length(); i++) {
+			append(chars.charAt(i));
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		writer.write(buffer, 0, size);
+		size = 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Flushable#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		writer.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			writer.close();
+		}
+	}
+
+}
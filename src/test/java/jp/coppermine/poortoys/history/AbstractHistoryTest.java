@@ -4,8 +4,17 @@ import static org.junit.Assert.*;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.ListIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.Matchers.*;
 
 import org.junit.Before;
@@ -209,6 +218,69 @@ public class AbstractHistoryTest {
 		assertThat(hist.list().get(4).getCommand(), is("command #2"));
 	}
 
+	@Test
+	public void testAdd_overflow_wrap() {
+		AbstractHistory hist = new MemoryHistory(20);
+		for (int i = 1; i <= 45; i++) {
+			hist.append(Command.of("command #" + i));
+		}
+		
+		assertThat(hist.list().size(), is(20));
+		for (int i = 0; i < 20; i++) {
+			assertThat(hist.list().get(i).getCommand(), is("command #" + (45 - i)));
+		}
+	}
+
+	@Test
+	public void testList_snapshot() {
+		AbstractHistory hist = new MemoryHistory(100);
+		for (int i = 1; i <= 150; i++) {
+			hist.append(Command.of("command #" + i));
+		}
+		List<Command> snapshot = hist.list();
+		for (int i = 151; i <= 300; i++) {
+			hist.append(Command.of("command #" + i));
+		}
+		hist.shrink(LocalDateTime.MIN);
+		
+		assertThat(snapshot.size(), is(100));
+		assertThat(snapshot.get(0).getCommand(), is("command #150"));
+		assertThat(snapshot.get(99).getCommand(), is("command #51"));
+		assertThat(hist.list().size(), is(100));
+		assertThat(hist.list().get(0).getCommand(), is("command #300"));
+		assertThat(hist.list().get(99).getCommand(), is("command #201"));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testList_immutable() {
+		AbstractHistory hist = new MemoryHistory();
+		hist.append(Command.of("command"));
+		
+		hist.list().remove(0);
+	}
+
+	@Test
+	public void testAdd_concurrent() throws InterruptedException {
+		AbstractHistory hist = new MemoryHistory(10000);
+		Thread[] producers = new Thread[4];
+		for (int t = 0; t < producers.length; t++) {
+			String name = "producer #" + t;
+			producers[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					hist.append(Command.of(name));
+				}
+			});
+			producers[t].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		hist.flush();
+		
+		assertThat(hist.list().size(), is(4000));
+		assertThat(hist.list().stream().filter(e -> e.getCommand().equals("producer #2")).count(), is(1000L));
+	}
+
 	@Test
 	public void testClear() {
 		AbstractHistory hist = new MemoryHistory();
@@ -240,4 +312,383 @@ public class AbstractHistoryTest {
 		assertThat(hist.list().size(), is(1));
 		assertThat(hist.list().get(0).getCommand(), is("command #5"));
 	}
+
+	@Test
+	public void testShrink_unordered() {
+		AbstractHistory hist = new MemoryHistory();
+		hist.append(Command.of("command #1", LocalDate.of(2015, 11, 2).atStartOfDay()));
+		hist.append(Command.of("command #2", LocalDate.of(2015, 10, 30).atStartOfDay()));
+		hist.append(Command.of("command #3", LocalDate.of(2015, 11, 3).atStartOfDay()));
+		hist.append(Command.of("command #4", LocalDate.of(2015, 10, 29).atStartOfDay()));
+		
+		hist.shrink(LocalDate.of(2015, 11, 1).atStartOfDay());
+		
+		assertThat(hist.list().size(), is(2));
+		assertThat(hist.list().get(0).getCommand(), is("command #3"));
+		assertThat(hist.list().get(1).getCommand(), is("command #1"));
+	}
+
+	@Test
+	public void testShrink_all() {
+		AbstractHistory hist = new MemoryHistory();
+		hist.append(Command.of("command #1", LocalDate.of(2015, 10, 29).atStartOfDay()));
+		hist.append(Command.of("command #2", LocalDate.of(2015, 10, 30).atStartOfDay()));
+		
+		hist.shrink(LocalDate.of(2015, 10, 30).atStartOfDay());
+		
+		assertThat(hist.list().size(), is(0));
+	}
+
+	@Test
+	public void testSearch() {
+		AbstractHistory hist = new MemoryHistory(5);
+		hist.append(Command.of("cd /tmp"));
+		hist.append(Command.of("ls"));
+		hist.append(Command.of("cat a.txt"));
+		hist.append(Command.of("cd /home"));
+		
+		assertThat(hist.search("c", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cd /home", "cat a.txt", "cd /tmp")));
+		assertThat(hist.search("cd", 1).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cd /home")));
+		assertThat(hist.search("x", 10).size(), is(0));
+		
+		hist.append(Command.of("cd /tmp"));
+		hist.append(Command.of("ls -l"));
+		hist.append(Command.of("cat b.txt"));
+		
+		// "cd /tmp" (the first one) and "ls" were evicted
+		assertThat(hist.search("c", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cat b.txt", "cd /tmp", "cd /home", "cat a.txt")));
+		assertThat(hist.search("", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cat b.txt", "ls -l", "cd /tmp", "cd /home", "cat a.txt")));
+		assertThat(hist.search("ls", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("ls -l")));
+		
+		hist.clear();
+		assertThat(hist.search("", 10).size(), is(0));
+	}
+
+	@Test
+	public void testSearch_sameAsDefault() {
+		AbstractHistory hist = new MemoryHistory(300);
+		for (int i = 0; i < 1000; i++) {
+			hist.append(Command.of("command #" + (i * 7919 % 97)));
+			if (i % 100 == 0) {
+				hist.search("", 1);
+			}
+		}
+		
+		for (String prefix : asList("", "c", "command #1", "command #42", "command #9")) {
+			Set<String> found = new HashSet<>();
+			List<Command> expected = hist.list().stream()
+					.filter(e -> e.getCommand().startsWith(prefix))
+					.filter(e -> found.add(e.getCommand()))
+					.limit(20)
+					.collect(toList());
+			assertThat(hist.search(prefix, 20), is(expected));
+		}
+	}
+
+	@Test
+	public void testSearchContaining() {
+		AbstractHistory hist = new MemoryHistory(4);
+		hist.append(Command.of("git status"));
+		hist.append(Command.of("git commit -m test"));
+		hist.append(Command.of("mvn test"));
+		hist.append(Command.of("ls"));
+		
+		assertThat(hist.searchContaining("test", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("mvn test", "git commit -m test")));
+		assertThat(hist.searchContaining("s", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("ls", "mvn test", "git commit -m test", "git status")));
+		assertThat(hist.searchContaining("status", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("git status")));
+		
+		hist.append(Command.of("git stash"));
+		
+		assertThat(hist.searchContaining("status", 10).size(), is(0));
+		assertThat(hist.searchContaining("git st", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("git stash")));
+	}
+
+	@Test
+	public void testSearchSimilar() {
+		AbstractHistory hist = new MemoryHistory();
+		hist.append(Command.of("git status"));
+		hist.append(Command.of("git commit -m test"));
+		hist.append(Command.of("mvn clean install"));
+		hist.append(Command.of("git stats"));
+		
+		assertThat(hist.searchSimilar("git status", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("git status", "git stats")));
+		assertThat(hist.searchSimilar("mvn clena", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("mvn clean install")));
+		assertThat(hist.searchSimilar("docker", 10).size(), is(0));
+	}
+
+	@Test
+	public void testSearchContaining_sameAsDefault() {
+		AbstractHistory hist = new MemoryHistory(300);
+		History reference = new History() {
+			@Override public void load() { }
+			@Override public void save() { }
+			@Override public int getMaxSize() { return hist.getMaxSize(); }
+			@Override public List<Command> list() { return hist.list(); }
+			@Override public void append(Command command) { }
+			@Override public void clear() { }
+			@Override public void shrink(LocalDateTime expired) { }
+		};
+		for (int i = 0; i < 1000; i++) {
+			hist.append(Command.of("command #" + (i * 7919 % 997)));
+			if (i % 100 == 0) {
+				hist.searchContaining("", 1);
+			}
+		}
+		
+		for (String text : asList("", "9", "#1", "d #42", "nd #9", "x")) {
+			assertThat(hist.searchContaining(text, 20), is(reference.searchContaining(text, 20)));
+		}
+		for (String text : asList("", "command #123", "comand #42", "cmomand #9", "xxxxxx")) {
+			assertThat(hist.searchSimilar(text, 20), is(reference.searchSimilar(text, 20)));
+		}
+	}
+
+	@Test
+	public void testAdd_distinct() {
+		AbstractHistory hist = new MemoryHistory(3, true);
+		hist.append(Command.of("a"));
+		hist.append(Command.of("b"));
+		hist.append(Command.of("a"));
+		hist.append(Command.of("c"));
+		hist.append(Command.of("a"));
+		
+		// repeats do not use up the history buffer
+		assertThat(hist.isDistinct(), is(true));
+		assertThat(hist.list().stream().map(Command::getCommand).collect(toList()), is(asList("a", "c", "b")));
+		
+		hist.append(Command.of("d"));
+		
+		assertThat(hist.list().stream().map(Command::getCommand).collect(toList()), is(asList("d", "a", "c")));
+		assertThat(hist.keywords(), is(asList("d", "a", "c")));
+	}
+
+	@Test
+	public void testList_distinct() {
+		AbstractHistory hist = new MemoryHistory(20, true);
+		List<String> expected = new ArrayList<>();
+		List<List<Command>> snapshots = new ArrayList<>();
+		List<List<String>> expectedSnapshots = new ArrayList<>();
+		Random random = new Random(42L);
+		for (int i = 0; i < 2000; i++) {
+			String body = "command #" + random.nextInt(i % 500 < 250 ? 5 : 40);
+			hist.append(Command.of(body));
+			expected.remove(body);
+			expected.add(0, body);
+			if (expected.size() > 20) {
+				expected.remove(20);
+			}
+			if (i % 97 == 0) {
+				snapshots.add(hist.list());
+				expectedSnapshots.add(new ArrayList<>(expected));
+			}
+		}
+		
+		assertThat(hist.list().stream().map(Command::getCommand).collect(toList()), is(expected));
+		// published versions never change, though removed commands are compacted
+		for (int i = 0; i < snapshots.size(); i++) {
+			List<Command> snapshot = snapshots.get(i);
+			assertThat(snapshot.stream().map(Command::getCommand).collect(toList()), is(expectedSnapshots.get(i)));
+			for (int j = 0; j < snapshot.size(); j++) {
+				assertThat(snapshot.get(j).getCommand(), is(expectedSnapshots.get(i).get(j)));
+			}
+		}
+	}
+
+	@Test
+	public void testShrink_distinct() {
+		AbstractHistory hist = new MemoryHistory(10, true);
+		hist.append(Command.of("command #1", LocalDate.of(2015, 10, 29).atStartOfDay()));
+		hist.append(Command.of("command #2", LocalDate.of(2015, 10, 30).atStartOfDay()));
+		hist.append(Command.of("command #1", LocalDate.of(2015, 10, 31).atStartOfDay()));
+		hist.append(Command.of("command #3", LocalDate.of(2015, 11, 1).atStartOfDay()));
+		
+		hist.shrink(LocalDate.of(2015, 10, 30).atStartOfDay());
+		
+		assertThat(hist.list().stream().map(Command::getCommand).collect(toList()),
+				is(asList("command #3", "command #1")));
+	}
+
+	@Test
+	public void testKeywords() {
+		AbstractHistory hist = new MemoryHistory();
+		hist.append(Command.of("first"));
+		hist.append(Command.of("second"));
+		hist.append(Command.of("first"));
+		
+		List<String> keywords = hist.keywords();
+		assertThat(keywords, is(asList("first", "second")));
+		assertThat(hist.keywords(), is(sameInstance(keywords)));
+		
+		hist.append(Command.of("third"));
+		assertThat(hist.keywords(), is(asList("third", "first", "second")));
+	}
+
+	@Test
+	public void testSearch_distinct() {
+		AbstractHistory hist = new MemoryHistory(50, true);
+		for (int i = 0; i < 1000; i++) {
+			hist.append(Command.of("command #" + (i * 7919 % 97)));
+			if (i % 100 == 0) {
+				hist.search("", 1);
+				hist.searchContaining("", 1);
+			}
+		}
+		
+		assertThat(hist.list().size(), is(50));
+		assertThat(new HashSet<>(hist.keywords()).size(), is(50));
+		for (String prefix : asList("", "c", "command #1", "command #42", "command #9")) {
+			List<Command> expected = hist.list().stream()
+					.filter(e -> e.getCommand().startsWith(prefix))
+					.limit(20)
+					.collect(toList());
+			assertThat(hist.search(prefix, 20), is(expected));
+		}
+		for (String text : asList("", "9", "#1", "d #42", "x")) {
+			List<Command> expected = hist.list().stream()
+					.filter(e -> e.getCommand().contains(text))
+					.limit(20)
+					.collect(toList());
+			assertThat(hist.searchContaining(text, 20), is(expected));
+		}
+	}
+
+	@Test
+	public void testSearchRanked() {
+		AbstractHistory hist = new MemoryHistory(6);
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		hist.append(Command.of("cd /home", base.minusDays(20)));
+		hist.append(Command.of("ls", base.minusDays(10)));
+		hist.append(Command.of("ls", base.minusDays(9)));
+		hist.append(Command.of("ls", base.minusDays(8)));
+		hist.append(Command.of("cd /tmp", base.minusDays(1)));
+		hist.append(Command.of("cat a.txt", base));
+		
+		// frequent "ls" beats recent "cat a.txt"
+		assertThat(hist.searchRanked("", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("ls", "cat a.txt", "cd /tmp", "cd /home")));
+		assertThat(hist.searchRanked("cd", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cd /tmp", "cd /home")));
+		
+		hist.append(Command.of("cd /tmp", base));
+		hist.append(Command.of("vi", base));
+		
+		// "cd /home" and the first "ls" were evicted
+		assertThat(hist.searchRanked("", 10).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cd /tmp", "vi", "cat a.txt", "ls")));
+		assertThat(hist.searchRanked("", 2).stream().map(Command::getCommand).collect(toList()),
+				is(asList("cd /tmp", "vi")));
+	}
+
+	@Test
+	public void testSearchRanked_sameAsDefault() {
+		AbstractHistory hist = new MemoryHistory(300);
+		History reference = new History() {
+			@Override public void load() { }
+			@Override public void save() { }
+			@Override public int getMaxSize() { return hist.getMaxSize(); }
+			@Override public List<Command> list() { return hist.list(); }
+			@Override public void append(Command command) { }
+			@Override public void clear() { }
+			@Override public void shrink(LocalDateTime expired) { }
+		};
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		for (int i = 0; i < 1000; i++) {
+			hist.append(Command.of("command #" + (i * 7919 % 97), base.plusHours(i * 5 + i % 3)));
+			if (i % 100 == 0) {
+				hist.searchRanked("", 1);
+			}
+		}
+		
+		for (String prefix : asList("", "c", "command #1", "command #42", "command #9")) {
+			assertThat(hist.searchRanked(prefix, 20), is(reference.searchRanked(prefix, 20)));
+		}
+	}
+	@Test
+	public void testSaveAsync_executor() throws Exception {
+		List<String> threads = new ArrayList<>();
+		AbstractHistory hist = new MemoryHistory() {
+			@Override
+			public void save() {
+				threads.add(Thread.currentThread().getName());
+			}
+		};
+		ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "test-io"));
+		try {
+			hist.saveAsync().get();
+			hist.setExecutor(executor);
+			hist.saveAsync().get();
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertThat(threads, is(asList("poortoys-history-io", "test-io")));
+	}
+	
+	@Test
+	public void testCompact() {
+		AbstractHistory hist = new MemoryHistory(3, false, true);
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		StringBuilder longCommand = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			longCommand.append((char) ('a' + i % 26));
+		}
+		hist.append(Command.of("ls", base));
+		hist.append(Command.of(longCommand, base.plusMinutes(1)));
+		hist.append(Command.of("", base.plusMinutes(2)));
+		hist.append(Command.of("日本語", base.plusMinutes(3).plusNanos(123456789)));
+		
+		assertThat(hist.isCompact(), is(true));
+		assertThat(hist.list(), is(asList(Command.of("日本語", base.plusMinutes(3).plusNanos(123456789)),
+				Command.of("", base.plusMinutes(2)), Command.of(longCommand, base.plusMinutes(1)))));
+		
+		hist.shrink(base.plusMinutes(2));
+		assertThat(hist.list(), is(asList(Command.of("日本語", base.plusMinutes(3).plusNanos(123456789)))));
+		assertThat(new MemoryHistory(3, true, true).isCompact(), is(false));
+	}
+	
+	@Test
+	public void testCompact_sameAsDefault() {
+		AbstractHistory compact = new MemoryHistory(300, false, true);
+		AbstractHistory reference = new MemoryHistory(300, false, false);
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder body = new StringBuilder("command #");
+			for (int j = 0; j < i * 7919 % 97; j++) {
+				body.append(j);
+			}
+			// out of order once in a while
+			Command command = Command.of(body, base.plusSeconds(i % 500 == 499 ? i - 1000 : i));
+			for (AbstractHistory hist : asList(compact, reference)) {
+				hist.append(command);
+				if (i % 150 == 0) {
+					hist.shrink(base.plusSeconds(i - 200));
+				}
+				if (i % 700 == 350) {
+					hist.getCommands().remove(3);
+				}
+				if (i == 1500) {
+					hist.clear();
+				}
+			}
+			if (i % 50 == 0) {
+				assertThat(compact.list(), is(reference.list()));
+				assertThat(compact.search("command #1", 10), is(reference.search("command #1", 10)));
+			}
+		}
+		
+		assertThat(compact.list(), is(reference.list()));
+		assertThat(compact.list(), is(not(empty())));
+	}
+	
 }
@@ -0,0 +1,99 @@
+package jp.coppermine.poortoys.history;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommandPoolTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testIntern() {
+		CommandPool pool = new CommandPool(16);
+		String interned = pool.intern("git status");
+		
+		assertThat(pool.intern(new StringBuilder("git status")), is(sameInstance(interned)));
+		assertThat(pool.intern(new String("git status")), is(sameInstance(interned)));
+		assertThat(pool.intern("git log"), is(not(sameInstance(interned))));
+		assertThat(pool.getHits(), is(2L));
+		assertThat(pool.getMisses(), is(2L));
+		assertThat(pool.getSavedBytes(), is(2L * (24L + 40L)));
+		assertThat(pool.size(), is(2));
+		assertThat(pool.capacity(), is(16));
+	}
+	
+	@Test
+	public void testIntern_lru() {
+		CommandPool pool = new CommandPool(2);
+		String a = pool.intern("a");
+		String b = pool.intern("b");
+		pool.intern("a");
+		pool.intern("c");
+		
+		// b is the least recent one
+		assertThat(pool.intern(new String("a")), is(sameInstance(a)));
+		assertThat(pool.intern(new String("b")), is(not(sameInstance(b))));
+		assertThat(pool.size(), is(2));
+	}
+	
+	@Test
+	public void testIntern_notInterned() {
+		CommandPool pool = new CommandPool(16);
+		StringBuilder longCommand = new StringBuilder();
+		for (int i = 0; i <= CommandPool.MAX_LENGTH; i++) {
+			longCommand.append('x');
+		}
+		String first = pool.intern(longCommand);
+		
+		assertThat(pool.intern(longCommand), is(not(sameInstance(first))));
+		assertThat(pool.getMisses(), is(0L));
+		
+		CommandPool disabled = new CommandPool(0);
+		assertThat(disabled.intern("ls"), is("ls"));
+		assertThat(disabled.size(), is(0));
+		assertThat(disabled.capacity(), is(0));
+		
+		pool.intern("ls");
+		pool.clear();
+		assertThat(pool.size(), is(0));
+		assertThat(pool.getMisses(), is(0L));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testCommandPool_negative() {
+		new CommandPool(-1);
+	}
+	
+	@Test
+	public void testCommand() throws IOException {
+		LocalDateTime timestamp = LocalDateTime.of(2015, 11, 1, 0, 0);
+		Command command = Command.of(new StringBuilder("mvn test"), timestamp);
+		
+		assertThat(Command.parse(command.format()).getCommand(), is(sameInstance(command.getCommand())));
+		assertThat(Command.parse(command.format()), is(command));
+		assertThat(Command.parse(command.format()).hashCode(), is(command.hashCode()));
+		
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		hist.append(command);
+		hist.append(Command.of("mvn test", timestamp.plusMinutes(1)));
+		hist.save();
+		FileHistory loaded = new FileHistory(path, UTF_8, 10);
+		loaded.load();
+		List<Command> commands = loaded.list();
+		
+		assertThat(commands.get(0).getCommand(), is(sameInstance(commands.get(1).getCommand())));
+	}
+	
+}
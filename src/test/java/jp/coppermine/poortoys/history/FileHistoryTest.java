@@ -1,9 +1,43 @@
 package jp.coppermine.poortoys.history;
 
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 
 public class FileHistoryTest {
 	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
 	@BeforeClass
 	public static void setUpBeforeClass() throws Exception {
 		
@@ -13,5 +47,827 @@ public class FileHistoryTest {
 	public static void tearDownAfterClass() throws Exception {
 		
 	}
+	
+	private static List<String> bodies(History history) {
+		return history.list().stream().map(Command::getCommand).collect(toList());
+	}
+	
+	private static List<Command> commands(int count) {
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		List<Command> commands = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			commands.add(Command.of("command #" + i, base.plusMinutes(i)));
+		}
+		return commands;
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		commands(3).forEach(hist::append);
+		hist.save();
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10);
+		loaded.load();
+		
+		assertThat(loaded.list(), is(hist.list()));
+		assertThat(bodies(loaded), is(asList("command #3", "command #2", "command #1")));
+		assertThat(Files.readAllLines(path, UTF_8).size(), is(3));
+	}
+
+	@Test
+	public void testLoad_newest() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		commands(5).forEach(hist::append);
+		hist.save();
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 3);
+		loaded.load();
+		
+		assertThat(bodies(loaded), is(asList("command #5", "command #4", "command #3")));
+	}
+
+	@Test
+	public void testLoad_atomic() throws Exception {
+		testLoad_atomic(false);
+		testLoad_atomic(true);
+	}
+	
+	private void testLoad_atomic(boolean distinct) throws Exception {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 5000, distinct);
+		commands(3000).forEach(hist::append);
+		hist.save();
+		
+		AtomicInteger empty = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(1);
+		Thread reader = new Thread(() -> {
+			while (done.getCount() > 0) {
+				if (hist.list().isEmpty()) {
+					empty.incrementAndGet();
+				}
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 100; i++) {
+			hist.load();
+		}
+		done.countDown();
+		reader.join();
+		
+		// readers see the old or the new commands, never an empty history buffer between them
+		assertThat(empty.get(), is(0));
+		assertThat(hist.list().size(), is(3000));
+		assertThat(bodies(hist).subList(0, 3), is(asList("command #3000", "command #2999", "command #2998")));
+	}
+
+	@Test
+	public void testJournal() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, true);
+		hist.load();
+		List<Command> commands = commands(3);
+		for (Command command : commands) {
+			hist.append(command);
+			hist.save();
+		}
+		
+		assertThat(hist.isJournal(), is(true));
+		assertThat(Files.readAllLines(path, UTF_8),
+				is(commands.stream().map(Command::format).collect(toList())));
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, false, true);
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+	}
+
+	@Test
+	public void testJournal_compaction() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 2, false, true);
+		hist.load();
+		List<Integer> lengths = new ArrayList<>();
+		for (Command command : commands(6)) {
+			hist.append(command);
+			hist.save();
+			lengths.add(Files.readAllLines(path, UTF_8).size());
+		}
+		
+		// the journal is compacted when it exceeds twice the maximum size
+		assertThat(lengths, is(asList(1, 2, 3, 4, 2, 3)));
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 2, false, true);
+		loaded.load();
+		assertThat(bodies(loaded), is(asList("command #6", "command #5")));
+	}
+
+	@Test
+	public void testJournal_shrink() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, true);
+		hist.load();
+		commands(4).forEach(hist::append);
+		hist.save();
+		
+		hist.shrink(LocalDate.of(2015, 11, 1).atStartOfDay().plusMinutes(2));
+		hist.save();
+		
+		assertThat(Files.readAllLines(path, UTF_8).size(), is(2));
+		
+		hist.clear();
+		hist.save();
+		
+		assertThat(Files.readAllLines(path, UTF_8).size(), is(0));
+	}
+
+	@Test
+	public void testJournal_distinct() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10, true, true);
+		hist.load();
+		hist.append(Command.of("ls"));
+		hist.append(Command.of("pwd"));
+		hist.save();
+		hist.append(Command.of("ls"));
+		hist.save();
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, true, true);
+		loaded.load();
+		assertThat(bodies(loaded), is(asList("ls", "pwd")));
+	}
+
+	@Test
+	public void testLoad_large() throws IOException {
+		Path path = folder.newFile().toPath();
+		char[] padding = new char[20000];
+		Arrays.fill(padding, 'x');
+		List<String> lines = commands(5000).stream().map(Command::format).collect(toList());
+		lines.set(4995, Command.of("long " + new String(padding), LocalDate.of(2015, 11, 2).atStartOfDay()).format());
+		Files.write(path, lines, UTF_8);
+		
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		hist.load();
+		
+		assertThat(hist.list().size(), is(10));
+		assertThat(hist.list().get(0).getCommand(), is("command #5000"));
+		assertThat(hist.list().get(4).getCommand(), is("long " + new String(padding)));
+		assertThat(hist.list().get(9).getCommand(), is("command #4991"));
+	}
+
+	@Test
+	public void testLoad_crlf() throws IOException {
+		Path path = folder.newFile().toPath();
+		List<Command> commands = commands(3);
+		String text = commands.stream().map(Command::format).collect(joining("\r\n"));
+		Files.write(path, text.getBytes(UTF_8));
+		
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		hist.load();
+		
+		assertThat(bodies(hist), is(asList("command #3", "command #2", "command #1")));
+	}
+
+	@Test
+	public void testLoad_distinct() throws IOException {
+		Path path = folder.newFile().toPath();
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			lines.add(Command.of("command #" + (i % 7), base.plusMinutes(i)).format());
+		}
+		Files.write(path, lines, UTF_8);
+		
+		FileHistory hist = new FileHistory(path, UTF_8, 3, true, false);
+		hist.load();
+		
+		assertThat(bodies(hist), is(asList("command #1", "command #0", "command #6")));
+	}
+
+	@Test
+	public void testLoad_utf16() throws IOException {
+		Path path = folder.newFile().toPath();
+		Charset utf16 = UTF_16;
+		FileHistory hist = new FileHistory(path, utf16, 3);
+		commands(5).forEach(hist::append);
+		hist.save();
+		
+		FileHistory loaded = new FileHistory(path, utf16, 2);
+		loaded.load();
+		
+		assertThat(bodies(loaded), is(asList("command #5", "command #4")));
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		Path path = folder.newFile().toPath();
+		HistoryFormat binary = HistoryFormat.of(BinaryHistoryFormat.NAME);
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, true, binary);
+		List<Command> commands = commands(3);
+		commands.add(Command.of("quoted \"text\", with comma", LocalDateTime.of(1969, 7, 20, 20, 17, 40, 123456789)));
+		commands.forEach(hist::append);
+		hist.save();
+		hist.append(Command.of("command #5", LocalDateTime.of(2015, 11, 2, 0, 0)));
+		hist.save();
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, false, false, binary);
+		loaded.load();
+		
+		assertThat(loaded.list(), is(hist.list()));
+		assertThat(HistoryFormat.detect(path).get().getName(), is(BinaryHistoryFormat.NAME));
+	}
+
+	@Test
+	public void testBinary_tail() throws IOException {
+		Path path = folder.newFile().toPath();
+		HistoryFormat binary = HistoryFormat.of(BinaryHistoryFormat.NAME);
+		binary.write(path, UTF_8, commands(20000), false);
+		
+		// read backwards over blocks
+		FileHistory loaded = new FileHistory(path, UTF_8, 3, false, false, binary);
+		loaded.load();
+		assertThat(bodies(loaded), is(asList("command #20000", "command #19999", "command #19998")));
+		
+		List<String> all = new ArrayList<>();
+		try (HistoryFormat.Records records = binary.read(path, UTF_8)) {
+			for (Command command = records.previous(); command != null; command = records.previous()) {
+				all.add(command.getCommand());
+			}
+		}
+		assertThat(all.size(), is(20000));
+		assertThat(all.get(19999), is("command #1"));
+	}
+
+	@Test
+	public void testBinary_partial() throws IOException {
+		Path path = folder.newFile().toPath();
+		HistoryFormat binary = HistoryFormat.of(BinaryHistoryFormat.NAME);
+		binary.write(path, UTF_8, commands(3), false);
+		byte[] bytes = Files.readAllBytes(path);
+		
+		// an append interrupted at any byte of the last command
+		for (int cut = 1; cut < 16; cut++) {
+			Files.write(path, Arrays.copyOf(bytes, bytes.length - cut));
+			FileHistory loaded = new FileHistory(path, UTF_8, 10, false, false, binary);
+			loaded.load();
+			assertThat(bodies(loaded), is(asList("command #2", "command #1")));
+			
+			List<String> decoded = new ArrayList<>();
+			try (HistoryFormat.Records records = binary.decode(ByteBuffer.wrap(Files.readAllBytes(path)), UTF_8)) {
+				for (Command command = records.previous(); command != null; command = records.previous()) {
+					decoded.add(command.getCommand());
+				}
+			}
+			assertThat(decoded, is(asList("command #2", "command #1")));
+		}
+		
+		// the header is being written
+		Files.write(path, Arrays.copyOf(bytes, 3));
+		FileHistory empty = new FileHistory(path, UTF_8, 10, false, false, binary);
+		empty.load();
+		assertThat(empty.list(), is(empty()));
+	}
+
+	@Test
+	public void testBinary_broken() throws IOException {
+		Path path = folder.newFile().toPath();
+		HistoryFormat binary = HistoryFormat.of(BinaryHistoryFormat.NAME);
+		binary.write(path, UTF_8, commands(3), false);
+		byte[] bytes = Files.readAllBytes(path);
+		// the trailing length of the second command
+		int length = (bytes.length - 5) / 3;
+		bytes[5 + 2 * length - 1] = 0x7f;
+		Files.write(path, bytes);
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, false, false, binary);
+		try {
+			loaded.load();
+			fail();
+		} catch (UncheckedIOException e) {
+			assertThat(e.getCause().getMessage(), startsWith("broken command"));
+		}
+	}
+
+	@Test
+	public void testBinary_convert() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory csv = new FileHistory(path, UTF_8, 10, false, false, HistoryFormat.of(CsvHistoryFormat.NAME));
+		commands(3).forEach(csv::append);
+		csv.save();
+		
+		FileHistory hist = new FileHistory(path, UTF_8, 2, false, true, HistoryFormat.of(BinaryHistoryFormat.NAME));
+		hist.load();
+		assertThat(bodies(hist), is(asList("command #3", "command #2")));
+		hist.save();
+		
+		assertThat(HistoryFormat.detect(path).get().getName(), is(BinaryHistoryFormat.NAME));
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, false, false, HistoryFormat.of(CsvHistoryFormat.NAME));
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+	}
+
+	@Test
+	public void testImportExport() throws IOException {
+		Path path = folder.newFile().toPath();
+		Path exported = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, false, HistoryFormat.of(CsvHistoryFormat.NAME));
+		commands(3).forEach(hist::append);
+		hist.exportTo(exported, HistoryFormat.of(BinaryHistoryFormat.NAME));
+		
+		FileHistory imported = new FileHistory(path, UTF_8, 10, false, true, HistoryFormat.of(CsvHistoryFormat.NAME));
+		imported.importFrom(exported);
+		assertThat(imported.list(), is(hist.list()));
+		imported.save();
+		
+		assertThat(Files.readAllLines(path, UTF_8), is(commands(3).stream().map(Command::format).collect(toList())));
+	}
+
+	@Test
+	public void testFormat() throws IOException {
+		assertThat(HistoryFormat.of("CSV").getName(), is(CsvHistoryFormat.NAME));
+		assertThat(HistoryFormat.of("binary").getName(), is(BinaryHistoryFormat.NAME));
+		assertThat(HistoryFormat.detect(folder.newFile().toPath()).isPresent(), is(false));
+		assertThat(HistoryFormat.detect(folder.getRoot().toPath().resolve("missing")).isPresent(), is(false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFormat_unknown() {
+		HistoryFormat.of("xml");
+	}
+
+	@Test
+	public void testLoad_multiline() throws IOException {
+		for (Charset charset : asList(UTF_8, UTF_16)) {
+			Path path = folder.newFile().toPath();
+			FileHistory hist = new FileHistory(path, charset, 10);
+			List<Command> commands = commands(4);
+			commands.set(1, Command.of("echo \"a\nb\"\r\nc", commands.get(1).getTimestamp()));
+			commands.forEach(hist::append);
+			hist.save();
+			
+			FileHistory loaded = new FileHistory(path, charset, 10);
+			loaded.load();
+			
+			assertThat(charset.name(), loaded.list(), is(hist.list()));
+		}
+	}
+
+	@Test
+	public void testLoad_parallel() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 20000);
+		List<Command> commands = commands(20000);
+		commands.set(10, Command.of("echo \"a,b\"", commands.get(10).getTimestamp()));
+		commands.forEach(hist::append);
+		hist.save();
+		
+		for (int maxSize : new int[] { 20000, 30000, 100 }) {
+			FileHistory sequential = new FileHistory(path, UTF_8, maxSize, false, false, new CsvHistoryFormat(Long.MAX_VALUE));
+			sequential.load();
+			FileHistory parallel = new FileHistory(path, UTF_8, maxSize, false, false, new CsvHistoryFormat(0L, 4096));
+			parallel.importFrom(path);
+			
+			assertThat(parallel.list(), is(sequential.list()));
+			assertThat(parallel.list().size(), is(Math.min(maxSize, 20000)));
+		}
+	}
+
+	@Test
+	public void testLoad_parallelMultiline() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 20000);
+		List<Command> commands = commands(20000);
+		commands.set(5000, Command.of("echo \"a\nb\"\nc", commands.get(5000).getTimestamp()));
+		commands.forEach(hist::append);
+		hist.save();
+		
+		FileHistory parallel = new FileHistory(path, UTF_8, 20000, false, false, new CsvHistoryFormat(0L, 4096));
+		parallel.importFrom(path);
+		
+		assertThat(parallel.list(), is(hist.list()));
+	}
+
+	@Test
+	public void testReadAll_close() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 20000);
+		commands(20000).forEach(hist::append);
+		hist.save();
+		CsvHistoryFormat format = new CsvHistoryFormat(0L, 4096);
+		
+		// only the tail is read by read(), even over the threshold
+		try (HistoryFormat.Records records = format.read(path, UTF_8)) {
+			assertThat(records.getClass(), is(not(ChunkedRecords.class)));
+		}
+		// closed while the chunks are parsed, and reads again
+		for (int i = 0; i < 20; i++) {
+			HistoryFormat.Records records = format.readAll(path, UTF_8);
+			assertThat(records, is(instanceOf(ChunkedRecords.class)));
+			assertThat(records.previous().getCommand(), is("command #20000"));
+			records.close();
+		}
+		try (HistoryFormat.Records records = format.readAll(path, UTF_8)) {
+			int count = 0;
+			while (records.previous() != null) {
+				count++;
+			}
+			assertThat(count, is(20000));
+		}
+	}
+
+	@Test
+	public void testSaveLoadAsync() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, true);
+		hist.loadAsync().join();
+		List<Command> commands = commands(3);
+		List<CompletableFuture<Void>> saves = new ArrayList<>();
+		for (Command command : commands) {
+			hist.append(command);
+			saves.add(hist.saveAsync());
+		}
+		saves.forEach(CompletableFuture::join);
+		
+		assertThat(Files.readAllLines(path, UTF_8),
+				is(commands.stream().map(Command::format).collect(toList())));
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, false, true);
+		loaded.loadAsync().join();
+		assertThat(loaded.list(), is(hist.list()));
+	}
+
+	@Test
+	public void testSaveLoadAsync_binary() throws IOException {
+		Path path = folder.newFile().toPath();
+		HistoryFormat binary = HistoryFormat.of(BinaryHistoryFormat.NAME);
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, true, binary);
+		commands(3).forEach(hist::append);
+		hist.saveAsync();
+		hist.append(Command.of("command #4", LocalDateTime.of(2015, 11, 2, 0, 0)));
+		hist.saveAsync();
+		// waits for the asynchronous saves
+		hist.save();
+		
+		FileHistory loaded = new FileHistory(path, UTF_8, 10, false, false);
+		loaded.loadAsync().join();
+		
+		assertThat(loaded.list(), is(hist.list()));
+		assertThat(HistoryFormat.detect(path).get().getName(), is(BinaryHistoryFormat.NAME));
+	}
+
+	@Test
+	public void testLoadAsync_appended() throws Exception {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		List<Command> commands = commands(4);
+		commands.subList(0, 3).forEach(hist::append);
+		hist.save();
+		hist.clear();
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch latch = new CountDownLatch(1);
+			executor.execute(() -> {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			hist.setExecutor(executor);
+			CompletableFuture<Void> loading = hist.loadAsync();
+			hist.append(commands.get(3));
+			latch.countDown();
+			loading.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertThat(bodies(hist), is(asList("command #4", "command #3", "command #2", "command #1")));
+		hist.save();
+		assertThat(Files.readAllLines(path, UTF_8).size(), is(4));
+	}
+
+	@Test
+	public void testLoadAsync_notExists() {
+		FileHistory hist = new FileHistory(folder.getRoot().toPath().resolve("none"), UTF_8, 10);
+		hist.append(commands(1).get(0));
+		hist.loadAsync().join();
+		
+		assertThat(hist.list(), is(empty()));
+	}
+
+	@Test
+	public void testSave_atomic() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 10);
+		commands(3).forEach(hist::append);
+		hist.save();
+		List<String> saved = Files.readAllLines(path, UTF_8);
+		
+		FileHistory broken = new FileHistory(path, UTF_8, 10, false, false, new CsvHistoryFormat() {
+			@Override
+			public void write(Path path, Charset charset, List<Command> commands, boolean append) throws IOException {
+				Files.write(path, asList("command #1"), charset);
+				throw new IOException("crash");
+			}
+		});
+		commands(4).forEach(broken::append);
+		try {
+			broken.save();
+			fail();
+		} catch (UncheckedIOException e) {
+			assertThat(e.getCause().getMessage(), is("crash"));
+		}
+		
+		assertThat(Files.readAllLines(path, UTF_8), is(saved));
+		try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+			assertThat(files.collect(toList()), is(asList(path)));
+		}
+	}
+
+	@Test
+	public void testSave_merged() throws Exception {
+		Path path = folder.newFile().toPath();
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicInteger writes = new AtomicInteger();
+		FileHistory hist = new FileHistory(path, UTF_8, 10, false, false, new CsvHistoryFormat() {
+			@Override
+			public void write(Path path, Charset charset, List<Command> commands, boolean append) throws IOException {
+				if (writes.incrementAndGet() == 1) {
+					try {
+						latch.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				super.write(path, charset, commands, append);
+			}
+		});
+		List<Command> commands = commands(3);
+		hist.append(commands.get(0));
+		Thread first = new Thread(hist::save);
+		first.start();
+		while (writes.get() == 0) {
+			Thread.sleep(1L);
+		}
+		hist.append(commands.get(1));
+		hist.append(commands.get(2));
+		List<Thread> waiting = asList(new Thread(hist::save), new Thread(hist::save));
+		waiting.forEach(Thread::start);
+		for (Thread thread : waiting) {
+			while (thread.getState() != Thread.State.BLOCKED) {
+				Thread.sleep(1L);
+			}
+		}
+		latch.countDown();
+		first.join();
+		for (Thread thread : waiting) {
+			thread.join();
+		}
+		
+		assertThat(writes.get(), is(2));
+		assertThat(Files.readAllLines(path, UTF_8).size(), is(3));
+	}
+
+	@Test
+	public void testSyncPolicy() throws IOException {
+		List<SyncPolicy> policies = asList(SyncPolicy.never(), SyncPolicy.always(), SyncPolicy.group(Duration.ofMillis(50L), 2));
+		for (SyncPolicy policy : policies) {
+			Path path = folder.newFile().toPath();
+			FileHistory hist = new FileHistory(path, UTF_8, 10, false, true, HistoryFormat.of(CsvHistoryFormat.NAME), policy);
+			List<Command> commands = commands(5);
+			for (Command command : commands) {
+				hist.append(command);
+				hist.save();
+			}
+			hist.saveAsync().join();
+			hist.clear();
+			hist.saveAsync().join();
+			
+			assertThat(hist.getSyncPolicy(), is(policy));
+			assertThat(Files.readAllLines(path, UTF_8), is(empty()));
+		}
+		assertThat(SyncPolicy.group(Duration.ofSeconds(1L), 100).toString(), is("GROUP(PT1S, 100)"));
+	}
+
+	@Test
+	public void testSyncPolicy_property() {
+		System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC, "group");
+		System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC_RECORDS, "10");
+		try {
+			SyncPolicy policy = new FileHistory(folder.getRoot().toPath().resolve("history")).getSyncPolicy();
+			
+			assertThat(policy.getMode(), is(SyncPolicy.Mode.GROUP));
+			assertThat(policy.getInterval(), is(Duration.ofSeconds(1L)));
+			assertThat(policy.getRecords(), is(10));
+		} finally {
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC);
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC_RECORDS);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSyncPolicy_invalid() {
+		SyncPolicy.group(Duration.ofSeconds(1L), 0);
+	}
+
+	@Test
+	public void testFileHistory_invalidProperties() {
+		System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC, "sometimes");
+		System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SEGMENT, "PT0.5S");
+		System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_FORMAT, "unknown");
+		try {
+			FileHistory hist = new FileHistory(folder.getRoot().toPath().resolve("history"));
+			assertThat(hist.getSyncPolicy().getMode(), is(SyncPolicy.Mode.NEVER));
+			assertThat(hist.getSegmentLength(), is(Optional.empty()));
+			assertThat(hist.getFormat().getName(), is(CsvHistoryFormat.NAME));
+			
+			System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC, "group");
+			System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC_RECORDS, "0");
+			System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SEGMENT, "daily?");
+			assertThat(History.of(FileHistory.class), is(instanceOf(FileHistory.class)));
+			assertThat(new FileHistory().getSyncPolicy().getRecords(), is(100));
+		} finally {
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC);
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SYNC_RECORDS);
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SEGMENT);
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_FORMAT);
+		}
+	}
+
+	private static List<Command> days(int count) {
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		List<Command> commands = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			commands.add(Command.of("command #" + i, base.plusHours(6 * i)));
+		}
+		return commands;
+	}
+	
+	private static FileHistory segmented(Path path, int maxSize) {
+		return new FileHistory(path, UTF_8, maxSize, false, false, HistoryFormat.of(CsvHistoryFormat.NAME),
+				SyncPolicy.never(), Duration.ofDays(1L));
+	}
+	
+	private static List<Path> segmentFiles(Path path) throws IOException {
+		try (Stream<Path> files = Files.list(path.getParent())) {
+			return files.filter(e -> e.getFileName().toString().startsWith(path.getFileName() + "."))
+					.filter(e -> !e.getFileName().toString().endsWith(".tmp"))
+					.sorted()
+					.collect(toList());
+		}
+	}
+
+	@Test
+	public void testSegments() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = segmented(path, 100);
+		hist.load();
+		List<Command> commands = days(10);
+		commands.subList(0, 5).forEach(hist::append);
+		hist.save();
+		commands.subList(5, 10).forEach(hist::append);
+		hist.save();
+		
+		// 6 hours apart from 6:00 on Nov 1 to 12:00 on Nov 3
+		assertThat(hist.getSegmentLength(), is(Optional.of(Duration.ofDays(1L))));
+		assertThat(segmentFiles(path).size(), is(3));
+		assertThat(Files.readAllLines(path, UTF_8).get(0), startsWith(HistorySegments.MAGIC));
+		assertThat(Files.readAllLines(segmentFiles(path).get(0), UTF_8).size(), is(3));
+		
+		FileHistory loaded = segmented(path, 100);
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+	}
+
+	@Test
+	public void testSegments_loadAsyncAppended() throws Exception {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = segmented(path, 10);
+		hist.load();
+		List<Command> commands = commands(4);
+		commands.subList(0, 3).forEach(hist::append);
+		hist.save();
+		hist.clear();
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch latch = new CountDownLatch(1);
+			executor.execute(() -> {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			hist.setExecutor(executor);
+			CompletableFuture<Void> loading = hist.loadAsync();
+			hist.append(commands.get(3));
+			latch.countDown();
+			loading.get(10, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertThat(bodies(hist), is(asList("command #4", "command #3", "command #2", "command #1")));
+		hist.save();
+		FileHistory loaded = segmented(path, 10);
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+	}
+
+	@Test
+	public void testSegments_shrink() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = segmented(path, 100);
+		hist.load();
+		days(10).forEach(hist::append);
+		hist.save();
+		List<Path> before = segmentFiles(path);
+		
+		// expires Nov 1 and the first command of Nov 2
+		hist.shrink(LocalDate.of(2015, 11, 2).atStartOfDay());
+		hist.save();
+		
+		// the whole expired segment is deleted, and the others are not rewritten
+		assertThat(segmentFiles(path), is(before.subList(1, 3)));
+		assertThat(Files.readAllLines(before.get(1), UTF_8).size(), is(4));
+		
+		FileHistory loaded = segmented(path, 100);
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+		assertThat(bodies(loaded).get(loaded.list().size() - 1), is("command #5"));
+	}
+
+	@Test
+	public void testSegments_newest() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = segmented(path, 100);
+		hist.load();
+		days(10).forEach(hist::append);
+		hist.save();
+		
+		FileHistory loaded = segmented(path, 3);
+		loaded.load();
+		assertThat(bodies(loaded), is(asList("command #10", "command #9", "command #8")));
+		
+		// the segments before the history buffer are deleted by the next save
+		loaded.append(Command.of("command #11", LocalDate.of(2015, 11, 3).atTime(18, 0)));
+		loaded.save();
+		assertThat(segmentFiles(path).size(), is(1));
+		
+		FileHistory reloaded = segmented(path, 3);
+		reloaded.load();
+		assertThat(reloaded.list(), is(loaded.list()));
+	}
+
+	@Test
+	public void testSegments_convert() throws IOException {
+		Path path = folder.newFile().toPath();
+		FileHistory hist = new FileHistory(path, UTF_8, 100);
+		days(10).forEach(hist::append);
+		hist.save();
+		
+		FileHistory converted = segmented(path, 100);
+		converted.load();
+		converted.save();
+		
+		assertThat(HistorySegments.isManifest(path), is(true));
+		assertThat(segmentFiles(path).size(), is(3));
+		
+		FileHistory loaded = segmented(path, 100);
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+		
+		// a save before loading replaces the listed segments
+		FileHistory cleared = segmented(path, 100);
+		cleared.append(Command.of("ls", LocalDate.of(2015, 11, 4).atStartOfDay()));
+		cleared.save();
+		
+		assertThat(segmentFiles(path).size(), is(1));
+		loaded.load();
+		assertThat(bodies(loaded), is(asList("ls")));
+	}
+
+	@Test
+	public void testSegments_property() {
+		System.setProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SEGMENT, "hourly");
+		try {
+			FileHistory hist = new FileHistory(folder.getRoot().toPath().resolve("history"));
+			
+			assertThat(hist.getSegmentLength(), is(Optional.of(Duration.ofHours(1L))));
+		} finally {
+			System.clearProperty(FileHistory.PROPERTY_KEY_HISTORY_FILE_SEGMENT);
+		}
+		assertThat(new FileHistory(folder.getRoot().toPath().resolve("history")).getSegmentLength(), is(Optional.empty()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSegments_invalid() {
+		new FileHistory(folder.getRoot().toPath().resolve("history"), UTF_8, 10, false, false,
+				HistoryFormat.of(CsvHistoryFormat.NAME), SyncPolicy.never(), Duration.ofMillis(500L));
+	}
 
 }
@@ -0,0 +1,245 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedHistoryTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private static List<String> bodies(History history) {
+		return history.list().stream().map(Command::getCommand).collect(toList());
+	}
+	
+	private static List<Command> commands(int count) {
+		LocalDateTime base = LocalDate.of(2015, 11, 1).atStartOfDay();
+		List<Command> commands = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			commands.add(Command.of("command #" + i, base.plusMinutes(i)));
+		}
+		return commands;
+	}
+	
+	@Test
+	public void testAppendLoad() {
+		Path path = folder.getRoot().toPath().resolve("history.ring");
+		MappedHistory hist = new MappedHistory(path, 10);
+		assertThat(hist.list(), is(empty()));
+		hist.load();
+		commands(3).forEach(hist::append);
+		hist.append(Command.of("日本語, \"quoted\"\nmultiline", LocalDateTime.of(1969, 7, 20, 20, 17, 40, 123456789)));
+		hist.save();
+		
+		MappedHistory loaded = new MappedHistory(path, 10);
+		loaded.load();
+		
+		assertThat(loaded.list(), is(hist.list()));
+		assertThat(bodies(loaded), is(asList("日本語, \"quoted\"\nmultiline", "command #3", "command #2", "command #1")));
+	}
+	
+	@Test
+	public void testAppend_ring() {
+		Path path = folder.getRoot().toPath().resolve("history.ring");
+		MappedHistory hist = new MappedHistory(path, 3, 40);
+		List<Command> commands = commands(200);
+		commands.forEach(hist::append);
+		
+		assertThat(bodies(hist), is(asList("command #200", "command #199", "command #198")));
+		
+		MappedHistory loaded = new MappedHistory(path, 3, 40);
+		loaded.load();
+		assertThat(loaded.list(), is(hist.list()));
+	}
+	
+	@Test
+	public void testList_reused() {
+		MappedHistory hist = new MappedHistory(folder.getRoot().toPath().resolve("history.ring"), 3, 40);
+		List<Command> commands = commands(100);
+		hist.append(commands.get(0));
+		List<Command> list = hist.list();
+		commands.subList(1, 3 + 64).forEach(hist::append);
+		
+		// the slot is not reused yet
+		assertThat(list, is(asList(commands.get(0))));
+		hist.append(commands.get(67));
+		
+		// the slot is reused
+		try {
+			list.get(0);
+			fail();
+		} catch (ConcurrentModificationException e) {
+			assertThat(e.getMessage(), is("the slot is reused: 0"));
+		}
+		assertThat(hist.list(), is(asList(commands.get(67), commands.get(66), commands.get(65))));
+	}
+	
+	@Test
+	public void testList_concurrent() throws InterruptedException {
+		MappedHistory hist = new MappedHistory(folder.getRoot().toPath().resolve("history.ring"), 3, 40);
+		List<Command> commands = commands(5000);
+		hist.append(commands.get(0));
+		Thread writer = new Thread(() -> commands.forEach(hist::append));
+		writer.start();
+		
+		// a list never returns a command of a reused slot
+		int read = 0;
+		while (writer.isAlive() || read == 0) {
+			List<Command> list = hist.list();
+			assertThat(list.size(), is(lessThanOrEqualTo(3)));
+			try {
+				Command previous = null;
+				for (Command command : list) {
+					assertThat(commands, hasItem(command));
+					if (previous != null) {
+						assertThat(command.getTimestamp(), is(previous.getTimestamp().minusMinutes(1L)));
+					}
+					previous = command;
+					read++;
+				}
+			} catch (ConcurrentModificationException e) {
+				// the slots are reused while reading
+			}
+		}
+		writer.join();
+	}
+	
+	@Test
+	public void testLoad_convert() {
+		Path path = folder.getRoot().toPath().resolve("history.ring");
+		MappedHistory hist = new MappedHistory(path, 10);
+		commands(8).forEach(hist::append);
+		
+		MappedHistory smaller = new MappedHistory(path, 5, 64);
+		smaller.load();
+		assertThat(bodies(smaller), is(asList("command #8", "command #7", "command #6", "command #5", "command #4")));
+		smaller.append(commands(9).get(8));
+		List<Command> expected = new ArrayList<>(smaller.list());
+		
+		MappedHistory larger = new MappedHistory(path, 20);
+		larger.load();
+		assertThat(larger.list(), is(expected));
+	}
+	
+	@Test
+	public void testLoad_otherFile() throws IOException {
+		Path path = folder.newFile().toPath();
+		Files.write(path, asList("2015-11-01T00:00,ls"));
+		try {
+			new MappedHistory(path, 10).load();
+			fail();
+		} catch (UncheckedIOException e) {
+			assertThat(e.getCause().getMessage(), startsWith("not a mapped history file"));
+		}
+	}
+	
+	@Test
+	public void testShrink() {
+		MappedHistory hist = new MappedHistory(folder.getRoot().toPath().resolve("history.ring"), 10);
+		List<Command> commands = commands(5);
+		commands.forEach(hist::append);
+		hist.shrink(commands.get(1).getTimestamp());
+		assertThat(bodies(hist), is(asList("command #5", "command #4", "command #3")));
+		
+		// out of order
+		hist.append(Command.of("old", commands.get(0).getTimestamp()));
+		hist.append(Command.of("new", commands.get(4).getTimestamp().plusMinutes(1)));
+		hist.shrink(commands.get(2).getTimestamp());
+		assertThat(bodies(hist), is(asList("new", "command #5", "command #4")));
+		
+		hist.clear();
+		assertThat(hist.list(), is(empty()));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testAppend_tooLong() {
+		MappedHistory hist = new MappedHistory(folder.getRoot().toPath().resolve("history.ring"), 10, 32);
+		hist.append(Command.of("12345678"));
+		// 9 bytes for 8 bytes of the slot
+		hist.append(Command.of("1234567日"));
+	}
+	
+	@Test
+	public void testLoad_convertTooLong() {
+		Path path = folder.getRoot().toPath().resolve("history.ring");
+		MappedHistory larger = new MappedHistory(path, 10, 64);
+		larger.append(Command.of("12345678"));
+		larger.append(Command.of("123456日本"));
+		larger.append(Command.of("12345日"));
+		
+		// dropped when converted to smaller slots
+		MappedHistory smaller = new MappedHistory(path, 10, 32);
+		smaller.load();
+		assertThat(bodies(smaller), is(asList("12345日", "12345678")));
+	}
+	
+	@Test
+	public void testShrink_scattered() {
+		MappedHistory hist = new MappedHistory(folder.getRoot().toPath().resolve("history.ring"), 100, 40);
+		List<Command> commands = commands(300);
+		commands.subList(0, 200).forEach(hist::append);
+		List<Command> list = hist.list();
+		hist.append(Command.of("old", commands.get(0).getTimestamp()));
+		hist.shrink(commands.get(0).getTimestamp());
+		
+		// the alive commands are written to the free slots
+		assertThat(list.size(), is(100));
+		assertThat(list.get(99), is(commands.get(100)));
+		assertThat(hist.list(), is(list.subList(0, 99)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMappedHistory_tooLarge() {
+		new MappedHistory(folder.getRoot().toPath().resolve("history.ring"), Integer.MAX_VALUE, 32);
+	}
+	
+	@Test
+	public void testMappedHistory_invalidProperties() {
+		String slot = System.setProperty(MappedHistory.PROPERTY_KEY_HISTORY_MAPPED_SLOT, "7");
+		String size = System.setProperty(AbstractHistory.PROPERTY_KEY_HISTORY_SIZE, String.valueOf(Integer.MAX_VALUE));
+		try {
+			MappedHistory hist = new MappedHistory(folder.getRoot().toPath().resolve("history.ring"));
+			assertThat(hist.getSlotSize(), is(MappedHistory.DEFAULT_SLOT_SIZE));
+			assertThat(hist.getMaxSize(), is(both(greaterThan(0)).and(lessThan(Integer.MAX_VALUE / MappedHistory.DEFAULT_SLOT_SIZE))));
+			
+			assertThat(History.of(MappedHistory.class), is(instanceOf(MappedHistory.class)));
+			assertThat(History.getDefault(), is(instanceOf(FileHistory.class)));
+		} finally {
+			restore(MappedHistory.PROPERTY_KEY_HISTORY_MAPPED_SLOT, slot);
+			restore(AbstractHistory.PROPERTY_KEY_HISTORY_SIZE, size);
+		}
+	}
+	
+	private static void restore(String key, String value) {
+		if (value == null) {
+			System.clearProperty(key);
+		} else {
+			System.setProperty(key, value);
+		}
+	}
+	
+	@Test
+	public void testOf() {
+		History history = History.of(MappedHistory.class);
+		
+		assertThat(history, is(instanceOf(MappedHistory.class)));
+		assertThat(history.list(), is(empty()));
+	}
+	
+}
@@ -10,6 +10,14 @@ public class MemoryHistory extends AbstractHistory {
 		super(limit);
 	}
 	
+	public MemoryHistory(int limit, boolean distinct) {
+		super(limit, distinct);
+	}
+	
+	public MemoryHistory(int limit, boolean distinct, boolean compact) {
+		super(limit, distinct, compact);
+	}
+	
 	@Override
 	public void load() {
 		// do nothing
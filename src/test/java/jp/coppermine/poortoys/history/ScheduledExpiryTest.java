@@ -0,0 +1,80 @@
+package jp.coppermine.poortoys.history;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ScheduledExpiryTest {
+	
+	private static List<String> bodies(History history) {
+		return history.list().stream().map(Command::getCommand).collect(toList());
+	}
+	
+	private static long expiryThreads() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(e -> e.getName().equals("poortoys-history-expiry"))
+				.count();
+	}
+
+	@Test
+	public void testExpire() throws InterruptedException {
+		MemoryHistory history = new MemoryHistory(10);
+		history.append(Command.of("old", LocalDateTime.now().minusDays(2)));
+		history.append(Command.of("new", LocalDateTime.now()));
+		
+		try (ScheduledExpiry expiry = new ScheduledExpiry(history, Duration.ofDays(1L), Duration.ofMillis(20L))) {
+			assertThat(expiry.getRetention(), is(Duration.ofDays(1L)));
+			
+			// the first expiration runs immediately
+			Thread.sleep(200L);
+			assertThat(bodies(history), is(asList("new")));
+			
+			// and the next ones run periodically
+			history.append(Command.of("older", LocalDateTime.now().minusDays(3)));
+			Thread.sleep(200L);
+			assertThat(bodies(history), is(asList("new")));
+			
+			history.append(Command.of("oldest", LocalDateTime.now().minusDays(4)));
+			expiry.expire();
+			assertThat(bodies(history), is(asList("new")));
+		}
+	}
+
+	@Test
+	public void testClose() throws InterruptedException {
+		MemoryHistory history = new MemoryHistory(10);
+		ScheduledExpiry expiry = new ScheduledExpiry(history, Duration.ofDays(1L), Duration.ofMillis(20L));
+		expiry.close();
+		Thread.sleep(100L);
+		
+		history.append(Command.of("old", LocalDateTime.now().minusDays(2)));
+		Thread.sleep(200L);
+		
+		// the periodic expiration is stopped
+		assertThat(bodies(history), is(asList("old")));
+	}
+
+	@Test
+	public void testPeriod_invalid() {
+		long before = expiryThreads();
+		for (Duration period : asList(Duration.ZERO, Duration.ofMillis(-1L), Duration.ofNanos(999_999L))) {
+			try {
+				new ScheduledExpiry(new MemoryHistory(10), Duration.ofDays(1L), period);
+				fail("period: " + period);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		
+		// no thread is left by the invalid periods
+		assertThat(expiryThreads(), is(before));
+	}
+
+}
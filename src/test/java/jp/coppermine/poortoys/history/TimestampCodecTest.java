@@ -0,0 +1,102 @@
+package jp.coppermine.poortoys.history;
+
+import static java.time.ZoneOffset.UTC;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimestampCodecTest {
+	
+	private static void assertRoundTrip(LocalDateTime timestamp) {
+		long second = timestamp.toEpochSecond(UTC);
+		String text = TimestampCodec.format(second, timestamp.getNano());
+		assertThat(text, is(timestamp.toString()));
+		assertThat(text, TimestampCodec.epochSecond(text), is(second));
+		assertThat(text, TimestampCodec.nano(text), is(timestamp.getNano()));
+	}
+	
+	private static Object parse(String text) {
+		try {
+			return TimestampCodec.epochSecond(text) + "/" + TimestampCodec.nano(text);
+		} catch (DateTimeException e) {
+			return e.getClass();
+		}
+	}
+	
+	private static Object parseByLocalDateTime(String text) {
+		try {
+			LocalDateTime timestamp = LocalDateTime.parse(text);
+			return timestamp.toEpochSecond(UTC) + "/" + timestamp.getNano();
+		} catch (DateTimeException e) {
+			return e.getClass();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		assertRoundTrip(LocalDateTime.of(2015, 11, 1, 0, 0));
+		assertRoundTrip(LocalDateTime.of(2015, 11, 1, 12, 34, 56));
+		assertRoundTrip(LocalDateTime.of(2016, 2, 29, 23, 59, 0, 100000000));
+		assertRoundTrip(LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999999000));
+		assertRoundTrip(LocalDateTime.of(0, 1, 1, 0, 0, 0, 1));
+		assertRoundTrip(LocalDateTime.of(9999, 12, 31, 23, 59, 59, 999999999));
+		assertRoundTrip(LocalDateTime.of(10000, 1, 1, 0, 0));
+		assertRoundTrip(LocalDateTime.of(-1, 12, 31, 23, 59));
+		assertRoundTrip(LocalDateTime.MIN);
+		assertRoundTrip(LocalDateTime.MAX);
+	}
+
+	@Test
+	public void testRoundTrip_random() {
+		Random random = new Random(0L);
+		long min = LocalDateTime.of(0, 1, 1, 0, 0).toEpochSecond(UTC);
+		long max = LocalDateTime.of(9999, 12, 31, 23, 59, 59).toEpochSecond(UTC);
+		int[] nanos = { 0, 0, 123000000, 123456000, 123456789 };
+		for (int i = 0; i < 100000; i++) {
+			long second = min + (long) (random.nextDouble() * (max - min));
+			if (i % 2 == 0) {
+				second -= second % 60;
+			}
+			assertRoundTrip(LocalDateTime.ofEpochSecond(second, nanos[random.nextInt(nanos.length)], UTC));
+		}
+	}
+
+	@Test
+	public void testParse_sameAsLocalDateTime() {
+		String[] texts = {
+				"2015-11-01T00:00", "2015-11-01T00:00:00", "2015-11-01T00:00:00.000", "2015-11-01T00:00:00.5",
+				"2015-11-01T00:00:00.123456789", "2015-11-01t00:00", "2015-11-01T00:00:0", "2015-11-01T00:00:00.",
+				"2015-11-01T00:00:00.1234567890", "2015-02-29T00:00", "2016-02-29T00:00", "2000-02-29T00:00",
+				"1900-02-29T00:00", "2015-04-31T00:00", "2015-13-01T00:00", "2015-00-01T00:00", "2015-11-00T00:00",
+				"2015-11-01T24:00", "2015-11-01T23:60", "2015-11-01T23:59:60", "+2015-11-01T00:00",
+				"+12015-11-01T00:00", "-0001-01-01T00:00", "2015-11-01 00:00", "2015/11/01T00:00", "",
+				"2015-11-01T0a:00", "２０１５-11-01T00:00" };
+		for (String text : texts) {
+			assertThat(text, parse(text), is(parseByLocalDateTime(text)));
+		}
+	}
+
+	@Test
+	public void testCommand() {
+		Command command = Command.parse("2015-11-01T12:34:56.789,ls -l");
+		
+		assertThat(command.getTimestamp(), is(LocalDateTime.of(2015, 11, 1, 12, 34, 56, 789000000)));
+		assertThat(command.getEpochSecond(), is(LocalDateTime.of(2015, 11, 1, 12, 34, 56).toEpochSecond(UTC)));
+		assertThat(command.getNano(), is(789000000));
+		assertThat(command.format(), is("2015-11-01T12:34:56.789,\"ls -l\""));
+		assertThat(Command.ofEpochSecond("ls -l", command.getEpochSecond(), command.getNano()), is(command));
+		assertThat(command.isAfter(LocalDateTime.of(2015, 11, 1, 12, 34, 56, 788999999)), is(true));
+		assertThat(command.isAfter(LocalDateTime.of(2015, 11, 1, 12, 34, 56, 789000000)), is(false));
+	}
+
+	@Test(expected = DateTimeException.class)
+	public void testCommand_outOfRange() {
+		Command.ofEpochSecond("ls -l", LocalDateTime.MAX.toEpochSecond(UTC) + 1, 0);
+	}
+
+}
@@ -0,0 +1,106 @@
+package jp.coppermine.poortoys.history;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WriteBehindTest {
+	
+	/**
+	 * A history counting saves.
+	 */
+	private static class CountingHistory extends MemoryHistory {
+		
+		private final AtomicInteger saves = new AtomicInteger();
+		
+		private final AtomicInteger running = new AtomicInteger();
+		
+		private final AtomicInteger maxRunning = new AtomicInteger();
+		
+		private volatile boolean failing;
+		
+		@Override
+		public void save() {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20L);
+				if (failing) {
+					throw new IllegalStateException("failing");
+				}
+				saves.incrementAndGet();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+		
+	}
+
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		CountingHistory history = new CountingHistory();
+		try (WriteBehind saver = new WriteBehind(history, Duration.ofMillis(200L), 1000)) {
+			for (int i = 0; i < 50; i++) {
+				saver.markDirty();
+			}
+			assertThat(saver.getPending(), is(50));
+			assertThat(history.saves.get(), is(0));
+			
+			Thread.sleep(500L);
+			assertThat(history.saves.get(), is(1));
+			assertThat(saver.getPending(), is(0));
+		}
+		assertThat(history.saves.get(), is(1));
+	}
+
+	@Test
+	public void testMaxPending() {
+		CountingHistory history = new CountingHistory();
+		try (WriteBehind saver = new WriteBehind(history, Duration.ofHours(1L), 10)) {
+			for (int i = 0; i < 100; i++) {
+				saver.markDirty();
+			}
+			saver.flush();
+			
+			assertThat(history.saves.get(), is(both(greaterThanOrEqualTo(1)).and(lessThanOrEqualTo(10))));
+			assertThat(history.maxRunning.get(), is(1));
+			assertThat(saver.getPending(), is(0));
+		}
+	}
+
+	@Test
+	public void testClose() {
+		CountingHistory history = new CountingHistory();
+		WriteBehind saver = new WriteBehind(history, Duration.ofHours(1L), 1000);
+		saver.markDirty();
+		saver.close();
+		
+		assertThat(history.saves.get(), is(1));
+		saver.markDirty();
+		saver.flush();
+		assertThat(history.saves.get(), is(2));
+	}
+
+	@Test
+	public void testFailure() {
+		CountingHistory history = new CountingHistory();
+		try (WriteBehind saver = new WriteBehind(history, Duration.ofHours(1L), 1000)) {
+			history.failing = true;
+			saver.markDirty();
+			try {
+				saver.flush();
+				fail();
+			} catch (IllegalStateException e) {
+				assertThat(saver.getPending(), is(1));
+			}
+			history.failing = false;
+		}
+		assertThat(history.saves.get(), is(1));
+	}
+
+}
@@ -0,0 +1,129 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DebouncerTest {
+	
+	private static long suggestionThreads() {
+		return Thread.getAllStackTraces().keySet().stream()
+				.filter(e -> e.getName().equals("poortoys-history-suggestion"))
+				.count();
+	}
+
+	@Test
+	public void testRequest_latest() throws InterruptedException {
+		Debouncer debouncer = new Debouncer(Runnable::run);
+		AtomicInteger computed = new AtomicInteger();
+		List<String> applied = new CopyOnWriteArrayList<>();
+		for (String text : asList("l", "ls", "ls ")) {
+			debouncer.request(() -> {
+				computed.incrementAndGet();
+				return text;
+			}, 100L, applied::add);
+		}
+		Thread.sleep(400L);
+		
+		// the older requests are cancelled before they start
+		assertThat(computed.get(), is(1));
+		assertThat(applied, is(asList("ls ")));
+	}
+
+	@Test
+	public void testRequest_superseded() throws InterruptedException {
+		Debouncer debouncer = new Debouncer(Runnable::run);
+		CountDownLatch started = new CountDownLatch(1);
+		List<String> applied = new CopyOnWriteArrayList<>();
+		debouncer.request(() -> {
+			started.countDown();
+			sleep(100L);
+			return "old";
+		}, 0L, applied::add);
+		assertThat(started.await(1L, TimeUnit.SECONDS), is(true));
+		debouncer.request(() -> "new", 0L, applied::add);
+		Thread.sleep(400L);
+		
+		// the result of the running request is discarded
+		assertThat(applied, is(asList("new")));
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		Debouncer debouncer = new Debouncer(Runnable::run);
+		List<String> applied = new CopyOnWriteArrayList<>();
+		debouncer.request(() -> "ls", 50L, applied::add);
+		debouncer.cancel();
+		Thread.sleep(200L);
+		
+		assertThat(applied, is(empty()));
+		
+		debouncer.request(() -> "pwd", 0L, applied::add);
+		Thread.sleep(200L);
+		assertThat(applied, is(asList("pwd")));
+	}
+
+	@Test
+	public void testRequest_failed() throws InterruptedException {
+		List<Throwable> reported = new CopyOnWriteArrayList<>();
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r);
+			thread.setUncaughtExceptionHandler((t, e) -> reported.add(e));
+			return thread;
+		});
+		try {
+			Debouncer debouncer = new Debouncer(executor, Runnable::run);
+			List<String> applied = new CopyOnWriteArrayList<>();
+			IllegalStateException failure = new IllegalStateException("failing");
+			debouncer.<String>request(() -> {
+				throw failure;
+			}, 0L, applied::add);
+			Thread.sleep(200L);
+			
+			// reported, not applied
+			assertThat(reported, is(asList(failure)));
+			assertThat(applied, is(empty()));
+			
+			debouncer.request(() -> "pwd", 0L, applied::add);
+			Thread.sleep(200L);
+			assertThat(applied, is(asList("pwd")));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testShared() throws InterruptedException {
+		List<Thread> threads = new CopyOnWriteArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			Debouncer debouncer = new Debouncer(Runnable::run);
+			debouncer.request(Thread::currentThread, 0L, threads::add);
+		}
+		Thread.sleep(200L);
+		
+		// the instances need not be disposed, they share a daemon thread
+		assertThat(threads.size(), is(10));
+		assertThat(threads.stream().distinct().count(), is(1L));
+		assertThat(threads.get(0).isDaemon(), is(true));
+		assertThat(suggestionThreads(), is(1L));
+	}
+	
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.time.LocalDateTime;
+
+import org.junit.Test;
+
+import jp.coppermine.poortoys.history.Command;
+import jp.coppermine.poortoys.history.History;
+import jp.coppermine.poortoys.history.MemoryHistory;
+
+public class HistoryOperationTest {
+	
+	private static HistoryOperation operation(String... bodies) {
+		History history = new MemoryHistory(100);
+		LocalDateTime base = LocalDateTime.of(2015, 11, 1, 0, 0);
+		for (int i = 0; i < bodies.length; i++) {
+			history.append(Command.of(bodies[i], base.plusMinutes(i)));
+		}
+		return () -> history;
+	}
+
+	@Test
+	public void testFindKeywords() {
+		HistoryOperation operation = operation("git status", "git commit", "git statis", "ls", "git status");
+		
+		// exact matches first, most recent first, then approximate ones without duplicates
+		assertThat(operation.findKeywords("git statu", 10), is(asList("git status", "git statis")));
+		assertThat(operation.findKeywords("git statu", 1), is(asList("git status")));
+		assertThat(operation.findKeywords("git", 10), is(asList("git status", "git statis", "git commit")));
+		assertThat(operation.findKeywords("git", 0), is(empty()));
+	}
+	
+	@Test
+	public void testLoadKeywords() throws InterruptedException {
+		HistoryOperation operation = operation("git status", "ls");
+		
+		// loaded without the JavaFX toolkit, then the keywords older than 30 days are removed
+		operation.loadKeywords();
+		try {
+			for (int i = 0; i < 100 && !operation.getHistory().list().isEmpty(); i++) {
+				Thread.sleep(20L);
+			}
+			assertThat(operation.getHistory().list(), is(empty()));
+		} finally {
+			Thread.sleep(100L);
+			operation.writeBehind().close();
+		}
+	}
+
+}
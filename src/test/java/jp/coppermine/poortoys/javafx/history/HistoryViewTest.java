@@ -0,0 +1,91 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+
+import org.junit.Test;
+
+public class HistoryViewTest {
+	
+	/**
+	 * Updates a list, and obtains the changes notified by it.
+	 */
+	private static List<String> update(List<String> items, List<String> keywords) {
+		ObservableList<String> target = FXCollections.observableArrayList(items);
+		List<String> changes = new ArrayList<>();
+		target.addListener((ListChangeListener<String>) c -> {
+			while (c.next()) {
+				if (c.wasRemoved()) {
+					changes.add("-" + c.getRemoved());
+				}
+				if (c.wasAdded()) {
+					changes.add("+" + c.getAddedSubList());
+				}
+			}
+		});
+		HistoryView.update(target, keywords);
+		assertThat(target, is(keywords));
+		return changes;
+	}
+
+	@Test
+	public void testUpdate() {
+		// the same items are not touched
+		assertThat(update(asList("ls", "lsof"), asList("ls", "lsof")), is(empty()));
+		
+		// narrowed down, each run of removed items is a change
+		assertThat(update(asList("l", "ls", "less", "lsof", "ln"), asList("ls", "lsof")),
+				is(asList("-[l]", "-[less]", "-[ln]")));
+		
+		// a new keyword at the head
+		assertThat(update(asList("ls", "lsof"), asList("lsblk", "ls", "lsof")),
+				is(asList("+[lsblk]")));
+		
+		// moved keywords are removed and inserted
+		assertThat(update(asList("a", "b", "c", "d"), asList("a", "c", "b", "d")),
+				is(asList("-[b]", "+[b]")));
+		
+		assertThat(update(asList("a", "b"), asList("c", "d")), is(asList("-[a, b]", "+[c, d]")));
+		assertThat(update(asList("a", "b"), new ArrayList<>()), is(asList("-[a, b]")));
+		assertThat(update(new ArrayList<>(), asList("a", "b")), is(asList("+[a, b]")));
+	}
+
+	@Test
+	public void testUpdate_random() {
+		Random random = new Random(1L);
+		for (int n = 0; n < 200; n++) {
+			List<String> items = new ArrayList<>();
+			List<String> keywords = new ArrayList<>();
+			for (int i = random.nextInt(20); i > 0; i--) {
+				items.add("k" + random.nextInt(10));
+			}
+			for (int i = random.nextInt(20); i > 0; i--) {
+				keywords.add("k" + random.nextInt(10));
+			}
+			update(items, keywords);
+		}
+	}
+
+	@Test
+	public void testUpdate_large() {
+		List<String> items = new ArrayList<>();
+		List<String> keywords = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			items.add("a" + i);
+			keywords.add("b" + i);
+		}
+		
+		// beyond the limit of the edit table, the changed range is replaced as a whole
+		assertThat(update(items, keywords).size(), is(2));
+	}
+
+}
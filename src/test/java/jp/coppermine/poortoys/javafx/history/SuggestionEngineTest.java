@@ -0,0 +1,129 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class SuggestionEngineTest {
+	
+	/**
+	 * A keyword finder recording the limits of the queries.
+	 */
+	private static class Finder implements BiFunction<String, Integer, List<String>> {
+		
+		private List<String> keywords;
+		
+		private final List<Integer> limits = new ArrayList<>();
+		
+		private Finder(List<String> keywords) {
+			this.keywords = keywords;
+		}
+		
+		@Override
+		public List<String> apply(String text, Integer limit) {
+			limits.add(limit);
+			return keywords.stream().filter(e -> e.startsWith(text)).limit(limit).collect(toList());
+		}
+		
+	}
+	
+	private static List<String> keywords(String... prefixes) {
+		List<String> keywords = new ArrayList<>();
+		for (String prefix : prefixes) {
+			IntStream.range(0, 10).forEach(i -> keywords.add(prefix + i));
+		}
+		return keywords;
+	}
+
+	@Test
+	public void testSuggest_narrow() {
+		Finder finder = new Finder(asList("ls", "less", "ls -l", "lsof", "pwd"));
+		SuggestionEngine engine = new SuggestionEngine(finder, String::startsWith, () -> finder.keywords);
+		
+		assertThat(engine.suggest("l", 10), is(asList("ls", "less", "ls -l", "lsof")));
+		assertThat(engine.suggest("ls", 10), is(asList("ls", "ls -l", "lsof")));
+		assertThat(engine.suggest("ls ", 10), is(asList("ls -l")));
+		
+		// all keywords are in the first page, so extending the text only narrows them down
+		assertThat(finder.limits, is(asList(10 * SuggestionEngine.PAGE_FACTOR)));
+		
+		// shortening the text finds them again
+		assertThat(engine.suggest("ls", 2), is(asList("ls", "ls -l")));
+		assertThat(finder.limits, is(asList(40, 8)));
+	}
+
+	@Test
+	public void testSuggest_page() {
+		Finder finder = new Finder(keywords("a", "ab", "b"));
+		SuggestionEngine engine = new SuggestionEngine(finder, String::startsWith, () -> finder.keywords);
+		
+		// a page of 8 keywords, never all keywords
+		assertThat(engine.suggest("a", 2), is(asList("a0", "a1")));
+		assertThat(finder.limits, is(asList(8)));
+		
+		// fewer keywords than the suggestions are left in the page, and it may miss others
+		assertThat(engine.suggest("a1", 2), is(asList("a1")));
+		assertThat(finder.limits, is(asList(8, 8)));
+		
+		// the page of "a" has no keywords starting with "ab", so they are found again
+		engine.suggest("a", 2);
+		assertThat(engine.suggest("ab", 2), is(asList("ab0", "ab1")));
+		assertThat(engine.suggest("ab", 8), is(keywords("ab").subList(0, 8)));
+		assertThat(finder.limits, is(asList(8, 8, 8, 8)));
+		
+		// a larger limit than the page needs another query
+		assertThat(engine.suggest("ab", 9), is(keywords("ab").subList(0, 9)));
+		assertThat(finder.limits, is(asList(8, 8, 8, 8, 36)));
+	}
+
+	@Test
+	public void testSuggest_version() {
+		Finder finder = new Finder(new ArrayList<>(asList("ls", "less")));
+		SuggestionEngine engine = new SuggestionEngine(finder, String::startsWith, () -> finder.keywords);
+		
+		assertThat(engine.suggest("l", 10), is(asList("ls", "less")));
+		
+		// the same list, keywords added to it are not seen until it is invalidated
+		finder.keywords.add("lsblk");
+		assertThat(engine.suggest("ls", 10), is(asList("ls")));
+		engine.invalidate();
+		assertThat(engine.suggest("ls", 10), is(asList("ls", "lsblk")));
+		
+		// another list is another version
+		finder.keywords = asList("ls", "lsof");
+		assertThat(engine.suggest("ls", 10), is(asList("ls", "lsof")));
+		assertThat(finder.limits.size(), is(3));
+	}
+
+	@Test
+	public void testSuggest_withoutMatcher() {
+		Finder finder = new Finder(asList("ls", "less", "lsof"));
+		SuggestionEngine engine = new SuggestionEngine(finder);
+		
+		assertThat(engine.suggest("l", 10), is(asList("ls", "less", "lsof")));
+		assertThat(engine.suggest("ls", 10), is(asList("ls", "lsof")));
+		assertThat(engine.suggest("ls", 1), is(asList("ls")));
+		
+		// the finder is queried for each text
+		assertThat(finder.limits, is(asList(40, 40, 4)));
+	}
+
+	@Test
+	public void testSuggest_limit() {
+		Finder finder = new Finder(keywords("a"));
+		SuggestionEngine engine = new SuggestionEngine(finder, String::startsWith, () -> finder.keywords);
+		
+		assertThat(engine.suggest("a", 0), is(empty()));
+		assertThat(engine.suggest("a", Integer.MAX_VALUE), is(keywords("a")));
+		assertThat(finder.limits, is(asList(0, Integer.MAX_VALUE)));
+	}
+
+}
@@ -0,0 +1,42 @@
+package jp.coppermine.poortoys.javafx.history;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+import jp.coppermine.poortoys.history.History;
+import jp.coppermine.poortoys.history.MemoryHistory;
+import jp.coppermine.poortoys.history.WriteBehind;
+
+public class WriteBehindsTest {
+
+	@Test
+	public void testOf() {
+		History history = new MemoryHistory(10);
+		WriteBehind saver = WriteBehinds.of(history, Duration.ofSeconds(1L), 10);
+		WriteBehind other = WriteBehinds.of(new MemoryHistory(10), Duration.ofSeconds(1L), 10);
+		try {
+			assertThat(WriteBehinds.of(history, Duration.ofSeconds(1L), 10), is(sameInstance(saver)));
+			assertThat(other, is(not(sameInstance(saver))));
+		} finally {
+			saver.close();
+			other.close();
+		}
+	}
+	
+	@Test
+	public void testOf_closed() {
+		History history = new MemoryHistory(10);
+		WriteBehind saver = WriteBehinds.of(history, Duration.ofSeconds(1L), 10);
+		saver.close();
+		
+		// a closed saver is released, and another one is created
+		WriteBehind next = WriteBehinds.of(history, Duration.ofSeconds(1L), 10);
+		next.close();
+		assertThat(next, is(not(sameInstance(saver))));
+	}
+
+}
@@ -0,0 +1,50 @@
+package jp.coppermine.poortoys.text;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Compares {@link CsvCodec} with {@link RegexCsvCodec} on lines of a history file.
+ * <p>
+ * It is not a test, run it by hand: {@code java jp.coppermine.poortoys.text.CsvCodecBenchmark [lines]}
+ */
+public class CsvCodecBenchmark {
+	
+	private static final int ROUNDS = 5;
+	
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		LocalDateTime base = LocalDateTime.of(2015, 11, 1, 0, 0);
+		List<String[]> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String command = i % 3 == 0 ? "ls -l \"dir " + i + "\"" : "command#" + i;
+			entries.add(new String[] { base.plusSeconds(i).toString(), command });
+		}
+		List<String> lines = new ArrayList<>(count);
+		entries.forEach(e -> lines.add(CsvCodec.encode(e)));
+		
+		for (int round = 1; round <= ROUNDS; round++) {
+			System.out.printf("round %d: %d lines%n", round, count);
+			measure("  decode (regex)", lines, RegexCsvCodec::decode);
+			measure("  decode        ", lines, CsvCodec::decode);
+			measure("  encode (regex)", entries, RegexCsvCodec::encode);
+			measure("  encode        ", entries, CsvCodec::encode);
+		}
+	}
+	
+	private static <T> void measure(String name, List<T> inputs, Function<T, ?> codec) {
+		long start = System.nanoTime();
+		int hash = 0;
+		for (T input : inputs) {
+			Object output = codec.apply(input);
+			// the hash keeps the work and shows both codecs have the same outputs
+			hash += output instanceof Object[] ? Arrays.hashCode((Object[]) output) : output.hashCode();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%s %6d ms (%d)%n", name, elapsed / 1_000_000, hash);
+	}
+	
+}
@@ -0,0 +1,91 @@
+package jp.coppermine.poortoys.text;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsvCodecTest {
+	
+	/**
+	 * Characters of random fields, including every character with a meaning in CSV.
+	 */
+	private static final String ALPHABET = "ab \",\t\n\r\u000B\f ";
+	
+	private static String random(Random random, int maxLength) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+			builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return builder.toString();
+	}
+	
+	private static Object decode(CharSequence field) {
+		try {
+			return CsvCodec.decode(field);
+		} catch (CsvFormatException e) {
+			return e.getClass();
+		}
+	}
+	
+	private static Object decodeByRegex(CharSequence field) {
+		try {
+			return RegexCsvCodec.decode(field);
+		} catch (CsvFormatException e) {
+			return e.getClass();
+		}
+	}
+
+	@Test
+	public void testDecode() {
+		assertThat(CsvCodec.decode("2015-11-01T00:00,ls -l"), is(new String[] { "2015-11-01T00:00", "ls -l" }));
+		assertThat(CsvCodec.decode(" a ,\"b \"\",c\","), is(new String[] { "a", "b \",c", "" }));
+		assertThat(CsvCodec.decode("a,,b"), is(new String[] { "a", "", "b" }));
+		assertThat(CsvCodec.decode("a, \"b\""), is(new String[] { "a", "" }));
+		assertThat(CsvCodec.decode("a\"b,c"), is(new String[] { "a" }));
+		assertThat(CsvCodec.decode("a,\"b"), is(new String[] { "a", "" }));
+		assertThat(CsvCodec.decode(new StringBuilder("\"a\nb\"")), is(new String[] { "a\nb" }));
+		assertThat(CsvCodec.decode(""), is(new String[0]));
+		assertThat(CsvCodec.decode("  "), is(new String[] { "" }));
+	}
+
+	@Test(expected = CsvFormatException.class)
+	public void testDecode_unclosed() {
+		CsvCodec.decode("\"a");
+	}
+
+	@Test(expected = CsvFormatException.class)
+	public void testDecode_leadingComma() {
+		CsvCodec.decode(",a");
+	}
+
+	@Test
+	public void testEncode() {
+		assertThat(CsvCodec.encode("2015-11-01T00:00", "ls -l"), is("2015-11-01T00:00,\"ls -l\""));
+		assertThat(CsvCodec.encode("a\"b", "", "c,d", "\re"), is("\"a\"\"b\",\"\",\"c,d\",\"\re\""));
+		assertThat(CsvCodec.encode(), is(""));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(0L);
+		for (int i = 0; i < 10000; i++) {
+			String a = random(random, 8);
+			String b = random(random, 8);
+			assertThat(CsvCodec.decode(CsvCodec.encode("x", a, b)), is(new String[] { "x", a, b }));
+		}
+	}
+
+	@Test
+	public void testSameAsRegex() {
+		Random random = new Random(0L);
+		for (int i = 0; i < 100000; i++) {
+			String field = random(random, 12);
+			assertThat(field, decode(field), is(decodeByRegex(field)));
+			assertThat(field, CsvCodec.encode(field, field.trim()), is(RegexCsvCodec.encode(field, field.trim())));
+		}
+	}
+
+}
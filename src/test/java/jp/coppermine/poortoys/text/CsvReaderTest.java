@@ -0,0 +1,108 @@
+package jp.coppermine.poortoys.text;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsvReaderTest {
+	
+	/**
+	 * Characters of random lines, including every character with a meaning in CSV except line separators.
+	 */
+	private static final String ALPHABET = "ab \",\t\u000B\f ";
+	
+	private static List<Object> readAll(CsvReader reader) throws IOException {
+		List<Object> records = new ArrayList<>();
+		while (true) {
+			try {
+				String[] record = reader.read();
+				if (record == null) {
+					return records;
+				}
+				records.add(Arrays.asList(record));
+			} catch (CsvFormatException e) {
+				records.add(e.getClass());
+			}
+		}
+	}
+	
+	private static Object decode(String line) {
+		try {
+			return Arrays.asList(CsvCodec.decode(line));
+		} catch (CsvFormatException e) {
+			return e.getClass();
+		}
+	}
+
+	@Test
+	public void testRead() throws IOException {
+		CsvReader reader = new CsvReader(new StringReader("a,\"b\r\nc\"\"\"\r\n\n d ,\"e\"\rf"));
+		
+		assertThat(reader.read(), is(new String[] { "a", "b\r\nc\"" }));
+		assertThat(reader.read(), is(new String[0]));
+		assertThat(reader.read(), is(new String[] { "d", "e" }));
+		assertThat(reader.read(), is(new String[] { "f" }));
+		assertThat(reader.read(), is(nullValue()));
+	}
+
+	@Test
+	public void testRead_unclosed() throws IOException {
+		assertThat(readAll(new CsvReader(new StringReader("a,\"b\nc\nd"))), is(Arrays.<Object>asList(
+				Arrays.asList("a", ""), Arrays.asList("c"), Arrays.asList("d"))));
+		assertThat(readAll(new CsvReader(new StringReader("\"b\nc"))), is(Arrays.<Object>asList(
+				CsvFormatException.class, Arrays.asList("c"))));
+	}
+
+	@Test
+	public void testRead_sink() throws IOException {
+		CsvReader reader = new CsvReader(CharBuffer.wrap("2015-11-01T00:00,ls -l\n"));
+		StringBuilder builder = new StringBuilder();
+		
+		assertThat(reader.read((index, value) -> builder.append(index).append(value)), is(2));
+		assertThat(builder.toString(), is("02015-11-01T00:001ls -l"));
+		assertThat(reader.read((index, value) -> fail()), is(-1));
+	}
+
+	@Test
+	public void testRead_large() throws IOException {
+		char[] chars = new char[100000];
+		Arrays.fill(chars, 'x');
+		String large = new String(chars);
+		CsvReader reader = new CsvReader(new StringReader("a,\"" + large + "\n" + large + "\"\n" + large));
+		
+		assertThat(reader.read(), is(new String[] { "a", large + "\n" + large }));
+		assertThat(reader.read(), is(new String[] { large }));
+		assertThat(reader.read(), is(nullValue()));
+	}
+
+	@Test
+	public void testRead_sameAsDecode() throws IOException {
+		Random random = new Random(0L);
+		List<String> lines = new ArrayList<>();
+		List<Object> expected = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder builder = new StringBuilder();
+			for (int j = random.nextInt(13); j > 0; j--) {
+				builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+			}
+			String line = builder.toString();
+			// a quote without a close quote would continue to the following lines
+			if (line.chars().filter(c -> c == '"').count() % 2 == 0) {
+				lines.add(line);
+				expected.add(decode(line));
+			}
+		}
+		
+		assertThat(readAll(new CsvReader(new StringReader(String.join("\n", lines)))), is(expected));
+	}
+
+}
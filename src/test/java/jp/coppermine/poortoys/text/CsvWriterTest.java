@@ -0,0 +1,69 @@
+package jp.coppermine.poortoys.text;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsvWriterTest {
+	
+	/**
+	 * Characters of random entries, including every character with a meaning in CSV.
+	 */
+	private static final String ALPHABET = "ab \",\t\n\r\u000B\f ";
+
+	@Test
+	public void testWrite() throws IOException {
+		StringWriter out = new StringWriter();
+		try (CsvWriter writer = new CsvWriter(out, "\n")) {
+			writer.writeRecord("2015-11-01T00:00", "ls -l");
+			writer.field("a\"b").field("").field("c\rd").endRecord();
+			writer.endRecord();
+		}
+		
+		assertThat(out.toString(), is("2015-11-01T00:00,\"ls -l\"\n\"a\"\"b\",\"\",\"c\rd\"\n\n"));
+	}
+
+	@Test
+	public void testWrite_sameAsEncode() throws IOException {
+		StringWriter out = new StringWriter();
+		try (CsvWriter writer = new CsvWriter(out, "")) {
+			for (String entry : new String[] { "a", " a", "a\u000B", "\fa", "a b", "a,b", "" }) {
+				writer.writeRecord(entry, "b");
+				assertThat(out.toString(), is(""));
+				writer.flush();
+				assertThat(out.toString(), is(CsvCodec.encode(entry, "b")));
+				out.getBuffer().setLength(0);
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Random random = new Random(0L);
+		String[][] records = new String[10000][];
+		StringWriter out = new StringWriter();
+		try (CsvWriter writer = new CsvWriter(out)) {
+			for (int i = 0; i < records.length; i++) {
+				StringBuilder builder = new StringBuilder();
+				for (int j = random.nextInt(9); j > 0; j--) {
+					builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+				}
+				records[i] = new String[] { "x", builder.toString(), String.valueOf(i) };
+				writer.writeRecord(records[i]);
+			}
+		}
+		
+		CsvReader reader = new CsvReader(new StringReader(out.toString()));
+		for (String[] record : records) {
+			assertThat(reader.read(), is(record));
+		}
+		assertThat(reader.read(), is(nullValue()));
+	}
+
+}